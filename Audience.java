@@ -0,0 +1,111 @@
+/**
+ * This class represents the recipients of one kind of broadcast in a room at a point in time, split by the event loop
+ * (shard) which owns their connection. It never changes once built; the ClientRegistry builds a new one whenever a
+ * client joins or leaves the room or changes mode, so a broadcast can loop over it without any lock.
+ */
+public class Audience {
+
+    /**
+     * Array with an array of the recipients owned by each shard, indexed by the shard
+     */
+    private final ClientHandler[][] clientsByShard;
+    /**
+     * Boolean representing whether any recipient speaks the text protocol
+     */
+    private final boolean hasTextRecipients;
+    /**
+     * Boolean representing whether any recipient speaks the binary protocol
+     */
+    private final boolean hasBinaryRecipients;
+
+    /**
+     * The constructor initialises clientsByShard and works out which protocols the recipients speak.
+     *
+     * @param clientsByShard ClientHandler[][] with the recipients owned by each shard, which must not be changed afterwards
+     */
+    public Audience(ClientHandler[][] clientsByShard) {
+        this.clientsByShard = clientsByShard;
+        boolean text = false;
+        boolean binary = false;
+        for (ClientHandler[] shardClients : clientsByShard) {
+            for (ClientHandler clientHandler : shardClients) {
+                if (clientHandler.getProtocol() == WireProtocol.text) {
+                    text = true;
+                } else {
+                    binary = true;
+                }
+            }
+        }
+        this.hasTextRecipients = text;
+        this.hasBinaryRecipients = binary;
+    }
+
+    /**
+     * Builds the audience of a kind of broadcast from the members of a room. Clients in a DoD game do not receive
+     * broadcasts; a ChatClient's broadcast reaches every other client apart from DoDClients, while a ChatBot's
+     * broadcast only reaches ChatClients, as the bots do not need to respond to each other.
+     * This costs time proportional to the number of members, but only happens when the room's members change rather
+     * than on every broadcast.
+     *
+     * @param members       ClientHandler[] of the room's members
+     * @param shards        int representing the number of shards the clients' connections are spread over
+     * @param broadcastType MessageType representing the kind of broadcast, either broadcastClient or broadcastBot
+     * @return Audience of the members who receive the broadcast
+     */
+    public static Audience of(ClientHandler[] members, int shards, MessageType broadcastType) {
+        int[] counts = new int[shards];
+        for (ClientHandler clientHandler : members) { // Counts the recipients of each shard so the arrays are built to size
+            if (receives(clientHandler, broadcastType)) {
+                counts[clientHandler.getShard()]++;
+            }
+        }
+        ClientHandler[][] clientsByShard = new ClientHandler[shards][];
+        for (int shard = 0; shard < shards; shard++) {
+            clientsByShard[shard] = new ClientHandler[counts[shard]];
+            counts[shard] = 0;
+        }
+        for (ClientHandler clientHandler : members) {
+            if (receives(clientHandler, broadcastType)) {
+                int shard = clientHandler.getShard();
+                clientsByShard[shard][counts[shard]++] = clientHandler;
+            }
+        }
+        return new Audience(clientsByShard);
+    }
+
+    /**
+     * Returns whether a client receives a kind of broadcast.
+     *
+     * @param clientHandler ClientHandler representing the client
+     * @param broadcastType MessageType representing the kind of broadcast, either broadcastClient or broadcastBot
+     * @return Boolean representing whether the client receives the broadcast
+     */
+    private static boolean receives(ClientHandler clientHandler, MessageType broadcastType) {
+        if (clientHandler.getInDoDGame()) { // Clients in a DoD game do not receive broadcasts
+            return false;
+        }
+        return broadcastType == MessageType.broadcastBot
+                ? clientHandler.getClientType() == SenderType.client
+                : clientHandler.getClientType() != SenderType.DoDBot;
+    }
+
+    /**
+     * Returns the recipients owned by a shard. The array must not be changed.
+     *
+     * @param shard int representing the shard
+     * @return ClientHandler[] of the recipients owned by the shard
+     */
+    public ClientHandler[] getClients(int shard) {
+        return clientsByShard[shard];
+    }
+
+    /**
+     * Returns whether any recipient speaks the given protocol, so a broadcast is only encoded in the protocols needed.
+     *
+     * @param protocol WireProtocol to check for
+     * @return Boolean representing whether any recipient speaks the protocol
+     */
+    public boolean speaks(WireProtocol protocol) {
+        return protocol == WireProtocol.text ? hasTextRecipients : hasBinaryRecipients;
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This class represents a broadcast which has been encoded once and is handed to every event loop, each of which
+ * fans it out to the recipients whose connections it owns. It never changes, so it is safely read by every loop.
+ */
+public class Broadcast {
+
+    /**
+     * Audience representing the recipients of the broadcast at the time it was sent
+     */
+    private final Audience audience;
+    /**
+     * ByteBuffer containing the broadcast encoded for text clients, or null if the audience has none
+     */
+    private final ByteBuffer sharedText;
+    /**
+     * ByteBuffer containing the broadcast encoded for binary clients, or null if the audience has none
+     */
+    private final ByteBuffer sharedBinary;
+
+    /**
+     * The constructor initialises the audience, sharedText and sharedBinary variables.
+     *
+     * @param audience     Audience representing the recipients of the broadcast
+     * @param sharedText   ByteBuffer containing the broadcast encoded for text clients, or null if there are none
+     * @param sharedBinary ByteBuffer containing the broadcast encoded for binary clients, or null if there are none
+     */
+    public Broadcast(Audience audience, ByteBuffer sharedText, ByteBuffer sharedBinary) {
+        this.audience = audience;
+        this.sharedText = sharedText;
+        this.sharedBinary = sharedBinary;
+    }
+
+    /**
+     * Returns the recipients of the broadcast.
+     *
+     * @return Audience representing the recipients of the broadcast at the time it was sent
+     */
+    public Audience getAudience() {
+        return audience;
+    }
+
+    /**
+     * Returns the broadcast encoded in the given protocol.
+     *
+     * @param protocol WireProtocol the recipient speaks
+     * @return ByteBuffer containing the encoded broadcast, which must only be written through duplicates
+     */
+    public ByteBuffer getShared(WireProtocol protocol) {
+        return protocol == WireProtocol.text ? sharedText : sharedBinary;
+    }
+}
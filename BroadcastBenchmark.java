@@ -0,0 +1,73 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class measures what fanning a broadcast out to its recipients costs, encoding the line once for each recipient
+ * as the server used to, against encoding it once into a shared buffer of which every recipient is handed a duplicate,
+ * as the server does now. For each audience size the broadcast is fanned out many times in both ways, into an array
+ * standing in for the recipients' queues, and the time and bytes allocated per broadcast are printed for both.
+ */
+public class BroadcastBenchmark {
+
+    /**
+     * Number of broadcasts fanned out, in each way, before the measured ones, so the JIT has compiled both
+     */
+    private static final int WARMUP_BROADCASTS = 200;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the number of broadcasts measured for each audience (default 500), bytes in each
+     *             broadcast's payload (default 100), then the audience sizes (default 1000 and 10000)
+     */
+    public static void main(String[] args) {
+        int broadcasts = args.length > 0 ? ServerConfig.parsePositive(args[0], 500, "Broadcast count") : 500;
+        int payloadBytes = args.length > 1 ? ServerConfig.parsePositive(args[1], 100, "Payload size") : 100;
+        int[] audiences = args.length > 2
+                ? Arrays.stream(args, 2, args.length).mapToInt(size -> ServerConfig.parsePositive(size, 1000, "Audience size")).toArray()
+                : new int[]{1000, 10000};
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        Envelope envelope = new Envelope();
+        for (int recipients : audiences) {
+            ByteBuffer[] queues = new ByteBuffer[recipients]; // Holds the last message each recipient was handed
+            fanOut(envelope, payload, queues, false, WARMUP_BROADCASTS);
+            fanOut(envelope, payload, queues, true, WARMUP_BROADCASTS);
+            long[] perRecipient = fanOut(envelope, payload, queues, false, broadcasts);
+            long[] shared = fanOut(envelope, payload, queues, true, broadcasts);
+            Utility.print(String.format("%d recipients, %d byte payloads:", recipients, payloadBytes));
+            Utility.print(String.format("  encoded per recipient: %8.1f us, %10d bytes allocated per broadcast",
+                    perRecipient[0] / 1e3 / broadcasts, perRecipient[1] / broadcasts));
+            Utility.print(String.format("  encoded once, shared:  %8.1f us, %10d bytes allocated per broadcast (%.1fx faster)",
+                    shared[0] / 1e3 / broadcasts, shared[1] / broadcasts, (double) perRecipient[0] / shared[0]));
+        }
+    }
+
+    /**
+     * Fans a broadcast out to every recipient the given number of times, refilling the envelope for every broadcast as
+     * a client's reader does.
+     *
+     * @param envelope   Envelope the broadcast is routed in
+     * @param payload    byte[] containing the broadcast's payload
+     * @param queues     ByteBuffer[] standing in for the recipients' queues, one slot each
+     * @param shared     Boolean representing whether the broadcast is encoded once and shared, or once per recipient
+     * @param broadcasts int representing the number of broadcasts
+     * @return long[] holding the nanoseconds taken and then the bytes allocated by this thread
+     */
+    private static long[] fanOut(Envelope envelope, byte[] payload, ByteBuffer[] queues, boolean shared, int broadcasts) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < broadcasts; i++) {
+            envelope.set(MessageType.broadcastClient, i, Frame.NO_CLIENT, ByteBuffer.wrap(payload), 0, payload.length,
+                    Frame.PAYLOAD_CHARSET);
+            for (int recipient = 0; recipient < queues.length; recipient++) {
+                queues[recipient] = shared ? envelope.sharedFor(WireProtocol.text) : envelope.encode(WireProtocol.text, recipient);
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        return new long[]{Math.max(elapsed, 1), allocated};
+    }
+}
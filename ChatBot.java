@@ -2,7 +2,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
 
 /**
  * This class represents a type of client, a ChatBot.
@@ -19,17 +21,35 @@ public class ChatBot extends Client {
      */
     Random rand = new Random();
 
+    /**
+     * Set of the names of the rooms the ChatBot is in.
+     */
+    private final Set<String> rooms = new HashSet<>();
+
+    /**
+     * String representing the name of the room the ChatBot's replies are currently sent in.
+     */
+    private String currentRoom = Room.LOBBY;
+
+    /**
+     * String which roomOf returns for a direct message, which belongs to no room. It is not a valid room name, so it
+     * can never be mistaken for one.
+     */
+    private static final String DIRECT = " (direct): ";
 
     /**
      * The constructor initialises userInput, socket (after validation), serverIn and serverOut.
-     * It then sends the server a message informing it which type of client it is and initialises the bot responses.
+     * It then sends the server a message informing it which type of client it is, subscribes to the rooms requested
+     * and initialises the bot responses.
      *
      * @param consoleAddress String representing the address entered into the console (default is "localhost" if none was entered)
      * @param consolePort    String representing the port number entered into the console (default is "14001" if none was entered)
+     * @param roomNames      String representing the rooms to subscribe to separated by commas, or null to stay in the lobby
      */
-    public ChatBot(String consoleAddress, String consolePort) {
+    public ChatBot(String consoleAddress, String consolePort, String roomNames) {
         super(consoleAddress, consolePort); // Sets up the connection with the server and initialises the required BufferedReaders and PrintWriter
         serverOut.println(clientType()); // Sends the server a message informing it which type of client it is
+        subscribe(roomNames); // Joins the rooms requested instead of the lobby
         initialiseBotResponses(); // Initialises the botResponses HashMap.
     }
 
@@ -42,10 +62,12 @@ public class ChatBot extends Client {
     public static void main(String[] args) {
         String portString = "14001"; // Default portString is set to 14001 as required
         String addressIP = "localhost"; // Default addressIP is set to localhost as required
+        String roomNames = null; // By default the ChatBot stays in the lobby
         /*
-        Loops through all arguments and checks for "-cca" at which point it assigns the addressIP to the next argument
-        and "-ccp" at which point it assigns the portString to the next argument.
-        Hence, if multiple "-cca"/"-ccp" are entered, the last "-cca"/"-ccp" instance will be the determining one.
+        Loops through all arguments and checks for "-cca" at which point it assigns the addressIP to the next argument,
+        "-ccp" at which point it assigns the portString to the next argument and "-ccr" at which point it assigns the
+        rooms to subscribe to to the next argument.
+        Hence, if multiple "-cca"/"-ccp"/"-ccr" are entered, the last instance will be the determining one.
          */
         for (int i = 0; i < args.length - 1; i++) {
             if (args[i].equals("-cca")) {
@@ -54,9 +76,12 @@ public class ChatBot extends Client {
             if (args[i].equals("-ccp")) {
                 portString = args[i + 1];
             }
+            if (args[i].equals("-ccr")) {
+                roomNames = args[i + 1];
+            }
         }
         Utility.print("address: " + addressIP + " at port " + portString);
-        ChatBot myChatBot = new ChatBot(addressIP, portString); // Creates an instance of ChatClient
+        ChatBot myChatBot = new ChatBot(addressIP, portString, roomNames); // Creates an instance of ChatClient
         myChatBot.go(); // Calls the go method
     }
 
@@ -91,25 +116,94 @@ public class ChatBot extends Client {
             if (serverMsg == null) {
                 break;
             } // Breaks if serverMsg is null as that implies the server has been shut down
+            if (serverMsg.equals(Frame.TEXT_PING)) { // The server checks the bot is still there
+                serverOut.println(Frame.TEXT_PONG);
+                continue;
+            }
             /*
             This link explains how to remove punctuation from the string.
             https://www.studytonight.com/java-examples/how-to-remove-punctuation-from-string-in-java
              */
+            String room = roomOf(serverMsg); // Found before the punctuation (and so the room's tag) is removed
+            String sender = room == DIRECT ? serverMsg.substring("Client ".length(), serverMsg.indexOf(DIRECT)) : null;
             msg = " " + serverMsg.replaceAll("\\p{Punct}", " ") + " ";
-            botResponse(msg); // Deals with responding to the message received
+            botResponse(msg, room, sender); // Deals with responding to the message received
+        }
+    }
+
+    /**
+     * Subscribes to the rooms requested, leaving the lobby, so the ChatBot only hears and replies to those rooms.
+     *
+     * @param roomNames String representing the rooms to subscribe to separated by commas, or null to stay in the lobby
+     */
+    private void subscribe(String roomNames) {
+        if (roomNames != null) {
+            for (String room : roomNames.split(",")) {
+                if (Room.isValidName(room.trim())) {
+                    rooms.add(room.trim());
+                    currentRoom = room.trim();
+                    serverOut.println("/join " + currentRoom);
+                } else {
+                    Utility.print("Room " + room + " is not a valid room name.");
+                }
+            }
+        }
+        if (rooms.isEmpty()) { // Stays in the lobby if no valid room was requested
+            rooms.add(Room.LOBBY);
+        } else if (!rooms.contains(Room.LOBBY)) {
+            serverOut.println("/leave " + Room.LOBBY);
+        }
+    }
+
+    /**
+     * Returns the room a ChatClient's message was sent in, which messages from any room but the lobby are tagged with.
+     * A direct message, shown as "Client N (direct): message", was sent in no room, so DIRECT is returned for it.
+     *
+     * @param serverMsg String containing the data received from the server
+     * @return String representing the name of the room, DIRECT for a direct message, or null if the data is not a
+     * ChatClient's message
+     */
+    private String roomOf(String serverMsg) {
+        int contentStart = serverMsg.indexOf(": ") + 2;
+        if (!serverMsg.startsWith("Client ") || contentStart == 1) {
+            return null;
+        }
+        int idEnd = serverMsg.indexOf(' ', "Client ".length());
+        if (serverMsg.startsWith(DIRECT, idEnd)) { // Checked right after the ID, so a message merely containing the tag is not taken for one
+            return DIRECT;
+        }
+        if (serverMsg.startsWith("[", contentStart)) {
+            int tagEnd = serverMsg.indexOf("] ", contentStart);
+            // Only rooms the ChatBot is in count, in case a message in the lobby happens to start with brackets
+            if (tagEnd != -1 && rooms.contains(serverMsg.substring(contentStart + 1, tagEnd))) {
+                return serverMsg.substring(contentStart + 1, tagEnd);
+            }
         }
+        return Room.LOBBY;
     }
 
     /**
      * Searches for key words in the serverMsg. If one is found, then a random response (from a predetermined list of responses)
-     * is sent back to the server.
+     * is sent back to the server, in the room the message was sent in. A direct message is answered with a direct
+     * message to its sender, leaving the rooms the ChatBot is in and talks in unchanged.
      *
      * @param serverMsg String containing the data received from the server
+     * @param room      String representing the room the message was sent in, DIRECT for a direct message, or null to
+     *                  reply in the current room
+     * @param sender    String representing the ID of the client who sent a direct message, or null for any other message
      */
-    private void botResponse(String serverMsg) {
+    private void botResponse(String serverMsg, String room, String sender) {
         // Loops through each key in the botResponses HashMap checking whether it is contained in the serverMsg
         for (String response : botResponses.keySet()) {
             if (serverMsg.toLowerCase().contains(" " + response + " ")) {
+                if (room == DIRECT) { // Replies to the sender alone, without joining any room
+                    serverOut.println("/msg " + sender + " " + randomReply(botResponses.get(response)));
+                    return;
+                }
+                if (room != null && !room.equals(currentRoom)) { // Talks in the message's room before replying
+                    serverOut.println("/join " + room);
+                    currentRoom = room;
+                }
                 serverOut.println(randomReply(botResponses.get(response))); // Sends the server the random response from predetermined list of responses
                 return; // Breaks out of the for loop in order to avoid responding to multiple key words
             }
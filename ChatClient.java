@@ -50,7 +50,7 @@ public class ChatClient extends Client {
      */
     @Override
     public void go() {
-        ClientRead read = new ClientRead(serverIn); // Sets up a read thread which deals with reading data from the server
+        ClientRead read = new ClientRead(serverIn, serverOut); // Sets up a read thread which deals with reading data from the server
         ClientWrite write = new ClientWrite(socket, serverOut); // Sets up a write thread which deals with sending data to the server
         read.start();
         write.start();
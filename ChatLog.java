@@ -0,0 +1,576 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps a durable, append-only log of every broadcast the server routes. The log is a directory of
+ * segments, files of a fixed size which are memory-mapped and written in place: appending a broadcast only copies its
+ * binary frame into the current segment, so the thread routing it never waits for the disk.
+ * A committer thread does the rest in the background. Every COMMIT_INTERVAL_MILLIS it forces whatever was appended
+ * since its last pass to the disk in one go (group commit), so a single fsync makes many broadcasts durable. It also
+ * opens and maps the next segment once the current one passes HIGH_WATER_MARK, so moving to a new segment never touches
+ * the file system on the routing path, and deletes the oldest segments once the log is over its size or age limit.
+ * A broadcast which cannot be appended, because the next segment is not open when the current one fills up, is
+ * dropped rather than holding up the routing, and the committer warns about the drops at most every
+ * WARNING_INTERVAL_MILLIS.
+ * A segment starts with SEGMENT_HEADER_SIZE bytes (MAGIC and the time it was created) followed by the records, each
+ * being the time the broadcast was sent in milliseconds followed by its binary frame, and ends where a record's time
+ * is 0. ChatLogReader reads the log back.
+ */
+public class ChatLog implements Runnable {
+
+    /**
+     * int identifying a segment file, "CHAT" in ASCII
+     */
+    public static final int MAGIC = 0x43484154;
+    /**
+     * Number of bytes in a segment file, header included
+     */
+    public static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+    /**
+     * Number of bytes before a segment's first record: MAGIC, 4 unused bytes and the time the segment was created
+     */
+    public static final int SEGMENT_HEADER_SIZE = 4 + 4 + 8;
+    /**
+     * Number of bytes before a record's frame: the time the broadcast was sent
+     */
+    public static final int RECORD_HEADER_SIZE = 8;
+    /**
+     * Index in the current segment past which the committer opens the next segment, leaving the rest of the current
+     * one to fill while the next is created and loaded
+     */
+    private static final int HIGH_WATER_MARK = SEGMENT_BYTES / 2;
+    /**
+     * Number of zeros written at a time to allocate a new segment's room on the disk, which SEGMENT_BYTES is a multiple of
+     */
+    private static final int ZERO_FILL_BYTES = 1024 * 1024;
+    /**
+     * Longest time in milliseconds a broadcast is appended before being forced to the disk
+     */
+    public static final long COMMIT_INTERVAL_MILLIS = 10;
+    /**
+     * Longest time in milliseconds between two checks of the retention limits
+     */
+    private static final long RETENTION_INTERVAL_MILLIS = 1000;
+    /**
+     * Shortest time in milliseconds between two warnings about the log failing or dropping broadcasts
+     */
+    private static final long WARNING_INTERVAL_MILLIS = 10000;
+    /**
+     * String every segment file's name starts with, followed by its sequence number
+     */
+    static final String SEGMENT_PREFIX = "chat-";
+    /**
+     * String every segment file's name ends with
+     */
+    static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * Path of the directory holding the segments
+     */
+    private final Path directory;
+    /**
+     * long representing the most bytes the segments may take before the oldest are deleted
+     */
+    private final long retainBytes;
+    /**
+     * long representing how many milliseconds a segment is kept after it was last written to
+     */
+    private final long retainMillis;
+    /**
+     * ReentrantLock guarding current, sealed and the position of the records in the current segment. It is only held
+     * while a record is copied, never while the disk is waited on.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+    /**
+     * Segment the broadcasts are appended to, guarded by appendLock
+     */
+    private Segment current;
+    /**
+     * List of the segments which are full but not yet forced to the disk and closed, guarded by appendLock
+     */
+    private final List<Segment> sealed = new ArrayList<>();
+    /**
+     * Segment the committer opened for current to move to once it is full, or null if current has not yet passed
+     * HIGH_WATER_MARK or the next segment could not be opened
+     */
+    private volatile Segment spare;
+    /**
+     * AtomicLong representing the sequence number of the next segment to open
+     */
+    private final AtomicLong nextSequence;
+    /**
+     * Thread forcing the segments to the disk, opening the next segment and enforcing the retention limits
+     */
+    private final Thread committer;
+    /**
+     * Boolean representing whether the log has been closed, after which nothing more is appended
+     */
+    private volatile boolean closed = false;
+    /**
+     * long representing the time of the last record appended, so the times in the log never go backwards even if
+     * the clock does. Guarded by appendLock.
+     */
+    private long lastMillis = 0;
+    /**
+     * long representing when the committer last checked the retention limits, only used by the committer
+     */
+    private long lastRetentionCheck = 0;
+    /**
+     * long representing when the committer last warned about the log, only used by the committer
+     */
+    private long lastWarning = 0;
+    /**
+     * long representing the broadcasts dropped up to the committer's last warning, only used by the committer
+     */
+    private long warnedDrops = 0;
+    /**
+     * long representing the position in the log (see positionOf) before which every record is complete and on the disk
+     */
+    private volatile long committedPosition;
+    /**
+     * LongAdder counting the broadcasts appended
+     */
+    private final LongAdder appended = new LongAdder();
+    /**
+     * LongAdder counting the bytes appended
+     */
+    private final LongAdder appendedBytes = new LongAdder();
+    /**
+     * LongAdder counting the broadcasts which could not be appended
+     */
+    private final LongAdder dropped = new LongAdder();
+    /**
+     * LongAdder counting the forces of the log to the disk
+     */
+    private final LongAdder commits = new LongAdder();
+    /**
+     * LongAdder counting the segments deleted under the retention limits
+     */
+    private final LongAdder deletedSegments = new LongAdder();
+
+    /**
+     * The constructor opens the first segment, after any segments already in the directory, and starts the committer.
+     *
+     * @param directory    Path of the directory holding the segments, created if it does not exist
+     * @param retainBytes  long representing the most bytes the segments may take before the oldest are deleted
+     * @param retainMillis long representing how many milliseconds a segment is kept after it was last written to
+     * @throws IOException If the directory or the first segment cannot be created
+     */
+    public ChatLog(Path directory, long retainBytes, long retainMillis) throws IOException {
+        this.directory = directory;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+        Files.createDirectories(directory);
+        long lastSequence = -1;
+        for (Path segment : listSegments(directory)) {
+            lastSequence = Math.max(lastSequence, sequenceOf(segment));
+        }
+        this.nextSequence = new AtomicLong(lastSequence + 1); // A new segment is always started, so a torn segment is never appended to
+        this.current = openSegment();
+        this.committedPosition = positionOf(current.sequence, SEGMENT_HEADER_SIZE);
+        this.committer = new Thread(this, "ChatLogCommitter");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Appends a broadcast to the log. Only its frame is copied into the current segment; it is forced to the disk
+     * within COMMIT_INTERVAL_MILLIS by the committer. If the current segment is full and the committer has not
+     * opened the next one, the broadcast is dropped rather than the sender waiting for the file system.
+     *
+     * @param envelope Envelope representing the broadcast being routed
+     */
+    public void append(Envelope envelope) {
+        int length = RECORD_HEADER_SIZE + envelope.frameLength();
+        if (length > SEGMENT_BYTES - SEGMENT_HEADER_SIZE - RECORD_HEADER_SIZE) { // Room is always left for the terminating 0
+            dropped.increment();
+            return;
+        }
+        appendLock.lock();
+        try {
+            if (closed) {
+                dropped.increment();
+                return;
+            }
+            if (current.written + length > SEGMENT_BYTES - RECORD_HEADER_SIZE) { // The segment's unused bytes are already 0, which ends it
+                Segment next = spare;
+                if (next == null) {
+                    dropped.increment();
+                    LockSupport.unpark(committer); // Wakes the committer to open the next segment
+                    return;
+                }
+                spare = null;
+                sealed.add(current);
+                current = next;
+            }
+            lastMillis = Math.max(lastMillis, System.currentTimeMillis());
+            current.map.putLong(current.written, lastMillis);
+            envelope.putFrame(current.map, current.written + RECORD_HEADER_SIZE);
+            current.written += length;
+            if (current.written >= HIGH_WATER_MARK && current.written - length < HIGH_WATER_MARK) {
+                LockSupport.unpark(committer); // Wakes the committer to open the next segment before this one is full
+            }
+        } finally {
+            appendLock.unlock();
+        }
+        appended.increment();
+        appendedBytes.add(length);
+    }
+
+    /**
+     * Forces the log to the disk every COMMIT_INTERVAL_MILLIS until it is closed, then one last time.
+     */
+    @Override
+    public void run() {
+        while (!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(COMMIT_INTERVAL_MILLIS));
+            commit();
+        }
+        commit();
+    }
+
+    /**
+     * Forces everything appended since the last commit to the disk, closing the segments which are full, then opens
+     * the next segment once the current one is past HIGH_WATER_MARK, warns about any failure or broadcasts dropped
+     * and enforces the retention limits. Only the committer calls this.
+     */
+    private void commit() {
+        Segment active;
+        int written;
+        List<Segment> full;
+        appendLock.lock();
+        try {
+            active = current;
+            written = current.written;
+            full = sealed.isEmpty() ? null : new ArrayList<>(sealed);
+            sealed.clear();
+        } finally {
+            appendLock.unlock();
+        }
+        boolean forced = false;
+        String failure = null;
+        try {
+            if (full != null) {
+                for (Segment segment : full) { // Nothing more is appended to a sealed segment, so its written is final
+                    forced |= segment.force(segment.written);
+                    segment.close();
+                }
+            }
+            forced |= active.force(written);
+            committedPosition = positionOf(active.sequence, written); // Every earlier segment was forced before this one
+            if (spare == null && !closed && written >= HIGH_WATER_MARK) { // Tried again every commit until it succeeds
+                spare = openSegment();
+            }
+        } catch (IOException e) { // Reached if the disk is full or the directory was removed
+            failure = e.getMessage();
+        }
+        if (forced) {
+            commits.increment();
+        }
+        long now = System.currentTimeMillis();
+        warn(failure, now);
+        if (now - lastRetentionCheck >= RETENTION_INTERVAL_MILLIS) {
+            lastRetentionCheck = now;
+            enforceRetention(active.sequence, now);
+        }
+    }
+
+    /**
+     * Prints a warning if the log failed or broadcasts were dropped since the last warning, unless the last warning
+     * was less than WARNING_INTERVAL_MILLIS ago, so a log which keeps failing does not flood the console.
+     *
+     * @param failure String representing why the last commit failed, or null if it did not
+     * @param now     long representing the current time in milliseconds
+     */
+    private void warn(String failure, long now) {
+        long drops = dropped.sum();
+        if ((failure == null && drops == warnedDrops) || now - lastWarning < WARNING_INTERVAL_MILLIS) {
+            return;
+        }
+        Utility.print("Chat log " + (failure == null ? "" : "could not be written (" + failure + "), ")
+                + (drops - warnedDrops) + " broadcasts dropped since the last warning");
+        lastWarning = now;
+        warnedDrops = drops;
+    }
+
+    /**
+     * Deletes the oldest segments while the segments take more than retainBytes, and any segment last written to
+     * more than retainMillis ago. The segment being appended to and those after it are never deleted.
+     *
+     * @param activeSequence long representing the sequence number of the segment being appended to
+     * @param now            long representing the current time in milliseconds
+     */
+    private void enforceRetention(long activeSequence, long now) {
+        try {
+            List<Path> segments = listSegments(directory);
+            long total = 0;
+            for (Path segment : segments) {
+                total += Files.size(segment);
+            }
+            for (Path segment : segments) {
+                if (sequenceOf(segment) >= activeSequence) {
+                    break;
+                }
+                long size = Files.size(segment);
+                if (total <= retainBytes && Files.getLastModifiedTime(segment).toMillis() >= now - retainMillis) {
+                    break; // Every later segment is newer, so is within both limits
+                }
+                Files.delete(segment);
+                total -= size;
+                deletedSegments.increment();
+            }
+        } catch (IOException e) { // Reached if a segment cannot be read or deleted, in which case it is tried again later
+            Utility.print("Chat log retention failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates, fills with zeros, maps and loads the next segment, writing its header. The zeros are written rather
+     * than left for the mapping to allocate, as a mapping touching a page the disk has no room for crashes the thread
+     * instead of throwing. If the segment cannot be filled or mapped its file is deleted, so the same sequence number
+     * is tried again next time.
+     *
+     * @return Segment which is empty
+     * @throws IOException If the file cannot be created, filled or mapped
+     */
+    private Segment openSegment() throws IOException {
+        long sequence = nextSequence.get();
+        Path path = segmentPath(directory, sequence);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer map;
+        try {
+            ByteBuffer zeros = ByteBuffer.allocateDirect(ZERO_FILL_BYTES);
+            for (long position = 0; position < SEGMENT_BYTES; position += ZERO_FILL_BYTES) {
+                channel.write(zeros.clear(), position);
+            }
+            map = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        } catch (IOException e) { // Reached if the disk has no room for the segment
+            channel.close();
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        map.load(); // Faults the pages in now rather than while broadcasts are appended
+        map.putInt(0, MAGIC);
+        map.putLong(8, System.currentTimeMillis());
+        nextSequence.incrementAndGet();
+        return new Segment(sequence, path, channel, map);
+    }
+
+    /**
+     * Stops appending, forces what was appended to the disk and closes the segments.
+     *
+     * @throws InterruptedException If interrupted while waiting for the committer to finish
+     */
+    public void close() throws InterruptedException {
+        appendLock.lock();
+        try {
+            closed = true; // Nothing is appended after this, so the committer's last commit covers everything
+        } finally {
+            appendLock.unlock();
+        }
+        LockSupport.unpark(committer);
+        committer.join();
+        try {
+            current.close();
+            Segment unused = spare;
+            if (unused != null) {
+                unused.close();
+                Files.deleteIfExists(unused.path); // The spare holds no record, so is not kept
+            }
+        } catch (IOException e) {
+            Utility.print("Chat log could not be closed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a summary of what the log has done, to print in the console.
+     *
+     * @return String representing the log's counters
+     */
+    public String describe() {
+        return "Chat log " + directory + ": " + appended.sum() + " broadcasts appended (" + appendedBytes.sum()
+                + " bytes), " + dropped.sum() + " dropped, " + commits.sum() + " commits, "
+                + deletedSegments.sum() + " segments deleted";
+    }
+
+    /**
+     * Returns the position in the log before which every record is complete and on the disk, which a reader of the
+     * log may safely read up to while it is being appended to.
+     *
+     * @return long representing the committed position (see positionOf)
+     */
+    public long getCommittedPosition() {
+        return committedPosition;
+    }
+
+    /**
+     * Returns the directory holding the segments.
+     *
+     * @return Path of the log's directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the number of broadcasts appended.
+     *
+     * @return long representing the number of broadcasts appended
+     */
+    public long getAppended() {
+        return appended.sum();
+    }
+
+    /**
+     * Returns the number of broadcasts which could not be appended.
+     *
+     * @return long representing the number of broadcasts dropped
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of forces of the log to the disk.
+     *
+     * @return long representing the number of commits
+     */
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    /**
+     * Returns the position of a record in the log: the segment's sequence number in the high 32 bits and the record's
+     * index in the segment in the low 32 bits, so that later records always have greater positions.
+     *
+     * @param sequence long representing the sequence number of the record's segment
+     * @param index    int representing the index of the record in the segment
+     * @return long representing the record's position
+     */
+    static long positionOf(long sequence, int index) {
+        return sequence << 32 | index;
+    }
+
+    /**
+     * Returns the path of a segment from its sequence number.
+     *
+     * @param directory Path of the directory holding the segments
+     * @param sequence  long representing the segment's sequence number
+     * @return Path of the segment's file, which may not exist
+     */
+    static Path segmentPath(Path directory, long sequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Lists the segments in a directory, oldest first.
+     *
+     * @param directory Path of the directory holding the segments
+     * @return List of the segments' paths, in the order of their sequence numbers
+     * @throws IOException If the directory cannot be read
+     */
+    static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path segment : stream) {
+                segments.add(segment);
+            }
+        }
+        segments.sort(null); // The sequence numbers are zero-padded, so the names sort in the order of the segments
+        return segments;
+    }
+
+    /**
+     * Returns the sequence number of a segment from its file name.
+     *
+     * @param segment Path of the segment
+     * @return long representing the segment's sequence number
+     */
+    static long sequenceOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * This class represents a segment file which is mapped into memory.
+     */
+    private static final class Segment {
+
+        /**
+         * long representing the segment's sequence number
+         */
+        private final long sequence;
+        /**
+         * Path of the segment's file
+         */
+        private final Path path;
+        /**
+         * FileChannel the segment was mapped from
+         */
+        private final FileChannel channel;
+        /**
+         * MappedByteBuffer the records are written into
+         */
+        private final MappedByteBuffer map;
+        /**
+         * int representing the index the next record is written at, guarded by the log's appendLock
+         */
+        private int written = SEGMENT_HEADER_SIZE;
+        /**
+         * int representing the index up to which the segment has been forced to the disk, only used by the committer
+         */
+        private int flushed = 0;
+
+        /**
+         * The constructor initialises a segment which was just created.
+         *
+         * @param sequence long representing the segment's sequence number
+         * @param path     Path of the segment's file
+         * @param channel  FileChannel the segment was mapped from
+         * @param map      MappedByteBuffer the records are written into
+         */
+        private Segment(long sequence, Path path, FileChannel channel, MappedByteBuffer map) {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = channel;
+            this.map = map;
+        }
+
+        /**
+         * Forces the bytes written since the last force to the disk.
+         *
+         * @param upTo int representing the index up to which the records are complete
+         * @return Boolean representing whether there was anything to force
+         */
+        private boolean force(int upTo) {
+            if (upTo <= flushed) {
+                return false;
+            }
+            map.force(flushed, upTo - flushed);
+            flushed = upTo;
+            return true;
+        }
+
+        /**
+         * Closes the segment's file. The mapping stays valid until it is garbage collected, but is no longer used.
+         *
+         * @throws IOException If the file cannot be closed
+         */
+        private void close() throws IOException {
+            channel.close();
+        }
+    }
+}
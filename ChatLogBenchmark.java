@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class measures how many broadcasts a second a ChatLog sustains. Several threads, standing in for the threads
+ * routing broadcasts, append the same broadcast as fast as they can for a while, with the committer forcing the log to
+ * the disk as it would in the server. The rate is printed for every second, then for the whole run.
+ */
+public class ChatLogBenchmark {
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the directory to log into, then optionally the number of threads (default 4), seconds to run for
+     *             (default 10) and bytes in each broadcast's payload (default 100)
+     * @throws IOException          If the log cannot be opened
+     * @throws InterruptedException If interrupted while waiting for the threads
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            Utility.print("Usage: java ChatLogBenchmark <directory> [threads] [seconds] [payload bytes]");
+            return;
+        }
+        Path directory = Paths.get(args[0]);
+        int threads = args.length > 1 ? ServerConfig.parsePositive(args[1], 4, "Thread count") : 4;
+        int seconds = args.length > 2 ? ServerConfig.parsePositive(args[2], 10, "Duration") : 10;
+        int payloadBytes = args.length > 3 ? ServerConfig.parsePositive(args[3], 100, "Payload size") : 100;
+        // Enough segments are kept for the run, but the oldest are deleted so the disk does not fill up
+        ChatLog log = new ChatLog(directory, 4L * ChatLog.SEGMENT_BYTES, TimeUnit.HOURS.toMillis(1));
+        byte[] payload = new byte[payloadBytes];
+        Arrays.fill(payload, (byte) 'x');
+        LongAdder appends = new LongAdder();
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] appenders = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            int senderID = i;
+            appenders[i] = new Thread(() -> {
+                Envelope envelope = new Envelope(); // Each thread routes its own broadcasts, just as each client's reader does
+                envelope.set(MessageType.broadcastClient, senderID, Frame.NO_CLIENT, ByteBuffer.wrap(payload), 0,
+                        payload.length, Frame.PAYLOAD_CHARSET);
+                while (System.nanoTime() < end) {
+                    for (int j = 0; j < 1000; j++) {
+                        log.append(envelope);
+                    }
+                    appends.add(1000);
+                }
+            }, "ChatLogAppender-" + i);
+            appenders[i].start();
+        }
+        long start = System.nanoTime();
+        long lastAppends = 0;
+        long lastCommits = 0;
+        for (int second = 1; second <= seconds; second++) {
+            TimeUnit.SECONDS.sleep(1);
+            long nowAppends = appends.sum();
+            long nowCommits = log.getCommits();
+            Utility.print("Second " + second + ": " + (nowAppends - lastAppends) + " broadcasts, "
+                    + (nowCommits - lastCommits) + " commits");
+            lastAppends = nowAppends;
+            lastCommits = nowCommits;
+        }
+        for (Thread appender : appenders) {
+            appender.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        log.close();
+        long appended = log.getAppended();
+        Utility.print(String.format("%d threads, %d byte payloads: %.0f broadcasts/s (%.1f MB/s), %d dropped",
+                threads, payloadBytes, appended / elapsed,
+                appended * (ChatLog.RECORD_HEADER_SIZE + 4 + Frame.HEADER_SIZE + payloadBytes) / elapsed / 1e6,
+                log.getDropped()));
+        Utility.print(log.describe());
+    }
+}
@@ -0,0 +1,566 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class keeps an inverted index of the chat log, so its broadcasts can be searched by the words they contain and
+ * the client who sent them without reading the log. A background thread follows the log as it is committed, adding
+ * every record's terms to postings kept in memory, which are written out as an IndexRun every FLUSH_RECORDS records or
+ * once the indexer has caught up with the log. Runs are merged two at a time so there are never more than MAX_RUNS,
+ * and deleted once the log segments they point into have been.
+ * A term is a word of the broadcast's content (a run of ASCII letters and digits, lower-cased, or of non-ASCII
+ * characters) or "from:" followed by the sender's ID. A search returns the most recent records using every term asked
+ * for, found by intersecting the terms' postings.
+ */
+public class ChatLogIndexer implements Runnable {
+
+    /**
+     * Number of records whose postings are kept in memory before being written out as a run
+     */
+    private static final int FLUSH_RECORDS = 100_000;
+    /**
+     * Longest time in milliseconds postings are kept in memory once the indexer has caught up with the log
+     */
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+    /**
+     * Longest time in milliseconds the indexer waits before checking the log for new records
+     */
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    /**
+     * Most runs kept before the two smallest neighbouring runs are merged
+     */
+    private static final int MAX_RUNS = 10;
+    /**
+     * Longest term indexed in bytes; longer words are not indexed
+     */
+    private static final int MAX_TERM_LENGTH = 64;
+    /**
+     * String put before the sender's ID to make the term searching by sender
+     */
+    public static final String SENDER_PREFIX = "from:";
+    /**
+     * String every run file's name starts with, followed by its sequence number
+     */
+    private static final String RUN_PREFIX = "run-";
+    /**
+     * String every run file's name ends with
+     */
+    private static final String RUN_SUFFIX = ".idx";
+
+    /**
+     * ChatLog being indexed
+     */
+    private final ChatLog log;
+    /**
+     * Path of the directory holding the runs
+     */
+    private final Path directory;
+    /**
+     * CopyOnWriteArrayList of the runs, oldest first, only changed while holding pendingLock
+     */
+    private final CopyOnWriteArrayList<IndexRun> runs = new CopyOnWriteArrayList<>();
+    /**
+     * ReentrantLock guarding pending, pendingStart, pendingRecords and the changes to runs, held by a search throughout
+     * so it sees every record exactly once
+     */
+    private final ReentrantLock pendingLock = new ReentrantLock();
+    /**
+     * HashMap with a term and its postings in the records indexed since the last run was written
+     */
+    private HashMap<String, IndexRun.Postings> pending = new HashMap<>();
+    /**
+     * long representing the log position of the first record in pending
+     */
+    private long pendingStart;
+    /**
+     * int representing the number of records in pending
+     */
+    private int pendingRecords = 0;
+    /**
+     * long representing the log position of the next record to index, only used by the indexer thread
+     */
+    private long position;
+    /**
+     * long representing the sequence number of the next run to write, only used by the indexer thread
+     */
+    private long nextRunSequence;
+    /**
+     * long representing the sequence number of the segment mapped in segment, only used by the indexer thread
+     */
+    private long segmentSequence = -1;
+    /**
+     * MappedByteBuffer of the segment being indexed, or null if none is mapped
+     */
+    private MappedByteBuffer segment;
+    /**
+     * long representing when the last run was written, only used by the indexer thread
+     */
+    private long lastFlush = System.currentTimeMillis();
+    /**
+     * Thread following the log
+     */
+    private final Thread indexer;
+    /**
+     * Boolean representing whether the indexer has been closed
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * The constructor opens the runs already written, which the indexer carries on from, and starts the indexer.
+     *
+     * @param log ChatLog to index, whose directory holds the runs in its index subdirectory
+     * @throws IOException If the directory cannot be created or read
+     */
+    public ChatLogIndexer(ChatLog log) throws IOException {
+        this.log = log;
+        this.directory = log.getDirectory().resolve("index");
+        Files.createDirectories(directory);
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, RUN_PREFIX + "*" + RUN_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        long lastRunSequence = -1;
+        List<IndexRun> found = new ArrayList<>();
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            lastRunSequence = Math.max(lastRunSequence, Long.parseLong(name.substring(RUN_PREFIX.length(), name.length() - RUN_SUFFIX.length())));
+            found.add(new IndexRun(path));
+        }
+        // Runs are either apart or one covers the other, if the server stopped before the runs merged into another
+        // were deleted, so sorting by start and then longest first puts every covered run after the run covering it
+        found.sort((first, second) -> first.getStart() != second.getStart()
+                ? Long.compare(first.getStart(), second.getStart()) : Long.compare(second.getEnd(), first.getEnd()));
+        for (IndexRun run : found) {
+            if (!runs.isEmpty() && run.getStart() < runs.get(runs.size() - 1).getEnd()) {
+                Files.delete(run.getPath());
+            } else {
+                runs.add(run);
+            }
+        }
+        this.nextRunSequence = lastRunSequence + 1;
+        this.position = runs.isEmpty() ? 0 : runs.get(runs.size() - 1).getEnd();
+        this.pendingStart = position;
+        this.indexer = new Thread(this, "ChatLogIndexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Follows the log until the indexer is closed, then writes out whatever is left in memory.
+     */
+    @Override
+    public void run() {
+        while (!closed) {
+            try {
+                if (!indexCommitted()) {
+                    if (pendingRecords > 0 && System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+                        flush();
+                    }
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MILLIS));
+                }
+            } catch (IOException e) { // Reached if a segment cannot be read or a run cannot be written, which is tried again
+                Utility.print("Chat log index failed: " + e.getMessage());
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS));
+            }
+        }
+        try {
+            indexCommitted();
+            if (pendingRecords > 0) {
+                flush();
+            }
+        } catch (IOException e) {
+            Utility.print("Chat log index failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Indexes the records committed since the last call, up to the end of one segment.
+     *
+     * @return Boolean representing whether anything was indexed or the indexer moved to another segment
+     * @throws IOException If a segment cannot be read or a run cannot be written
+     */
+    private boolean indexCommitted() throws IOException {
+        long committed = log.getCommittedPosition();
+        if (position >= committed) {
+            return false;
+        }
+        long sequence = position >>> 32;
+        int index = Math.max((int) position, ChatLog.SEGMENT_HEADER_SIZE);
+        if (segmentSequence != sequence) {
+            segment = null;
+            try (FileChannel channel = FileChannel.open(ChatLog.segmentPath(log.getDirectory(), sequence), StandardOpenOption.READ)) {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                segmentSequence = sequence;
+            } catch (NoSuchFileException e) { // Deleted by the retention limits before it was indexed, so it is skipped
+                position = ChatLog.positionOf(sequence + 1, 0);
+                return true;
+            }
+        }
+        long committedSequence = committed >>> 32;
+        int limit = sequence == committedSequence ? (int) committed : segment.capacity();
+        int next;
+        while (index < limit && (next = ChatLogReader.nextRecord(segment, index)) != -1) {
+            addRecord(ChatLog.positionOf(sequence, index), index);
+            index = next;
+            if (pendingRecords >= FLUSH_RECORDS) {
+                position = ChatLog.positionOf(sequence, index);
+                flush();
+            }
+        }
+        // A segment before the committed one is complete, so once its records end the next segment is started
+        position = sequence < committedSequence && index < limit ? ChatLog.positionOf(sequence + 1, 0) : ChatLog.positionOf(sequence, index);
+        return true;
+    }
+
+    /**
+     * Adds the terms of a record to the postings in memory.
+     *
+     * @param recordPosition long representing the log position of the record
+     * @param index          int representing the index of the record in segment
+     */
+    private void addRecord(long recordPosition, int index) {
+        int frameStart = index + ChatLog.RECORD_HEADER_SIZE;
+        int senderID = segment.getInt(frameStart + 5);
+        int payloadStart = frameStart + 4 + Frame.HEADER_SIZE;
+        int payloadEnd = frameStart + 4 + segment.getInt(frameStart);
+        pendingLock.lock();
+        try {
+            addTerm(SENDER_PREFIX + senderID, recordPosition);
+            int wordStart = -1;
+            for (int i = payloadStart; i <= payloadEnd; i++) {
+                boolean inWord = i < payloadEnd && isWordByte(segment.get(i));
+                if (inWord && wordStart == -1) {
+                    wordStart = i;
+                } else if (!inWord && wordStart != -1) {
+                    if (i - wordStart <= MAX_TERM_LENGTH) {
+                        byte[] word = new byte[i - wordStart];
+                        segment.get(wordStart, word);
+                        addTerm(normalise(word), recordPosition);
+                    }
+                    wordStart = -1;
+                }
+            }
+            pendingRecords++;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a record's position to a term's postings in memory. It must be called while holding pendingLock.
+     *
+     * @param term           String representing the term
+     * @param recordPosition long representing the log position of the record
+     */
+    private void addTerm(String term, long recordPosition) {
+        pending.computeIfAbsent(term, key -> new IndexRun.Postings()).add(recordPosition);
+    }
+
+    /**
+     * Writes the postings in memory out as a run, then merges runs if there are too many and deletes the runs whose
+     * records have all been deleted from the log.
+     *
+     * @throws IOException If the run cannot be written
+     */
+    private void flush() throws IOException {
+        HashMap<String, IndexRun.Postings> flushed;
+        long start;
+        pendingLock.lock();
+        try {
+            flushed = pending;
+            start = pendingStart;
+        } finally {
+            pendingLock.unlock();
+        }
+        byte[][] terms = new byte[flushed.size()][];
+        int count = 0;
+        for (String term : flushed.keySet()) {
+            terms[count++] = term.getBytes(StandardCharsets.UTF_8);
+        }
+        Arrays.sort(terms, Arrays::compareUnsigned);
+        IndexRun.Postings[] postings = new IndexRun.Postings[terms.length];
+        for (int i = 0; i < terms.length; i++) {
+            postings[i] = flushed.get(new String(terms[i], StandardCharsets.UTF_8));
+        }
+        Path path = nextRunPath();
+        IndexRun.write(path, start, position, terms, postings);
+        IndexRun run = new IndexRun(path);
+        pendingLock.lock();
+        try {
+            runs.add(run); // Added before pending is emptied, so a search always sees every record in one or the other
+            pending = new HashMap<>();
+            pendingStart = position;
+            pendingRecords = 0;
+        } finally {
+            pendingLock.unlock();
+        }
+        lastFlush = System.currentTimeMillis();
+        while (runs.size() > MAX_RUNS) {
+            mergeSmallest();
+        }
+        deleteExpiredRuns();
+    }
+
+    /**
+     * Merges the two neighbouring runs which are smallest together, so runs grow geometrically and each record's
+     * postings are only rewritten a few times.
+     *
+     * @throws IOException If the merged run cannot be written
+     */
+    private void mergeSmallest() throws IOException {
+        int smallest = 0;
+        for (int i = 1; i < runs.size() - 1; i++) {
+            if ((long) runs.get(i).size() + runs.get(i + 1).size() < (long) runs.get(smallest).size() + runs.get(smallest + 1).size()) {
+                smallest = i;
+            }
+        }
+        IndexRun earlier = runs.get(smallest);
+        IndexRun later = runs.get(smallest + 1);
+        IndexRun merged = IndexRun.merge(nextRunPath(), earlier, later);
+        pendingLock.lock(); // Searches hold the lock, so never see both the merged run and one of the runs merged
+        try {
+            runs.set(smallest, merged);
+            runs.remove(smallest + 1);
+        } finally {
+            pendingLock.unlock();
+        }
+        Files.delete(earlier.getPath());
+        Files.delete(later.getPath());
+    }
+
+    /**
+     * Deletes the runs which only point into segments the log has deleted.
+     *
+     * @throws IOException If the log's directory cannot be read or a run cannot be deleted
+     */
+    private void deleteExpiredRuns() throws IOException {
+        List<Path> segments = ChatLog.listSegments(log.getDirectory());
+        long oldest = segments.isEmpty() ? position : ChatLog.positionOf(ChatLog.sequenceOf(segments.get(0)), 0);
+        while (!runs.isEmpty() && runs.get(0).getEnd() <= oldest) {
+            IndexRun expired;
+            pendingLock.lock();
+            try {
+                expired = runs.remove(0);
+            } finally {
+                pendingLock.unlock();
+            }
+            Files.delete(expired.getPath());
+        }
+    }
+
+    /**
+     * Returns the path of the next run to write, and moves on to the sequence number after it.
+     *
+     * @return Path of the run's file
+     */
+    private Path nextRunPath() {
+        return directory.resolve(runName(nextRunSequence++));
+    }
+
+    /**
+     * Returns the file name of a run from its sequence number.
+     *
+     * @param sequence long representing the run's sequence number
+     * @return String representing the run's file name
+     */
+    private static String runName(long sequence) {
+        return String.format("%s%020d%s", RUN_PREFIX, sequence, RUN_SUFFIX);
+    }
+
+    /**
+     * Returns the positions of the most recent records using every term of a query.
+     *
+     * @param query String representing the words and "from:" terms to search for, separated by spaces
+     * @param limit int representing the most positions to return
+     * @return long array with the positions of the matching records, most recent first
+     */
+    public long[] search(String query, int limit) {
+        List<String> terms = new ArrayList<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.regionMatches(true, 0, SENDER_PREFIX, 0, SENDER_PREFIX.length())) {
+                terms.add(SENDER_PREFIX + word.substring(SENDER_PREFIX.length()).trim());
+                continue;
+            }
+            byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+            for (int i = 0, start = -1; i <= bytes.length; i++) { // The query is split into words as the broadcasts were
+                boolean inWord = i < bytes.length && isWordByte(bytes[i]);
+                if (inWord && start == -1) {
+                    start = i;
+                } else if (!inWord && start != -1) {
+                    terms.add(normalise(Arrays.copyOfRange(bytes, start, i)));
+                    start = -1;
+                }
+            }
+        }
+        if (terms.isEmpty()) {
+            return new long[0];
+        }
+        long[] matches = null;
+        for (String term : terms) {
+            long[] postings = postingsOf(term);
+            matches = matches == null ? postings : intersect(matches, postings);
+            if (matches.length == 0) {
+                break;
+            }
+        }
+        long[] newest = new long[Math.min(limit, matches.length)];
+        for (int i = 0; i < newest.length; i++) {
+            newest[i] = matches[matches.length - 1 - i];
+        }
+        return newest;
+    }
+
+    /**
+     * Returns every position of a term, from the runs and then from the postings in memory.
+     *
+     * @param term String representing the term
+     * @return long array with the term's positions in increasing order
+     */
+    private long[] postingsOf(String term) {
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        List<IndexRun> searched = new ArrayList<>();
+        List<Integer> entries = new ArrayList<>();
+        int count = 0;
+        pendingLock.lock(); // Held throughout, so a run being added is seen either in runs or in pending
+        try {
+            for (IndexRun run : runs) {
+                int entry = run.find(bytes);
+                if (entry != -1) {
+                    searched.add(run);
+                    entries.add(entry);
+                    count += run.countOf(entry);
+                }
+            }
+            IndexRun.Postings inMemory = pending.get(term);
+            long[] positions = new long[count + (inMemory == null ? 0 : inMemory.getCount())];
+            int filled = 0;
+            for (int i = 0; i < searched.size(); i++) {
+                filled = searched.get(i).decode(entries.get(i), positions, filled);
+            }
+            if (inMemory != null) {
+                inMemory.decode(positions, filled);
+            }
+            return positions;
+        } finally {
+            pendingLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the positions in both of two sorted arrays.
+     *
+     * @param first  long array with positions in increasing order
+     * @param second long array with positions in increasing order
+     * @return long array with the positions in both, in increasing order
+     */
+    private static long[] intersect(long[] first, long[] second) {
+        long[] both = new long[Math.min(first.length, second.length)];
+        int count = 0;
+        for (int i = 0, j = 0; i < first.length && j < second.length; ) {
+            if (first[i] < second[j]) {
+                i++;
+            } else if (first[i] > second[j]) {
+                j++;
+            } else {
+                both[count++] = first[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, count);
+    }
+
+    /**
+     * Returns the records at the given positions as a ChatClient would see them, skipping any the log has deleted.
+     *
+     * @param positions long array with the positions of records
+     * @return List of Strings representing the records, each preceded by the time it was sent
+     * @throws IOException If a segment cannot be read
+     */
+    public List<String> describe(long[] positions) throws IOException {
+        List<String> records = new ArrayList<>();
+        HashMap<Long, ByteBuffer> segments = new HashMap<>(); // The segments already mapped, as most results share a few
+        for (long recordPosition : positions) {
+            long sequence = recordPosition >>> 32;
+            ByteBuffer recordSegment = segments.get(sequence);
+            if (recordSegment == null && !segments.containsKey(sequence)) {
+                try (FileChannel channel = FileChannel.open(ChatLog.segmentPath(log.getDirectory(), sequence), StandardOpenOption.READ)) {
+                    recordSegment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                } catch (NoSuchFileException e) { // Deleted by the retention limits
+                    recordSegment = null;
+                }
+                segments.put(sequence, recordSegment);
+            }
+            if (recordSegment != null && ChatLogReader.nextRecord(recordSegment, (int) recordPosition) != -1) {
+                records.add(ChatLogReader.describeRecord(recordSegment, (int) recordPosition));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Returns whether a byte is part of a word: an ASCII letter or digit, or any byte of a non-ASCII character.
+     *
+     * @param b byte to check
+     * @return Boolean representing whether the byte is part of a word
+     */
+    private static boolean isWordByte(byte b) {
+        return b < 0 || ('a' <= b && b <= 'z') || ('A' <= b && b <= 'Z') || ('0' <= b && b <= '9');
+    }
+
+    /**
+     * Turns a word into its term by lower-casing its ASCII letters.
+     *
+     * @param word byte array with the word's UTF-8 bytes, which is changed
+     * @return String representing the term
+     */
+    private static String normalise(byte[] word) {
+        for (int i = 0; i < word.length; i++) {
+            if ('A' <= word[i] && word[i] <= 'Z') {
+                word[i] += 'a' - 'A';
+            }
+        }
+        return new String(word, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a summary of the index, to print in the console.
+     *
+     * @return String representing the number of runs and records waiting to be written
+     */
+    public String describe() {
+        long bytes = 0;
+        for (IndexRun run : runs) {
+            bytes += run.size();
+        }
+        return "Chat log index: " + runs.size() + " runs (" + bytes + " bytes), " + pendingRecords + " records in memory";
+    }
+
+    /**
+     * Stops following the log, once the log has been closed, and writes out whatever is left in memory.
+     *
+     * @throws InterruptedException If interrupted while waiting for the indexer to finish
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(indexer);
+        indexer.join();
+    }
+}
@@ -0,0 +1,182 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+/**
+ * This class reads the broadcasts logged by a ChatLog back out. The records sent in a time range are found by only
+ * reading the records' headers, then streamed to their destination straight from the segment files with
+ * FileChannel.transferTo, so the kernel copies them without them passing through the reader.
+ * It can also be run on its own, to export a time range to a file or print it in the console.
+ */
+public class ChatLogReader {
+
+    /**
+     * Streams every record sent in a time range to a channel, oldest first. The records are written exactly as they
+     * are in the segments: the time in milliseconds followed by the broadcast's binary frame.
+     *
+     * @param directory  Path of the directory holding the segments
+     * @param fromMillis long representing the earliest time of a record to stream, in milliseconds
+     * @param toMillis   long representing the latest time of a record to stream, in milliseconds
+     * @param target     WritableByteChannel to stream the records to
+     * @return long representing the number of bytes streamed
+     * @throws IOException If a segment cannot be read or the target cannot be written to
+     */
+    public static long transfer(Path directory, long fromMillis, long toMillis, WritableByteChannel target) throws IOException {
+        long transferred = 0;
+        for (Path path : ChatLog.listSegments(directory)) {
+            try (FileChannel segment = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer map = segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+                if (map.capacity() < ChatLog.SEGMENT_HEADER_SIZE || map.getInt(0) != ChatLog.MAGIC) {
+                    continue; // Not a segment, or one whose header was never written
+                }
+                if (map.getLong(8) > toMillis) {
+                    break; // This segment and every later one were created after the range
+                }
+                long start = -1;
+                int index = ChatLog.SEGMENT_HEADER_SIZE;
+                int end = index;
+                while (true) {
+                    int next = nextRecord(map, index);
+                    if (next == -1) {
+                        break;
+                    }
+                    long millis = map.getLong(index);
+                    if (millis > toMillis) {
+                        break;
+                    }
+                    if (millis >= fromMillis) {
+                        if (start == -1) {
+                            start = index;
+                        }
+                        end = next;
+                    }
+                    index = next;
+                }
+                for (long position = start; start != -1 && position < end; ) { // transferTo may stream less than asked
+                    position += segment.transferTo(position, end - position, target);
+                }
+                transferred += start == -1 ? 0 : end - start;
+            }
+        }
+        return transferred;
+    }
+
+    /**
+     * Returns the index of the record after the one at the given index, checking the record is complete.
+     *
+     * @param map   MappedByteBuffer of the segment
+     * @param index int representing the index of a record
+     * @return int representing the index of the next record, or -1 if there is no record at the index
+     */
+    static int nextRecord(ByteBuffer map, int index) {
+        int frameStart = index + ChatLog.RECORD_HEADER_SIZE;
+        if (frameStart + 4 > map.capacity() || map.getLong(index) == 0) {
+            return -1; // The end of the segment's records
+        }
+        int frameLength = map.getInt(frameStart);
+        if (frameLength < Frame.HEADER_SIZE || frameLength > map.capacity() - frameStart - 4) {
+            return -1; // A record torn by a crash, after which nothing was written
+        }
+        return frameStart + 4 + frameLength;
+    }
+
+    /**
+     * Parses a time entered as an ISO-8601 instant (such as 2024-01-31T12:00:00Z) or as milliseconds since the epoch.
+     *
+     * @param value String representing the time entered
+     * @return long representing the time in milliseconds
+     * @throws IllegalArgumentException If the value is neither
+     */
+    private static long parseTime(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) { // Not milliseconds, so it must be an instant
+            try {
+                return Instant.parse(value).toEpochMilli();
+            } catch (DateTimeParseException invalid) {
+                throw new IllegalArgumentException("Time " + value + " is neither an ISO-8601 instant nor milliseconds.");
+            }
+        }
+    }
+
+    /**
+     * Exports the broadcasts logged in a time range. Given a file, the records are streamed into it as they are;
+     * otherwise every broadcast is printed in the console as a ChatClient would see it, preceded by its time.
+     *
+     * @param args the directory of the log, the start and end of the range, and optionally the file to export to
+     */
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            Utility.print("Usage: java ChatLogReader <directory> <from> <to> [file], the times being ISO-8601 instants or milliseconds.");
+            return;
+        }
+        try {
+            Path directory = Paths.get(args[0]);
+            long fromMillis = parseTime(args[1]);
+            long toMillis = parseTime(args[2]);
+            if (args.length > 3) {
+                try (FileChannel file = FileChannel.open(Paths.get(args[3]), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    Utility.print("Exported " + transfer(directory, fromMillis, toMillis, file) + " bytes.");
+                }
+            } else {
+                print(directory, fromMillis, toMillis);
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            Utility.print(e.getMessage());
+        }
+    }
+
+    /**
+     * Prints every broadcast sent in a time range in the console, as a ChatClient would see it.
+     *
+     * @param directory  Path of the directory holding the segments
+     * @param fromMillis long representing the earliest time of a broadcast to print, in milliseconds
+     * @param toMillis   long representing the latest time of a broadcast to print, in milliseconds
+     * @throws IOException If a segment cannot be read
+     */
+    private static void print(Path directory, long fromMillis, long toMillis) throws IOException {
+        for (Path path : ChatLog.listSegments(directory)) {
+            try (FileChannel segment = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer map = segment.map(FileChannel.MapMode.READ_ONLY, 0, segment.size());
+                if (map.capacity() < ChatLog.SEGMENT_HEADER_SIZE || map.getInt(0) != ChatLog.MAGIC) {
+                    continue;
+                }
+                for (int index = ChatLog.SEGMENT_HEADER_SIZE, next; (next = nextRecord(map, index)) != -1; index = next) {
+                    long millis = map.getLong(index);
+                    if (millis < fromMillis || millis > toMillis) {
+                        continue;
+                    }
+                    Utility.print(describeRecord(map, index));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a record as a ChatClient would see the broadcast, preceded by the time it was sent.
+     *
+     * @param segment ByteBuffer of the segment holding the record
+     * @param index   int representing the index of the record, which must be complete
+     * @return String representing the record
+     * @throws IOException If the record's frame type is not a MessageType
+     */
+    static String describeRecord(ByteBuffer segment, int index) throws IOException {
+        int frameStart = index + ChatLog.RECORD_HEADER_SIZE;
+        MessageType type = Frame.typeOf(segment.get(frameStart + 4));
+        int senderID = segment.getInt(frameStart + 5);
+        int payloadStart = frameStart + 4 + Frame.HEADER_SIZE;
+        int payloadLength = segment.getInt(frameStart) - Frame.HEADER_SIZE;
+        ByteBuffer line = ByteBuffer.allocate(Frame.putTextLine(null, type, senderID, segment, payloadStart, payloadLength));
+        Frame.putTextLine(line, type, senderID, segment, payloadStart, payloadLength);
+        // The line is decoded as the binary protocol's charset, which the payload is logged in
+        return Instant.ofEpochMilli(segment.getLong(index)) + " " + new String(line.array(), Frame.PAYLOAD_CHARSET).stripTrailing();
+    }
+}
@@ -1,8 +1,22 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Vector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class represents the multi-threaded server.
@@ -10,29 +24,136 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class ChatServer {
 
     /**
-     * Vector storing ServerClientHandler threads representing the clients
+     * Number of pending connections the server socket queues, large enough for bursts of thousands of clients
      */
-    private final Vector<ServerClientHandler> clientThreadVector = new Vector<>();
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    /**
+     * ClientRegistry storing the ClientHandlers representing the clients, indexed by ID, type and mode
+     */
+    private final ClientRegistry clientRegistry;
     /**
      * AtomicInteger representing the ID that should be assigned to the next client that joins
      */
     private final AtomicInteger clientID = new AtomicInteger(0);
+    /**
+     * ServerStats counting the decisions the server makes about its clients
+     */
+    private final ServerStats stats = new ServerStats();
+    /**
+     * ChatLog every broadcast is logged in, or null if broadcasts are not logged
+     */
+    private final ChatLog chatLog;
+    /**
+     * ChatLogIndexer searching the chat log, or null if broadcasts are not logged
+     */
+    private final ChatLogIndexer chatLogIndexer;
+    /**
+     * Most broadcasts a search prints
+     */
+    private static final int SEARCH_RESULTS = 20;
+    /**
+     * Length in milliseconds of a tick of the timing wheel, which is how late a timed task may run
+     */
+    private static final long TIMING_WHEEL_TICK_MILLIS = 100;
+    /**
+     * Number of ticks in a turn of the timing wheel, so a turn lasts longer than the default heartbeat interval
+     */
+    private static final int TIMING_WHEEL_TICKS = 512;
+    /**
+     * TimingWheel running the server's timed tasks, such as checking that every client is still there
+     */
+    private final TimingWheel timingWheel = new TimingWheel("TimingWheel", TIMING_WHEEL_TICK_MILLIS, TIMING_WHEEL_TICKS);
+    /**
+     * EnumMap with a SenderType and the TokenBucket shared by all the clients of that type, for the types which have
+     * a limit
+     */
+    private final EnumMap<SenderType, TokenBucket> typeRateLimits = new EnumMap<>(SenderType.class);
     /**
      * ServerSocket representing the server which is used to accept the client connections
      */
     private ServerSocket mySocket;
+    /**
+     * ServerSocketChannel which mySocket belongs to when the server runs in nio mode
+     */
+    private ServerSocketChannel myChannel;
+    /**
+     * ServerConfig representing the settings the server was started with
+     */
+    private final ServerConfig config;
+    /**
+     * ServerMode representing how the server handles its client connections
+     */
+    private final ServerMode serverMode;
+    /**
+     * Array of the ServerEventLoops which share the client connections when the server runs in nio mode, or null
+     * in the other modes. Each loop owns the connections handed to it and fans broadcasts out to them.
+     */
+    private ServerEventLoop[] eventLoops;
+    /**
+     * Set of the ServerClientHandlers whose client has not sent its type yet, which are not in the clientRegistry, so
+     * the shutdown closes them itself
+     */
+    private final Set<ClientHandler> awaitingHandshake = ConcurrentHashMap.newKeySet();
+    /**
+     * ExecutorService which runs the ServerClientHandlers and the ServerUserInput
+     */
+    private final ExecutorService clientExecutor;
+    /**
+     * ScheduledExecutorService which delays the clients' writers by the flush delay, or null if there is no delay
+     */
+    private final ScheduledExecutorService flushScheduler;
+    /**
+     * ScheduledExecutorService which flushes the batches of messages to the DoDClients once the batch interval has
+     * passed, or null if batches are flushed as soon as a message is added
+     */
+    private final ScheduledExecutorService DoDBatchScheduler;
+    /**
+     * Number of locks the clients are spread over, a power of two so a client's lock is found with a mask
+     */
+    private static final int CLIENT_LOCK_STRIPES = 64;
+    /**
+     * ReentrantLocks guarding the changes to a single client's DoD game and presence, the client with ID i using
+     * clientLocks[i % CLIENT_LOCK_STRIPES]. Operations on different clients (and broadcasts, which take no lock) run
+     * concurrently. Locks are used rather than synchronized blocks as a virtual thread blocked inside a synchronized
+     * block would pin its carrier thread.
+     */
+    private final ReentrantLock[] clientLocks = new ReentrantLock[CLIENT_LOCK_STRIPES];
+    /**
+     * Longest time in milliseconds to wait for the clients' handlers and the event loops to finish once every
+     * connection has been closed, after which the server shuts down without them
+     */
+    private static final long SHUTDOWN_CLOSE_MILLIS = 1000;
     /**
      * Boolean representing whether the server is being closed
      */
-    private Boolean serverShutDown = false;
+    private volatile boolean serverShutDown = false;
 
     /**
-     * The constructor initialises mySocket (after validation).
+     * The constructor initialises config, serverMode and mySocket (after validation).
      *
-     * @param consolePort String representing the port number entered into the console (default is "14001" if none was entered)
+     * @param config ServerConfig representing the settings entered into the console (defaults are used for any not entered)
      */
-    public ChatServer(String consolePort) {
-        String portString = consolePort;
+    public ChatServer(ServerConfig config) {
+        this.config = config;
+        this.serverMode = config.getServerMode();
+        // Outside nio mode there is a thread per client rather than event loops, so every client is in the one shard
+        this.clientRegistry = new ClientRegistry(serverMode == ServerMode.nio ? config.getEventLoops() : 1, config.getHistoryMessages());
+        for (SenderType senderType : SenderType.values()) {
+            RateLimit typeRateLimit = config.getTypeRateLimit(senderType);
+            if (typeRateLimit != null) {
+                typeRateLimits.put(senderType, typeRateLimit.newBucket());
+            }
+        }
+        for (int i = 0; i < CLIENT_LOCK_STRIPES; i++) {
+            clientLocks[i] = new ReentrantLock();
+        }
+        this.clientExecutor = createClientExecutor(serverMode);
+        this.flushScheduler = config.getFlushDelayMillis() > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+        this.DoDBatchScheduler = config.getDoDBatchMillis() > 0 ? Executors.newSingleThreadScheduledExecutor() : null;
+        this.chatLog = openChatLog(config);
+        this.chatLogIndexer = openChatLogIndexer(chatLog);
+        String portString = config.getPortString();
         while (true) {
             try {
                 createServerSocket(portString); // Attempts hosting a server using the portString supplied
@@ -48,25 +169,71 @@ public class ChatServer {
     }
 
     /**
-     * The main method, creates an instance of ChatServer using console arguments as input for portString
-     * ("14001" as default) and calls the go method
+     * Opens the chat log if one was asked for.
+     *
+     * @param config ServerConfig representing the settings entered into the console
+     * @return ChatLog every broadcast is logged in, or null if none was asked for or it could not be opened
+     */
+    private static ChatLog openChatLog(ServerConfig config) {
+        if (config.getChatLogDirectory() == null) {
+            return null;
+        }
+        try {
+            return new ChatLog(Paths.get(config.getChatLogDirectory()), config.getChatLogRetainBytes(), config.getChatLogRetainMillis());
+        } catch (IOException e) { // This is reached if the directory or its first segment cannot be created
+            Utility.print("Chat log could not be opened in " + config.getChatLogDirectory() + ". Broadcasts are not logged.");
+            return null;
+        }
+    }
+
+    /**
+     * Opens the index of the chat log, which carries on from where it was when the server last stopped.
+     *
+     * @param chatLog ChatLog to index, or null if broadcasts are not logged
+     * @return ChatLogIndexer searching the chat log, or null if there is no log or the index could not be opened
+     */
+    private static ChatLogIndexer openChatLogIndexer(ChatLog chatLog) {
+        if (chatLog == null) {
+            return null;
+        }
+        try {
+            return new ChatLogIndexer(chatLog);
+        } catch (IOException e) { // This is reached if the index's directory or one of its runs cannot be read
+            Utility.print("Chat log index could not be opened: " + e.getMessage() + ". The log cannot be searched.");
+            return null;
+        }
+    }
+
+    /**
+     * The main method, creates an instance of ChatServer using console arguments as input for its settings
+     * ("-csp" port "14001" and "-csm" mode "thread" as defaults) and calls the go method
      *
      * @param args arguments received from commandline
      */
     public static void main(String[] args) {
-        String portString = "14001"; // Default portString is set to 14001 as required
-        /*
-        Loops through all arguments and checks for "-csp" at which point it assigns the portString to the next argument.
-        Hence, if multiple "-csp" are entered, the last "-csp" instance will be the determining one.
-         */
-        for (int i = 0; i < args.length - 1; i++) {
-            if (args[i].equals("-csp")) {
-                portString = args[i + 1];
+        ServerConfig config = ServerConfig.fromArgs(args); // Reads the settings entered into the console
+        Utility.print(config.toString());
+        ChatServer myChatServer = new ChatServer(config);// Creates an instance of ChatServer
+        myChatServer.go(); // Calls the go method
+    }
+
+    /**
+     * Creates the executor which runs the ServerClientHandlers and the ServerUserInput.
+     * In virtual mode every task gets its own virtual thread, otherwise every task gets its own platform thread.
+     *
+     * @param serverMode ServerMode representing how the server handles its client connections
+     * @return ExecutorService which runs the ServerClientHandlers and the ServerUserInput
+     */
+    private static ExecutorService createClientExecutor(ServerMode serverMode) {
+        if (serverMode == ServerMode.virtual) {
+            try {
+                // Looked up reflectively so the server still compiles and runs on releases without virtual threads
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) { // This is reached if the Java release has no virtual threads
+                Utility.print("Virtual threads are not supported by this Java release. Using platform threads.");
             }
         }
-        Utility.print("port: " + portString);
-        ChatServer myChatServer = new ChatServer(portString);// Creates an instance of ChatServer
-        myChatServer.go(); // Calls the go method
+        return Executors.newCachedThreadPool();
     }
 
     /**
@@ -81,7 +248,13 @@ public class ChatServer {
         if (!(1024 <= port && port <= 65535)) {
             throw new NumberFormatException();
         }
-        this.mySocket = new ServerSocket(port);
+        if (serverMode == ServerMode.nio) {
+            this.myChannel = ServerSocketChannel.open(); // Accepting stays blocking, only the client channels are multiplexed
+            myChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+            this.mySocket = myChannel.socket();
+        } else {
+            this.mySocket = new ServerSocket(port, ACCEPT_BACKLOG);
+        }
     }
 
     /**
@@ -90,9 +263,23 @@ public class ChatServer {
     public void go() {
         Utility.print("Server Listening...");
         // Creates the ServerUserInput thread which deals with reading the server's user input
-        ServerUserInput serverUserThread = new ServerUserInput(this);
-        serverUserThread.start();
+        clientExecutor.execute(new ServerUserInput(this));
+        if (config.getEmbeddedDoDThreads() > 0) { // The server plays DoD games itself, alongside any DoDClients which connect
+            EmbeddedDoDWorker embeddedDoD = new EmbeddedDoDWorker(this, clientID.getAndIncrement(), config.getEmbeddedDoDThreads());
+            addClient(embeddedDoD);
+            Utility.print("Embedded DoD engine started as client " + embeddedDoD.getClientID() + ".");
+        }
         try {
+            if (serverMode == ServerMode.nio) {
+                eventLoops = new ServerEventLoop[config.getEventLoops()];
+                for (int i = 0; i < eventLoops.length; i++) {
+                    eventLoops[i] = new ServerEventLoop(this, i); // Creates the threads which share the client connections
+                    eventLoops[i].start();
+                }
+                while (true) {
+                    acceptChannel();
+                } // Accept a connection from a client and hands it to one of the event loops
+            }
             while (true) {
                 acceptClient();
             } // Accept a connection from a client and creates a thread to handle with their requests
@@ -102,46 +289,274 @@ public class ChatServer {
     }
 
     /**
-     * This method is responsible for accepting clients to the server and creating a thread that handles with their requests
+     * This method is responsible for accepting clients to the server and running a handler that handles with their requests.
+     * The handler reads the client's type on its own thread, so a client which never sends it cannot hold up the
+     * connections accepted after it, and is closed once the handshake deadline passes.
      *
      * @throws IOException if the server is closed gracefully
      */
     private void acceptClient() throws IOException {
         Socket clientSocket = mySocket.accept(); // Accepts a connection from a client
         Utility.print("Server accepted connection on: " + mySocket.getLocalPort() + " ; " + clientSocket.getPort());
-        ServerClientHandler newClientThread = new ServerClientHandler(clientSocket, this, clientID.get()); // Creates a new thread to handle with the client
-        clientThreadVector.add(newClientThread);
-        checkFirstDoDThread(clientID.get()); // Checks if the client which just connected is another DoDClient. If so it closes the connection with it
-        newClientThread.start();
-        clientID.incrementAndGet();
+        // The ID is taken and advanced in one atomic step so no two clients can ever be handed the same ID
+        ServerClientHandler newClientThread = new ServerClientHandler(clientSocket, this, clientID.getAndIncrement()); // Creates a new handler to handle with the client
+        awaitingHandshake.add(newClientThread);
+        newClientThread.startHandshakeDeadline();
+        clientExecutor.execute(newClientThread); // Runs the handler on its own (platform or virtual) thread
     }
 
     /**
-     * Forwards the client's message to the correct method depending on the message type
+     * Records that a ServerClientHandler has read its client's type, or failed to, so the handler is added to the
+     * server if it has one.
      *
-     * @param senderID    int representing the sender client's ID
-     * @param messageType MessageType representing the message's type
-     * @param message     String representing the message to be sent
+     * @param clientHandler ServerClientHandler whose handshake is over
      */
-    public void dealWithClientMsg(int senderID, MessageType messageType, String message) {
-        switch (messageType) {
+    void handshakeEnded(ServerClientHandler clientHandler) {
+        awaitingHandshake.remove(clientHandler);
+        if (clientHandler.getClientType() != null) { // The client is only added once it has sent a valid type
+            addClient(clientHandler);
+        }
+    }
+
+    /**
+     * This method is responsible for accepting clients to the server in nio mode and handing their channel to one of
+     * the event loops in turn, which reads their type and then adds them to the server
+     *
+     * @throws IOException if the server is closed gracefully
+     */
+    private void acceptChannel() throws IOException {
+        SocketChannel clientChannel = myChannel.accept(); // Accepts a connection from a client
+        Utility.print("Server accepted connection on: " + mySocket.getLocalPort() + " ; " + clientChannel.socket().getPort());
+        int newClientID = clientID.getAndIncrement();
+        eventLoops[newClientID % eventLoops.length].register(clientChannel, newClientID).startHandshakeDeadline(); // Spreads the clients evenly over the loops
+    }
+
+    /**
+     * Adds a client whose type is known to the server
+     *
+     * @param clientHandler ClientHandler representing the client which has connected
+     */
+    public void addClient(ClientHandler clientHandler) {
+        clientRegistry.add(clientHandler);
+        if (serverShutDown) { // Checked after adding, so a client the shutdown did not see is closed here instead
+            try {
+                clientHandler.closeConnection();
+            } catch (IOException e) { // This is reached if the client socket fails to close
+                Utility.print("Client " + clientHandler.getClientID() + " failed to close.");
+            }
+            return;
+        }
+        clientHandler.startHeartbeat(); // Checks from now on that the client is still there
+    }
+
+    /**
+     * Returns the timing wheel running the server's timed tasks, which any part of the server may schedule its own on.
+     *
+     * @return TimingWheel running the server's timed tasks
+     */
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Returns the settings the server was started with.
+     *
+     * @return ServerConfig representing the settings the server was started with
+     */
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Returns the counters of the decisions the server made about its clients.
+     *
+     * @return ServerStats containing the counters
+     */
+    public ServerStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns the token bucket shared by all the clients of a type.
+     *
+     * @param senderType SenderType representing the type of the clients
+     * @return TokenBucket limiting how fast the clients of that type may send messages together, or null if there is no limit
+     */
+    public TokenBucket getTypeBucket(SenderType senderType) {
+        return typeRateLimits.get(senderType);
+    }
+
+    /**
+     * Runs a client's writer on the executor. If a flush delay was configured the writer is only started once the
+     * delay has passed, so the messages queued in the meantime are written and flushed together.
+     *
+     * @param writer Runnable which writes a client's queued messages
+     * @throws java.util.concurrent.RejectedExecutionException If the server is shutting down
+     */
+    public void runWriter(Runnable writer) {
+        if (flushScheduler == null) {
+            clientExecutor.execute(writer);
+        } else {
+            flushScheduler.schedule(() -> clientExecutor.execute(writer), config.getFlushDelayMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Flushes the batch of messages to a DoDClient, whose last batch is still waiting for its answers, once the interval
+     * since that batch has passed, so the messages added meanwhile are sent in the same frame; or straight away if the
+     * interval has already passed or there is none.
+     *
+     * @param link           DoDLink representing the link with the DoDClient
+     * @param lastFlushNanos long representing the System.nanoTime() at which the link last sent a batch
+     */
+    public void scheduleDoDFlush(DoDLink link, long lastFlushNanos) {
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(config.getDoDBatchMillis()) - (System.nanoTime() - lastFlushNanos);
+        if (DoDBatchScheduler == null || delayNanos <= 0) {
+            link.flush();
+            return;
+        }
+        try {
+            DoDBatchScheduler.schedule(link::flush, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) { // This is reached if the server is shutting down, so the DoDClient is being closed
+            // Nothing more is sent to the DoDClient
+        }
+    }
+
+    /**
+     * Prints every connected client with their type, mode and how many messages are queued for them, so the
+     * server's user can see which clients are falling behind.
+     */
+    public void printClients() {
+        Utility.print("Connected clients: " + clientRegistry.getAll().size() + " in " + clientRegistry.getRoomCount() + " rooms");
+        for (ClientHandler clientThread : clientRegistry.getAll()) {
+            Utility.print("Client " + clientThread.getClientID() + " (" + clientThread.getClientType() + ", "
+                    + clientThread.getProtocol() + ", " + (clientThread.getInDoDGame() ? "DoD" : "broadcast") + ", rooms "
+                    + roomNames(clientThread) + "): "
+                    + clientThread.getQueuedMessages() + " messages / " + clientThread.getQueuedBytes() + " bytes queued, "
+                    + clientThread.getDroppedMessages() + " dropped, " + clientThread.getThrottledMessages() + " over rate limit");
+        }
+    }
+
+    /**
+     * Prints how many broadcasts the chat log has logged and forced to the disk.
+     */
+    public void printChatLog() {
+        Utility.print(chatLog == null ? "Broadcasts are not logged." : chatLog.describe());
+        if (chatLogIndexer != null) {
+            Utility.print(chatLogIndexer.describe());
+        }
+    }
+
+    /**
+     * Prints the most recent logged broadcasts containing every word of a query, and sent by the given client if the
+     * query includes "from:" followed by a client's ID. The log's index is used, so the log itself is not read.
+     *
+     * @param query String representing the words to search for, separated by spaces
+     */
+    public void searchChatLog(String query) {
+        if (chatLogIndexer == null) {
+            Utility.print("Broadcasts are not logged, so cannot be searched.");
+            return;
+        }
+        long start = System.nanoTime();
+        long[] positions = chatLogIndexer.search(query, SEARCH_RESULTS);
+        long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        try {
+            for (String record : chatLogIndexer.describe(positions)) {
+                Utility.print(record);
+            }
+        } catch (IOException e) { // This is reached if a segment of the log cannot be read
+            Utility.print("Chat log could not be read: " + e.getMessage());
+        }
+        Utility.print(positions.length + " broadcasts found in " + micros + "us (most recent first, at most " + SEARCH_RESULTS + ").");
+    }
+
+    /**
+     * Prints every DoDClient with the number of games it is running, so the server's user can see how evenly the
+     * games are spread.
+     */
+    public void printDoDWorkers() {
+        ClientHandler[] DoDWorkers = clientRegistry.getDoDWorkers().getWorkers();
+        if (DoDWorkers.length == 0) {
+            Utility.print("No DoD client is connected.");
+            return;
+        }
+        int[] games = new int[DoDWorkers.length];
+        for (ClientHandler clientThread : clientRegistry.getDoDModeClients()) {
+            ClientHandler DoDWorker = clientThread.getDoDWorker();
+            for (int i = 0; i < DoDWorkers.length; i++) {
+                if (DoDWorkers[i] == DoDWorker) {
+                    games[i]++;
+                }
+            }
+        }
+        for (int i = 0; i < DoDWorkers.length; i++) {
+            Utility.print("DoD client " + DoDWorkers[i].getClientID() + ": " + games[i] + " games");
+        }
+    }
+
+    /**
+     * Prints the load of every event loop, so the server's user can see how evenly the clients are spread.
+     */
+    public void printEventLoops() {
+        if (eventLoops == null) {
+            Utility.print("Event loops are only used in nio mode.");
+            return;
+        }
+        for (ServerEventLoop loop : eventLoops) {
+            Utility.print(loop.describeLoad());
+        }
+    }
+
+    /**
+     * Returns the names of the rooms a client is in, the room it talks in being last.
+     *
+     * @param clientThread ClientHandler representing the client
+     * @return String representing the names of the rooms, separated by commas
+     */
+    private static String roomNames(ClientHandler clientThread) {
+        StringBuilder names = new StringBuilder("[");
+        for (Room room : clientThread.getRooms()) {
+            names.append(names.length() > 1 ? "," : "").append(room.getName());
+        }
+        return names.append("]").toString();
+    }
+
+    /**
+     * Forwards the client's message to the correct method depending on the message type.
+     * The envelope is only valid until this method returns, so every recipient is sent its own encoding of the message.
+     *
+     * @param envelope Envelope representing the message received, with its type, sender and target
+     */
+    public void dealWithClientMsg(Envelope envelope) {
+        switch (envelope.getType()) {
             case broadcastClient:
-                clientBroadcast(message);
-                break;
             case broadcastBot:
-                botBroadcast(message);
+                broadcast(envelope);
                 break;
             case DoDNewGame:
-                createNewDoDGame(senderID);
+                createNewDoDGame(envelope.getSenderID());
                 break;
             case DoDMidGame:
-                forwardMsgToDoDClient(message);
+                forwardMsgToDoDClient(envelope);
                 break;
             case DoDToClient:
-                sendClientDoDInfo(message);
+                sendClientDoDInfo(envelope);
                 break;
             case DoDToClientMetaData:
-                DoDMetaData(message);
+                DoDMetaData(envelope.getSenderID(), envelope.getTargetID(), envelope.isGameRunning());
+                break;
+            case DoDResponse:
+                sendClientDoDResponse(envelope);
+                break;
+            case joinRoom:
+                joinRoom(envelope.getSenderID(), envelope.getPayload().trim());
+                break;
+            case leaveRoom:
+                leaveRoom(envelope.getSenderID(), envelope.getPayload().trim());
+                break;
+            case directMessage:
+                sendDirectMessage(envelope);
                 break;
         }
     }
@@ -149,202 +564,474 @@ public class ChatServer {
     /**
      * Forwards the message from DoD to the correct client
      *
-     * @param message String representing the client ID and message to be sent, separated by a space
+     * @param envelope Envelope representing the message from DoD, addressed to its target client
      */
-    private void sendClientDoDInfo(String message) {
-        String[] messageSplit = message.split(" ", 2);
-        ServerClientHandler clientThread = getThreadFromID(Integer.parseInt(messageSplit[0])); // Retrieves the ServerClientHandler instance that corresponds with the clientID given
-        if (clientThread != null) { // A guard to make sure that if the client disconnected while this is called, the process is discontinued
-            clientThread.sendMessage(messageSplit[1]); // Forwards the message to the client with the corresponding client ID
+    private void sendClientDoDInfo(Envelope envelope) {
+        ClientHandler clientThread = getThreadFromID(envelope.getTargetID()); // Retrieves the ClientHandler instance that corresponds with the clientID given
+        if (clientThread != null && isDoDWorkerOf(clientThread, envelope.getSenderID())) { // A guard to make sure that if the client disconnected while this is called, the process is discontinued
+            clientThread.forward(envelope); // Forwards the message to the client with the corresponding client ID
         }
     }
 
     /**
-     * Changes the correct client's mode to broadcast mode if the game is over
+     * Forwards a whole turn's output from DoD to the correct client in one message, and returns the client to broadcast
+     * mode if the game is over. The client is only looked up once, however many lines the output has, and a response
+     * whose sequence number is from before the client's current game started is dropped.
      *
-     * @param message String representing the client ID and whether the game is over, separated by a space
-     */
-    private void DoDMetaData(String message) {
-        String[] messageSplit = message.split(" ", 2);
-        if (!Boolean.parseBoolean(messageSplit[1])) { // If the DoD game has ended, then the client is returned to broadcast mode
-            int receiverID = Integer.parseInt(messageSplit[0]);
-            removeClientFromDoD(receiverID); // Client is removed from the DoDClient's side
-            ServerClientHandler clientThread = getThreadFromID(receiverID); // Retrieves the ServerClientHandler instance that corresponds with the clientID given
-            if (clientThread != null) { // A guard to make sure that if the client disconnected while this is called, the process is discontinued
-                clientThread.sendMessage("Server: Returning to broadcast mode");
-                clientThread.setInDoDGame(false); // Client is returned to broadcast mode
+     * @param envelope Envelope representing the response from DoD, addressed to its target client
+     */
+    private void sendClientDoDResponse(Envelope envelope) {
+        if (envelope.isGameRunning()) {
+            ClientHandler clientThread = getThreadFromID(envelope.getTargetID());
+            if (clientThread != null && isDoDWorkerOf(clientThread, envelope.getSenderID())
+                    && clientThread.isCurrentDoDGame(envelope.getSequence())) {
+                clientThread.forward(envelope);
             }
+            return;
+        }
+        ReentrantLock clientLock = lockFor(envelope.getTargetID());
+        clientLock.lock();
+        try {
+            ClientHandler clientThread = getThreadFromID(envelope.getTargetID()); // Retrieves the ClientHandler instance that corresponds with the clientID given
+            if (clientThread != null && isDoDWorkerOf(clientThread, envelope.getSenderID()) // A guard to make sure that if the client disconnected while this is called, the process is discontinued
+                    && clientThread.isCurrentDoDGame(envelope.getSequence())) {
+                clientThread.forward(envelope); // The game's last output reaches the client before it leaves DoD mode
+                endDoDGame(clientThread);
+            }
+        } finally {
+            clientLock.unlock();
         }
     }
 
     /**
-     * This method forwards the message to all clients which are not in a DoD game and all chatBots.
+     * Returns whether a DoDClient runs the given client's DoD game, so a DoDClient cannot send to or end the game of a
+     * client it does not run.
      *
-     * @param message String containing the client's message
+     * @param clientThread ClientHandler representing the client
+     * @param DoDWorkerID  int representing the ID of the DoDClient
+     * @return Boolean representing whether the client is in a game run by the DoDClient
      */
-    private synchronized void clientBroadcast(String message) {
-        for (ServerClientHandler clientThread : clientThreadVector) {
-            if (!(clientThread.getInDoDGame()) && clientThread.getClientType() != SenderType.DoDBot) { // Checks the client is not in a DoD game and is not the DoDClient
-                clientThread.sendMessage(message); // Sends the client the message
-            }
-        }
+    private static boolean isDoDWorkerOf(ClientHandler clientThread, int DoDWorkerID) {
+        ClientHandler DoDWorker = clientThread.getDoDWorker();
+        return DoDWorker != null && DoDWorker.getClientID() == DoDWorkerID;
     }
 
     /**
-     * This method forwards the message to all ChatClients which are not in a DoD game.
-     * The message is not sent to the chatBots intentionally as the bots do not need to respond to their own messages, only to the clients
+     * Changes the correct client's mode to broadcast mode if the game is over
      *
-     * @param message String containing the client's message
+     * @param DoDWorkerID int representing the ID of the DoDClient which ran the game
+     * @param receiverID  int representing the ID of the client playing the game
+     * @param gameRunning Boolean representing whether the game is still running
      */
-    private synchronized void botBroadcast(String message) {
-        for (ServerClientHandler clientThread : clientThreadVector) {
-            if (clientThread.getClientType() == SenderType.client && !(clientThread.getInDoDGame())) { // Checks the ChatClient is not in a DoD game
-                clientThread.sendMessage(message); // Sends the client the message
+    private void DoDMetaData(int DoDWorkerID, int receiverID, boolean gameRunning) {
+        if (gameRunning) {
+            return;
+        } // If the DoD game has ended, then the client is returned to broadcast mode
+        ReentrantLock clientLock = lockFor(receiverID);
+        clientLock.lock();
+        try {
+            ClientHandler clientThread = getThreadFromID(receiverID); // Retrieves the ClientHandler instance that corresponds with the clientID given
+            if (clientThread != null && isDoDWorkerOf(clientThread, DoDWorkerID)) { // A guard to make sure that if the client disconnected while this is called, the process is discontinued
+                endDoDGame(clientThread);
             }
+        } finally {
+            clientLock.unlock();
         }
     }
 
     /**
-     * This method forwards the message sent by the client to the DoDClient
+     * Ends a client's DoD game once the DoDClient running it says it is over, returning the client to broadcast mode.
+     * It must be called while holding the client's lock.
      *
-     * @param message String containing the client's message
+     * @param clientThread ClientHandler representing the client whose game is over
      */
-    private synchronized void forwardMsgToDoDClient(String message) {
-        ServerClientHandler DoDClient = findFirstDoDClient(); // Retrieves the ServerClientHandler instance that corresponds with the DoDClient
-        if (DoDClient != null) {
-            DoDClient.sendMessage(message);
-        } // Sends a message to the DoDClient with the client ID and their message, separated by a space
+    private void endDoDGame(ClientHandler clientThread) {
+        removeClientFromDoD(clientThread); // Client is removed from the DoDClient's side
+        returnToBroadcastMode(clientThread); // Before the notice, so a JOIN sent as soon as it arrives starts a new game
+        clientThread.sendMessage("Server: Returning to broadcast mode");
     }
 
     /**
-     * This method attempts to create a new game in the DoDClient corresponding with the client ID given.
-     * The client is then updated to be in DoD mode, which means they will not receive broadcasts.
+     * Returns a client to broadcast mode, so it receives broadcasts again and its next game may be placed on any DoDClient.
+     * It must be called while holding the client's lock.
      *
-     * @param clientID int representing the client's ID
+     * @param clientThread ClientHandler representing the client whose game is over
      */
-    private synchronized void createNewDoDGame(int clientID) {
-        ServerClientHandler clientThread = getThreadFromID(clientID); // Retrieves the ServerClientHandler instance that corresponds with the clientID given
-        if (clientThread == null) {
+    private void returnToBroadcastMode(ClientHandler clientThread) {
+        clientRegistry.setInDoDGame(clientThread, false);
+        clientThread.setDoDWorker(null);
+    }
+
+    /**
+     * This method forwards a broadcast to its audience in the room the sender is talking in. A ChatClient's message
+     * goes to all clients in the room which are not in a DoD game and all chatBots in the room. A ChatBot's message
+     * only goes to the ChatClients in the room which are not in a DoD game, as the bots do not need to respond to
+     * their own messages, only to the clients.
+     * In nio mode the message is encoded once and handed to every event loop with recipients, each of which fans it
+     * out to its own clients, so a broadcast is spread over all the loops rather than left to the sender's loop.
+     *
+     * @param envelope Envelope representing the message, encoded once for all the clients
+     */
+    private void broadcast(Envelope envelope) {
+        Room room = envelope.getRoom();
+        if (room == null) { // The sender left every room, so there is no one to send the message to
+            ClientHandler clientThread = getThreadFromID(envelope.getSenderID());
+            if (clientThread != null) {
+                clientThread.sendMessage("Server: You are not in any room. Use /join <room> to join one.");
+            }
             return;
-        } // If client disconnected during this process
-        ServerClientHandler DoDClient = findFirstDoDClient(); // Retrieves the ServerClientHandler instance that corresponds with the DoDClient
-        if (DoDClient == null) { // If there are no DoDClients on the server then the game request is rejected
-            clientThread.sendMessage("Server: No DoD client available. Returning to broadcast mode.");
+        }
+        Audience audience = room.recordBroadcast(envelope); // Recorded in the room's history as its audience is read
+        if (chatLog != null) {
+            chatLog.append(envelope); // Only copied into the log, which is forced to the disk in the background
+        }
+        if (eventLoops == null) { // Every client is in shard 0, and is sent the message by the sender's thread
+            for (ClientHandler clientThread : audience.getClients(0)) {
+                clientThread.sendEncoded(envelope); // Sends the client the message
+            }
             return;
         }
-        clientThread.setInDoDGame(true); // For the client to not receive broadcasts
-        clientThread.sendMessage("Server: Entering DoD mode.");
-        DoDClient.sendMessage("newGame " + clientID); // Sends a message to the DoDClient requesting a new game for the given client
+        // The envelope is reused once this returns, so the loops are handed the encodings rather than the envelope
+        Broadcast broadcast = new Broadcast(audience,
+                audience.speaks(WireProtocol.text) ? envelope.sharedFor(WireProtocol.text) : null,
+                audience.speaks(WireProtocol.binary) ? envelope.sharedFor(WireProtocol.binary) : null);
+        for (ServerEventLoop loop : eventLoops) {
+            if (audience.getClients(loop.getShard()).length > 0) {
+                loop.fanOut(broadcast);
+            }
+        }
+    }
 
+    /**
+     * This method sends a message to one client, found by its ID, and tells the sender whether it was delivered.
+     * Only the recipient's lookup and one message for each of the two clients are needed, however many clients are
+     * connected. The message counts as delivered once it is queued for the recipient.
+     *
+     * @param envelope Envelope representing the direct message, addressed to its recipient
+     */
+    private void sendDirectMessage(Envelope envelope) {
+        ClientHandler sender = getThreadFromID(envelope.getSenderID()); // Retrieves the ClientHandler instance that corresponds with the sender's ID
+        if (sender == null) {
+            return;
+        } // If client disconnected during this process
+        int targetID = envelope.getTargetID();
+        if (targetID == Frame.NO_CLIENT) { // The command was missing the recipient or the message
+            sender.sendMessage("Server: Use /msg <client ID> <message> to message one client.");
+            return;
+        }
+        ClientHandler recipient = getThreadFromID(targetID);
+        if (recipient == null || recipient.getClientType() == SenderType.DoDBot) { // The DoDClient is not someone to talk to
+            sender.sendMessage("Server: Client " + targetID + " is not connected. Message not delivered.");
+        } else if (recipient.sendDirect(envelope)) {
+            sender.sendMessage("Server: Message delivered to Client " + targetID + ".");
+        } else { // The recipient's queue is full or it is being disconnected
+            sender.sendMessage("Server: Client " + targetID + " is not keeping up. Message not delivered.");
+        }
     }
 
     /**
-     * This method ends a client's DoD game in the DoDClient given the client's ID.
+     * This method adds a client to a room, creating the room if needed, and makes it the room the client talks in.
      *
      * @param clientID int representing the client's ID
+     * @param roomName String representing the name of the room requested
      */
-    private synchronized void removeClientFromDoD(int clientID) {
-        ServerClientHandler DoDClient = findFirstDoDClient(); // Retrieves the ServerClientHandler instance that corresponds with the clientID given
-        if (DoDClient != null) {
-            DoDClient.sendMessage("disconnect " + clientID);
-        } // Sends a message to the DoDClient requesting to close the client's game
+    private void joinRoom(int clientID, String roomName) {
+        ClientHandler clientThread = getThreadFromID(clientID); // Retrieves the ClientHandler instance that corresponds with the clientID given
+        if (clientThread == null) {
+            return;
+        } // If client disconnected during this process
+        if (!Room.isValidName(roomName)) {
+            clientThread.sendMessage("Server: Room names are 1 to 32 letters, digits, '-' or '_'.");
+        } else if (clientRegistry.joinRoom(clientThread, roomName)) {
+            clientThread.sendMessage("Server: Now talking in room " + roomName + ".");
+        }
     }
 
     /**
-     * This method removes a client from the server cleanly given the client's ID.
+     * This method removes a client from a room, by default the room it is talking in.
      *
      * @param clientID int representing the client's ID
-     * @throws IOException If socket fails to close
+     * @param roomName String representing the name of the room to leave, or an empty String for the current room
      */
-    public synchronized void removeClient(int clientID) throws IOException {
-        ServerClientHandler thread = getThreadFromID(clientID); // Retrieves the ServerClientHandler instance that corresponds with the clientID given
-        if (thread == null){return;}
-        if (thread.getClientType() == SenderType.DoDBot && findFirstDoDClient().getClientID() == clientID) { // If the client is the first DoDClient (lazy checking used for efficiency)
-            handleDoDModeClients(); // Returns all clients playing DoD to broadcast mode
-        } else { // Ends the client's DoD game in the DoDClient
-            removeClientFromDoD(clientID);
+    private void leaveRoom(int clientID, String roomName) {
+        ClientHandler clientThread = getThreadFromID(clientID); // Retrieves the ClientHandler instance that corresponds with the clientID given
+        if (clientThread == null) {
+            return;
+        } // If client disconnected during this process
+        if (roomName.isEmpty()) { // No room was named, so the client leaves the room it is talking in
+            Room currentRoom = clientThread.getCurrentRoom();
+            if (currentRoom == null) {
+                clientThread.sendMessage("Server: You are not in any room.");
+                return;
+            }
+            roomName = currentRoom.getName();
         }
-        thread.getClientSocket().close();
-        if (!serverShutDown) {
-            clientThreadVector.remove(thread);
+        if (!clientRegistry.leaveRoom(clientThread, roomName)) {
+            clientThread.sendMessage("Server: You are not in room " + roomName + ".");
+            return;
         }
+        Room currentRoom = clientThread.getCurrentRoom();
+        clientThread.sendMessage("Server: Left room " + roomName + ". " + (currentRoom == null
+                ? "You are not in any room. Use /join <room> to join one."
+                : "Now talking in room " + currentRoom.getName() + "."));
+    }
+
+    /**
+     * This method forwards the message sent by the client to the DoDClient running their game
+     *
+     * @param envelope Envelope representing the client's message
+     */
+    private void forwardMsgToDoDClient(Envelope envelope) {
+        // No lock is needed, as a client's messages are only ever sent by the thread reading from that client, in order
+        ClientHandler clientThread = getThreadFromID(envelope.getSenderID());
+        ClientHandler DoDWorker = clientThread == null ? null : clientThread.getDoDWorker(); // Retrieves the DoDClient running the client's game
+        if (DoDWorker != null) {
+            DoDWorker.sendDoDCommand(MessageType.DoDMidGame, clientThread, envelope);
+        } // Sends a message to the DoDClient with the client ID and their message
     }
 
     /**
-     * Returns all clients in DoD mode to broadcast mode
+     * This method attempts to create a new game for the client ID given in one of the DoDClients, chosen by
+     * consistent hashing of the client ID so that the games are spread over every DoDClient connected.
+     * The client is then updated to be in DoD mode, which means they will not receive broadcasts, and every message of
+     * the game goes to that DoDClient, even if other DoDClients join meanwhile.
+     *
+     * @param clientID int representing the client's ID
      */
-    private void handleDoDModeClients() {
-        for (ServerClientHandler clientThread : clientThreadVector) {
-            if (clientThread.getInDoDGame()) { // Checks if client is in DoD mode
-                clientThread.sendMessage("Server: DoD client disconnected. Returning to broadcast mode"); // Sends a message to clients notifying them they have been returned to broadcast mode
-                clientThread.setInDoDGame(false); // Returns client to broadcast mode
+    private void createNewDoDGame(int clientID) {
+        ReentrantLock clientLock = lockFor(clientID);
+        clientLock.lock();
+        try {
+            ClientHandler clientThread = getThreadFromID(clientID); // Retrieves the ClientHandler instance that corresponds with the clientID given
+            if (clientThread == null) {
+                return;
+            } // If client disconnected during this process
+            ClientHandler DoDWorker = clientRegistry.getDoDWorkers().workerFor(clientID); // Retrieves the DoDClient the client's game is placed on
+            if (DoDWorker == null) { // If there are no DoDClients on the server then the game request is rejected
+                clientThread.sendMessage("Server: No DoD client available. Returning to broadcast mode.");
+                return;
             }
+            clientThread.setDoDWorker(DoDWorker); // Set first, so a DoDClient leaving after this returns the client to broadcast mode
+            clientRegistry.setInDoDGame(clientThread, true); // For the client to not receive broadcasts
+            if (!clientRegistry.getDoDWorkers().contains(DoDWorker)) { // The DoDClient left meanwhile, possibly without seeing this client in DoD mode
+                returnToBroadcastMode(clientThread);
+                clientThread.sendMessage("Server: No DoD client available. Returning to broadcast mode.");
+                return;
+            }
+            clientThread.sendMessage("Server: Entering DoD mode.");
+            DoDWorker.sendDoDCommand(MessageType.DoDNewGame, clientThread, null); // Sends a message to the DoDClient requesting a new game for the given client
+        } finally {
+            clientLock.unlock();
         }
     }
 
     /**
-     * Returns the ServerClientHandler corresponding with the client's ID
+     * This method ends a client's DoD game in the DoDClient running it, if the client is in one.
+     *
+     * @param clientThread ClientHandler representing the client
+     */
+    private void removeClientFromDoD(ClientHandler clientThread) {
+        ClientHandler DoDWorker = clientThread.getDoDWorker(); // Retrieves the DoDClient running the client's game
+        if (DoDWorker != null) {
+            DoDWorker.sendDoDCommand(MessageType.DoDEndGame, clientThread, null);
+        } // Sends a message to the DoDClient requesting to close the client's game
+    }
+
+    /**
+     * This method removes a client from the server cleanly given the client's ID.
      *
      * @param clientID int representing the client's ID
-     * @return ServerClientHandler representing the instance of ServerClientHandler corresponding with the client's ID
+     * @throws IOException If socket fails to close
      */
-    private ServerClientHandler getThreadFromID(int clientID) {
-        for (ServerClientHandler clientThread : clientThreadVector) {
-            if (clientThread.getClientID() == clientID) { // Checks if the clientID of the thread is identical to the clientID
-                return clientThread;
-            }
+    public void removeClient(int clientID) throws IOException {
+        ClientHandler thread;
+        ReentrantLock clientLock = lockFor(clientID);
+        clientLock.lock();
+        try {
+            thread = getThreadFromID(clientID); // Retrieves the ClientHandler instance that corresponds with the clientID given
+            if (thread == null){return;}
+            thread.stopHeartbeat();
+            removeClientFromDoD(thread); // Ends the client's DoD game in the DoDClient, if it is in one
+            thread.closeConnection();
+            clientRegistry.remove(thread); // A removed DoDClient leaves the ring, so no new game can be placed on it
+        } finally {
+            clientLock.unlock();
+        }
+        if (thread.getClientType() == SenderType.DoDBot) { // If the client was a DoDClient
+            handleDoDModeClients(thread); // Returns the clients playing DoD on it to broadcast mode, taking each of their locks in turn
         }
-        return null; // If the thread is not found (due to disconnection), then null is returned
     }
 
     /**
-     * Returns the ServerClientHandler corresponding with the first DoDClient on the server
+     * Returns all clients whose game a DoDClient was running to broadcast mode. Each client's lock is taken on its own,
+     * never while holding another, so this cannot deadlock with the operations on the clients. The games on the other
+     * DoDClients carry on.
      *
-     * @return ServerClientHandler representing the instance of ServerClientHandler corresponding with the first DoDClient
+     * @param DoDWorker ClientHandler representing the DoDClient which left
      */
-    private ServerClientHandler findFirstDoDClient() {
-        for (ServerClientHandler clientThread : clientThreadVector) {
-            if (clientThread.getClientType() == SenderType.DoDBot) { // Checks if the client's type is a DoDClient
-                return clientThread;
+    private void handleDoDModeClients(ClientHandler DoDWorker) {
+        for (ClientHandler clientThread : clientRegistry.getDoDModeClients()) {
+            if (clientThread.getDoDWorker() != DoDWorker) {
+                continue;
+            }
+            ReentrantLock clientLock = lockFor(clientThread.getClientID());
+            clientLock.lock();
+            try {
+                if (clientThread.getInDoDGame() && clientThread.getDoDWorker() == DoDWorker) { // The client may have finished its game meanwhile
+                    returnToBroadcastMode(clientThread); // Returns client to broadcast mode
+                    clientThread.sendMessage("Server: DoD client disconnected. Returning to broadcast mode"); // Sends a message to clients notifying them they have been returned to broadcast mode
+                }
+            } finally {
+                clientLock.unlock();
             }
         }
-        return null; // If the thread is not found (due to not having a DoDClient on the server), then null is returned
     }
 
     /**
-     * Checks to see whether the client is another (i.e. not the first) DoDClient on the server. If so then they are removed from the server.
+     * Returns the lock guarding the changes to a client's DoD game and presence.
      *
      * @param clientID int representing the client's ID
+     * @return ReentrantLock shared by the clients whose IDs fall in the same stripe
      */
-    private void checkFirstDoDThread(int clientID) {
-        ServerClientHandler clientThread = getThreadFromID(clientID);
-        if (clientThread == null) {
-            return;
-        }
-        // Lazy check does not enter second statement if the first one evaluates false, so firstFirstDodClient() can never return null as it is only called if there is a DoDBot.
-        if (clientThread.getClientType() == SenderType.DoDBot && !(findFirstDoDClient().getClientID() == clientID)) { // Checks whether this is a DoDClient which is not the first
-            clientThread.sendMessage("secondClient");
-            clientThread.terminateThread(); // Stops the thread from running in a clean way
-        }
+    private ReentrantLock lockFor(int clientID) {
+        return clientLocks[clientID & (CLIENT_LOCK_STRIPES - 1)];
     }
 
     /**
-     * Shuts down the server cleanly, closing all the client sockets and the server sockets
+     * Returns the ClientHandler corresponding with the client's ID
+     *
+     * @param clientID int representing the client's ID
+     * @return ClientHandler representing the instance of ClientHandler corresponding with the client's ID
+     */
+    private ClientHandler getThreadFromID(int clientID) {
+        return clientRegistry.get(clientID); // If the client is not found (due to disconnection), then null is returned
+    }
+
+
+    /**
+     * Shuts down the server cleanly, closing all the client sockets and the server sockets. Every phase deals with all
+     * the clients at once rather than one after another, so the time taken does not grow with the number of clients,
+     * and every wait has a deadline, so a stuck client or handler cannot hold the shutdown up:
+     * 1. Every ChatClient is told the server is closing.
+     * 2. The clients' queued messages are written, until they all are or the drain deadline passes.
+     * 3. Every connection is closed, whatever is still queued, and the handlers and event loops are given
+     *    SHUTDOWN_CLOSE_MILLIS to finish, after which they are left behind.
+     * 4. The chat log is forced to the disk and closed.
+     * How long each phase took is printed at the end.
      *
      * @throws IOException          If an I/O error occurs when closing the socket
      * @throws InterruptedException If a thread did not join
      */
     public void cleanShutDown() throws IOException, InterruptedException {
         serverShutDown = true;
+        long start = System.nanoTime();
+        timingWheel.stop(); // No client is pinged or timed out while the server closes them
         mySocket.close(); // Closes the server socket
         Utility.print("Shutting server Down");
-        for (ServerClientHandler clientThread : clientThreadVector) {
+        for (ClientHandler handshaking : awaitingHandshake) { // Not in the registry yet; one which gets there is closed by addClient
+            handshaking.closeConnection();
+        }
+        List<ClientHandler> clients = new ArrayList<>(clientRegistry.getAll()); // The clients remove themselves as they close
+        for (ClientHandler clientThread : clients) {
             if (clientThread.getClientType() == SenderType.client) {
                 clientThread.sendMessage("Server is closing!");
             } // Notify the client server is closing
-            clientThread.getClientSocket().close(); // Closes the client's socket, causing the threads to raise an error which is then dealt with
-            clientThread.join();
-            Utility.print("Client joined");
         }
+        long notified = System.nanoTime();
+        int undrained = awaitDrained(clients, notified + TimeUnit.MILLISECONDS.toNanos(config.getShutdownDrainMillis()));
+        long drained = System.nanoTime();
+        for (ClientHandler clientThread : clients) {
+            clientThread.closeConnection(); // Closes the client's connection, causing the threads to raise an error which is then dealt with
+        }
+        if (eventLoops != null) {
+            for (ServerEventLoop loop : eventLoops) {
+                loop.shutDown(); // Closes whatever connections the event loop still owns
+            }
+        }
+        int unfinished = awaitClosed(clients, drained + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_CLOSE_MILLIS));
+        long closed = System.nanoTime();
+        if (flushScheduler != null) {
+            flushScheduler.shutdown();
+        }
+        if (DoDBatchScheduler != null) {
+            DoDBatchScheduler.shutdown();
+        }
+        if (chatLog != null) {
+            chatLog.close(); // Forces the last broadcasts to the disk
+        }
+        if (chatLogIndexer != null) {
+            chatLogIndexer.close(); // Indexes the last broadcasts, which the log's close committed
+        }
+        long logClosed = System.nanoTime();
+        if (unfinished > 0) {
+            clientExecutor.shutdownNow(); // Interrupts the handlers left behind, which may still finish on their own
+        } else {
+            clientExecutor.shutdown(); // Lets the ServerUserInput finish, after which no threads are left running
+        }
+        Utility.print("Shut down " + clients.size() + " clients in " + millisBetween(start, logClosed) + "ms: notified in "
+                + millisBetween(start, notified) + "ms, drained in " + millisBetween(notified, drained) + "ms ("
+                + undrained + " clients still had messages queued), closed in " + millisBetween(drained, closed) + "ms ("
+                + unfinished + " handlers or event loops did not finish), chat log closed in " + millisBetween(closed, logClosed) + "ms");
+    }
+
+    /**
+     * Waits for the queued messages of every client to be written, or for the deadline to pass. The clients' writers
+     * (or event loops) write to all of them at the same time, so this only waits as long as the slowest client.
+     *
+     * @param clients  List of the clients whose messages are waited for
+     * @param deadline long representing the System.nanoTime after which the messages are no longer waited for
+     * @return int representing the number of clients which still had messages queued at the deadline
+     * @throws InterruptedException If the wait is interrupted
+     */
+    private static int awaitDrained(List<ClientHandler> clients, long deadline) throws InterruptedException {
+        while (true) {
+            int undrained = 0;
+            for (ClientHandler clientThread : clients) {
+                if (clientThread.getQueuedBytes() > 0) {
+                    undrained++;
+                }
+            }
+            if (undrained == 0 || System.nanoTime() - deadline >= 0) {
+                return undrained;
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Waits for every client's handler and every event loop to finish, or for the deadline to pass.
+     *
+     * @param clients  List of the clients whose handlers are waited for
+     * @param deadline long representing the System.nanoTime after which the handlers are no longer waited for
+     * @return int representing the number of handlers and event loops which had not finished by the deadline
+     * @throws InterruptedException If the wait is interrupted
+     */
+    private int awaitClosed(List<ClientHandler> clients, long deadline) throws InterruptedException {
+        int unfinished = 0;
+        for (ClientHandler clientThread : clients) { // They all finish at the same time, so the deadline is shared
+            if (!clientThread.awaitTermination(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())))) {
+                unfinished++;
+            }
+        }
+        if (eventLoops != null) {
+            for (ServerEventLoop loop : eventLoops) {
+                loop.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()))); // 0 would wait forever
+                if (loop.isAlive()) {
+                    unfinished++;
+                }
+            }
+        }
+        return unfinished;
+    }
+
+    /**
+     * Returns the number of whole milliseconds between two System.nanoTime readings.
+     *
+     * @param from long representing the earlier reading
+     * @param to   long representing the later reading
+     * @return long representing the milliseconds between them
+     */
+    private static long millisBetween(long from, long to) {
+        return TimeUnit.NANOSECONDS.toMillis(to - from);
     }
 }
@@ -90,12 +90,22 @@ public abstract class Client {
     private void initialiseReadWrite() {
         try {
             this.serverIn = new BufferedReader(new InputStreamReader(socket.getInputStream())); // Set up the ability to read the data from the server
-            this.serverOut = new PrintWriter(socket.getOutputStream(), true); // Set up the ability to send the data to the server
+            this.serverOut = new PrintWriter(socket.getOutputStream(), autoFlush()); // Set up the ability to send the data to the server
         } catch (IOException e) {
             Utility.print("Failed to initialise read write");
         }
     }
 
+    /**
+     * Returns whether serverOut should flush after every line. Clients which send several lines at once override this
+     * and flush once all their lines are written, so they are sent to the server together.
+     *
+     * @return Boolean representing whether serverOut flushes after every line
+     */
+    protected boolean autoFlush() {
+        return true;
+    }
+
     /**
      * Abstract method which will be called once the client is initialised
      */
@@ -0,0 +1,1074 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class holds the state and message handling shared by every connection on the server, regardless of how the
+ * connection's socket is read from and written to. It is abstract as the blocking ServerClientHandler and the
+ * non-blocking NioClientHandler are both types of client handlers and so they inherit from ClientHandler.
+ */
+public abstract class ClientHandler {
+
+    /**
+     * Longest time in milliseconds a connection may take to send its type before it is closed. Every client sends its
+     * type as soon as it connects, so a connection which has not is half-open or not a client at all.
+     */
+    private static final long HANDSHAKE_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * ChatServer representing the server that the ClientHandler is instantiated from.
+     */
+    protected final ChatServer server;
+    /**
+     * int representing the client's ID.
+     */
+    protected final int clientID;
+    /**
+     * senderType which represents the type of the client
+     */
+    protected SenderType clientType;
+    /**
+     * WireProtocol representing how the client exchanges messages with the server, chosen in its first line.
+     */
+    protected WireProtocol protocol = WireProtocol.text;
+    /**
+     * Envelope reused for every message received from the client, only used by the thread reading from the client.
+     */
+    private final Envelope envelope = new Envelope();
+    /**
+     * Boolean which represents whether the client is in a DoD game or not. It is volatile as it is changed by whichever
+     * thread routes the message starting or ending the game, and read by the thread reading from the client.
+     */
+    private volatile boolean inDoDGame = false;
+    /**
+     * ClientHandler representing the DoDClient running the client's DoD game, or null if it is not in one. Set before
+     * the client enters DoD mode and cleared once it is back in broadcast mode.
+     */
+    private volatile ClientHandler DoDWorker;
+    /**
+     * DoDLink batching the messages this DoDClient is sent about the games it runs, or null if the client is not a
+     * DoDClient speaking binary, in which case each message is sent on its own. Set with the client's type.
+     */
+    private DoDLink workerLink;
+    /**
+     * AtomicInteger representing the sequence number of the last message sent to a DoDClient about this client's games
+     */
+    private final AtomicInteger DoDSequence = new AtomicInteger();
+    /**
+     * int representing the sequence number of the message which started the client's current DoD game. A response
+     * with an earlier sequence number answers a game which is already over.
+     */
+    private volatile int DoDGameSequence = 0;
+    /**
+     * List of the rooms the client is in, in the order it last joined them. Only changed by the ClientRegistry.
+     */
+    private final CopyOnWriteArrayList<Room> rooms = new CopyOnWriteArrayList<>();
+    /**
+     * Room the client's broadcasts are sent in, which is the room it joined most recently, or null if it is in no room.
+     */
+    private volatile Room currentRoom;
+    /**
+     * TokenBucket limiting how fast this client may send messages, or null if there is no limit. DoDClients are never
+     * limited, as they only answer the other clients.
+     */
+    private TokenBucket rateLimit;
+    /**
+     * TokenBucket limiting how fast all the clients of this client's type may send messages together, or null if there
+     * is no limit
+     */
+    private TokenBucket typeRateLimit;
+    /**
+     * int representing the most bytes the client may send in a single line or frame. DoDClients may send frames up to
+     * Frame.MAX_LENGTH, as their batches grow with the number of games.
+     */
+    private int maxMessageBytes;
+    /**
+     * Boolean representing whether the client was told its messages are being dropped since it was last within its limit.
+     * Only used by the thread reading from the client.
+     */
+    private boolean throttleNotified = false;
+    /**
+     * Boolean representing whether the client is being disconnected for going over its rate limit.
+     * Only used by the thread reading from the client.
+     */
+    private boolean throttledOut = false;
+    /**
+     * long representing how many nanoseconds the server should stop reading from the client to bring it back within its
+     * rate limit, under the delay policy. Only used by the thread reading from the client.
+     */
+    private long readPauseNanos = 0;
+    /**
+     * long representing how many of the client's messages were over its rate limit. Only changed by the thread reading
+     * from the client.
+     */
+    private volatile long throttledMessages = 0;
+    /**
+     * Queue of encoded messages addressed to this client alone (server notices and DoD responses) waiting to be written.
+     * These messages are never dropped, and are written before any queued broadcasts.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> priorityOutbound = new ConcurrentLinkedQueue<>();
+    /**
+     * Queue of encoded broadcasts waiting to be written to the client. Sending a message only adds it to a queue, so
+     * a client which is slow to read never holds up the thread sending to it.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> broadcastOutbound = new ConcurrentLinkedQueue<>();
+    /**
+     * int representing the maximum number of broadcasts broadcastOutbound may hold.
+     */
+    private final int outboundCapacity;
+    /**
+     * AtomicInteger representing the number of messages in broadcastOutbound.
+     */
+    private final AtomicInteger queuedBroadcasts = new AtomicInteger();
+    /**
+     * AtomicInteger representing the number of messages in both queues.
+     */
+    private final AtomicInteger queuedMessages = new AtomicInteger();
+    /**
+     * AtomicLong representing the number of bytes queued or taken by the writer which have not been written yet.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+    /**
+     * long representing the time in milliseconds since which the writer has not caught up, or 0 if it has.
+     */
+    private volatile long backlogSince = 0;
+    /**
+     * AtomicLong representing the number of broadcasts dropped because the client was too slow.
+     */
+    private final AtomicLong droppedMessages = new AtomicLong();
+    /**
+     * AtomicBoolean representing whether the client has been disconnected for being too slow.
+     */
+    private final AtomicBoolean evicted = new AtomicBoolean(false);
+    /**
+     * long representing the System.nanoTime at which the client last sent anything, updated on every read rather than
+     * every message so it costs nothing per message.
+     */
+    private volatile long lastHeardNanos = System.nanoTime();
+    /**
+     * Timeout representing the next check of whether the client is still there, or null if heartbeats are off or the
+     * client has not been added to the server yet.
+     */
+    private volatile TimingWheel.Timeout heartbeat;
+    /**
+     * Boolean representing whether the heartbeats have been stopped, after which no check is scheduled again.
+     */
+    private volatile boolean heartbeatStopped = false;
+    /**
+     * Timeout representing the check that the client sent its type in time, or null if it was never started.
+     */
+    private volatile TimingWheel.Timeout handshakeDeadline;
+
+    /**
+     * The constructor initialises the server, clientID and outboundCapacity variables.
+     *
+     * @param server   ChatServer representing the server that the ClientHandler is instantiated from
+     * @param clientID int representing the client's ID
+     */
+    protected ClientHandler(ChatServer server, int clientID) {
+        this.server = server;
+        this.clientID = clientID;
+        this.outboundCapacity = server.getConfig().getOutboundCapacity();
+        this.maxMessageBytes = server.getConfig().getMaxMessageBytes();
+    }
+
+    /**
+     * Queues a notice from the server to be written to the client. The notice is addressed to this client alone,
+     * so it is never dropped.
+     *
+     * @param message String representing the message to the sent to the client
+     */
+    public void sendMessage(String message) {
+        send(MessageType.serverNotice, Frame.NO_CLIENT, message);
+    }
+
+    /**
+     * Encodes a message addressed to this client alone in the client's protocol and queues it to be written.
+     * The message is never dropped.
+     *
+     * @param type     MessageType representing what the message is
+     * @param senderID int representing the ID of the client the message is from or about
+     * @param payload  String representing the content of the message
+     */
+    public void send(MessageType type, int senderID, String payload) {
+        queuePriority(Frame.encode(protocol, type, senderID, clientID, payload));
+    }
+
+    /**
+     * Encodes a message received from another client for this client alone and queues it to be written.
+     * The message is never dropped.
+     *
+     * @param envelope Envelope representing the message being routed
+     */
+    public void forward(Envelope envelope) {
+        queuePriority(envelope.encode(protocol, clientID));
+    }
+
+    /**
+     * Queues a broadcast which is encoded once for many clients. Each client gets its own view of the shared bytes
+     * of its protocol, so the message is neither encoded nor copied again however many clients it is sent to.
+     *
+     * @param envelope Envelope representing the broadcast being routed
+     */
+    public void sendEncoded(Envelope envelope) {
+        queueBroadcast(envelope.sharedFor(protocol));
+    }
+
+    /**
+     * Encodes a direct message for this client alone and queues it to be written. Unlike replies from the DoDClient,
+     * direct messages are subject to the slow consumer policy, so one client cannot flood another's queue.
+     *
+     * @param envelope Envelope representing the direct message being routed
+     * @return Boolean representing whether the message was queued
+     */
+    public boolean sendDirect(Envelope envelope) {
+        return queueBroadcast(envelope.encode(protocol, clientID));
+    }
+
+    /**
+     * Queues a broadcast which an event loop is fanning out. Clients which joined after the broadcast was encoded may
+     * speak a protocol it was not encoded in, in which case it is not sent to them, just as if it had been sent before
+     * they joined.
+     *
+     * @param broadcast Broadcast representing the broadcast encoded once for all its recipients
+     */
+    public void sendShared(Broadcast broadcast) {
+        ByteBuffer shared = broadcast.getShared(protocol);
+        if (shared != null) {
+            queueBroadcast(shared.duplicate());
+        }
+    }
+
+    /**
+     * Queues the history of a room the client just joined, encoded in the client's protocol as a single message so it
+     * is written in one go. It is addressed to this client alone, so it is never dropped.
+     *
+     * @param history ByteBuffer containing the room's most recent broadcasts, oldest first
+     */
+    public void replay(ByteBuffer history) {
+        queuePriority(history);
+    }
+
+    /**
+     * Adds a message addressed to this client alone to priorityOutbound and makes sure it will be written.
+     *
+     * @param message ByteBuffer containing the encoded message
+     */
+    protected void queuePriority(ByteBuffer message) {
+        if (evicted.get()) {
+            return;
+        }
+        addToQueue(priorityOutbound, message);
+        if (checkBacklog()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Adds a broadcast to broadcastOutbound and makes sure it will be written. If the client already has
+     * outboundCapacity broadcasts queued, the server's SlowConsumerPolicy decides which broadcast is dropped, unless
+     * the policy is to disconnect, in which case only the backlog limits apply. The capacity is checked without a lock,
+     * so concurrent senders may overshoot it slightly.
+     *
+     * @param message ByteBuffer containing the encoded message
+     * @return Boolean representing whether the message was queued
+     */
+    protected boolean queueBroadcast(ByteBuffer message) {
+        if (evicted.get()) {
+            return false;
+        }
+        if (queuedBroadcasts.get() >= outboundCapacity) {
+            switch (server.getConfig().getSlowConsumerPolicy()) {
+                case dropNewest: // The message being sent is dropped
+                    recordDrop(SlowConsumerPolicy.dropNewest);
+                    return false;
+                case dropOldest: // The oldest queued broadcast is dropped to make room
+                    ByteBuffer oldest = broadcastOutbound.poll();
+                    if (oldest != null) {
+                        queuedBroadcasts.decrementAndGet();
+                        queuedMessages.decrementAndGet();
+                        queuedBytes.addAndGet(-oldest.remaining());
+                        recordDrop(SlowConsumerPolicy.dropOldest);
+                    }
+                    break;
+                case disconnect: // Only the backlog limits in bytes and time apply, which checkBacklog deals with
+                    break;
+            }
+        }
+        addToQueue(broadcastOutbound, message);
+        queuedBroadcasts.incrementAndGet();
+        if (!checkBacklog()) {
+            return false;
+        }
+        scheduleDrain();
+        return true;
+    }
+
+    /**
+     * Adds a message to one of the queues and updates the counters.
+     *
+     * @param queue   ConcurrentLinkedQueue to add the message to
+     * @param message ByteBuffer containing the encoded message
+     */
+    private void addToQueue(ConcurrentLinkedQueue<ByteBuffer> queue, ByteBuffer message) {
+        queuedBytes.addAndGet(message.remaining());
+        queuedMessages.incrementAndGet();
+        if (backlogSince == 0) {
+            backlogSince = System.currentTimeMillis();
+        }
+        queue.add(message);
+    }
+
+    /**
+     * Records a dropped broadcast for this client and the server.
+     *
+     * @param policy SlowConsumerPolicy representing which message was dropped
+     */
+    private void recordDrop(SlowConsumerPolicy policy) {
+        droppedMessages.incrementAndGet();
+        server.getStats().recordDrop(policy);
+    }
+
+    /**
+     * Checks whether the client's backlog is beyond the limits of the disconnect policy, and if so disconnects it.
+     *
+     * @return Boolean representing whether the client is still connected
+     */
+    private boolean checkBacklog() {
+        ServerConfig config = server.getConfig();
+        if (config.getSlowConsumerPolicy() != SlowConsumerPolicy.disconnect) {
+            return true;
+        }
+        long since = backlogSince;
+        if (queuedBytes.get() > config.getMaxBacklogBytes()) {
+            evict("more than " + config.getMaxBacklogBytes() + " bytes queued");
+            return false;
+        }
+        if (since != 0 && System.currentTimeMillis() - since > config.getMaxBacklogMillis()) {
+            evict("behind for more than " + config.getMaxBacklogMillis() + "ms");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Disconnects the client for being too slow to read. Only the first call has an effect.
+     *
+     * @param reason String representing why the client is disconnected
+     */
+    private void evict(String reason) {
+        if (!evicted.compareAndSet(false, true)) {
+            return;
+        }
+        clearOutbound();
+        server.getStats().recordEviction();
+        Utility.print("Client " + clientID + " disconnected for being too slow: " + reason);
+        try {
+            closeConnection(); // The client is then removed from the server in the usual way
+        } catch (IOException e) {
+            Utility.print("Failed to close connection of client " + clientID);
+        }
+    }
+
+    /**
+     * Records that the client sent something, so it is known to still be there. Called by the thread reading from the
+     * client after every read.
+     */
+    protected void recordHeard() {
+        lastHeardNanos = System.nanoTime();
+    }
+
+    /**
+     * Starts the deadline by which the client must send its type on the server's timing wheel, as soon as its
+     * connection is accepted, so a connection which never sends it is closed rather than held for good.
+     */
+    public void startHandshakeDeadline() {
+        handshakeDeadline = server.getTimingWheel().schedule(this::checkHandshake, HANDSHAKE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the handshake deadline, once the client sent its type or its connection was closed.
+     */
+    protected void stopHandshakeDeadline() {
+        TimingWheel.Timeout timeout = handshakeDeadline;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Closes the client's connection if it has not sent its type by the deadline, run on the timing wheel's ticker.
+     */
+    private void checkHandshake() {
+        if (clientType != null) {
+            return;
+        }
+        server.getStats().recordIdleDisconnect();
+        Utility.print("Client " + clientID + " disconnected for not sending its type within " + HANDSHAKE_TIMEOUT_MILLIS + "ms");
+        try {
+            closeConnection(); // The handler then finishes in the usual way
+        } catch (IOException e) {
+            Utility.print("Failed to close connection of client " + clientID);
+        }
+    }
+
+    /**
+     * Starts checking that the client is still there on the server's timing wheel, once it has been added to the server.
+     * Does nothing if heartbeats are off.
+     */
+    public void startHeartbeat() {
+        long intervalMillis = server.getConfig().getHeartbeatMillis();
+        if (intervalMillis > 0) {
+            scheduleHeartbeat(intervalMillis);
+        }
+    }
+
+    /**
+     * Stops checking that the client is still there, once it is being removed from the server.
+     */
+    public void stopHeartbeat() {
+        heartbeatStopped = true;
+        TimingWheel.Timeout timeout = heartbeat;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Schedules the next check of whether the client is still there. A check scheduled while the heartbeats were being
+     * stopped is cancelled straight away.
+     *
+     * @param delayMillis long representing how long to wait before the check in milliseconds
+     */
+    private void scheduleHeartbeat(long delayMillis) {
+        heartbeat = server.getTimingWheel().schedule(this::checkHeartbeat, delayMillis, TimeUnit.MILLISECONDS);
+        if (heartbeatStopped) {
+            heartbeat.cancel();
+        }
+    }
+
+    /**
+     * Checks whether the client is still there, run on the timing wheel's ticker. A client which has sent nothing for
+     * the heartbeat interval is sent a ping, which every client of this server answers with a pong; one which has sent
+     * nothing, not even a pong, for the idle timeout is disconnected, as its connection is most likely half-open.
+     * The next check is scheduled for when the client will next have been silent for an interval, or reach the timeout.
+     */
+    private void checkHeartbeat() {
+        if (heartbeatStopped) {
+            return;
+        }
+        ServerConfig config = server.getConfig();
+        long silentMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHeardNanos);
+        if (silentMillis >= config.getIdleTimeoutMillis()) {
+            server.getStats().recordIdleDisconnect();
+            Utility.print("Client " + clientID + " disconnected for being silent for " + silentMillis + "ms");
+            try {
+                closeConnection(); // The client is then removed from the server in the usual way
+            } catch (IOException e) {
+                Utility.print("Failed to close connection of client " + clientID);
+            }
+            return;
+        }
+        long delayMillis = config.getHeartbeatMillis() - silentMillis;
+        if (delayMillis <= 0) { // Silent for at least an interval, so it is asked to answer
+            send(MessageType.ping, Frame.NO_CLIENT, "");
+            server.getStats().recordPing();
+            delayMillis = Math.min(config.getHeartbeatMillis(), config.getIdleTimeoutMillis() - silentMillis);
+        }
+        scheduleHeartbeat(delayMillis);
+    }
+
+    /**
+     * Makes sure the queued messages will be written to the client by whoever writes to this client's connection.
+     */
+    protected abstract void scheduleDrain();
+
+    /**
+     * Takes the next message to write out of the queues, messages addressed to this client alone first.
+     * The message's bytes count as queued until recordBytesWritten is called for them.
+     *
+     * @return ByteBuffer containing the next message to write, or null if both queues are empty
+     */
+    protected ByteBuffer pollOutbound() {
+        ByteBuffer message = priorityOutbound.poll();
+        if (message == null) {
+            message = broadcastOutbound.poll();
+            if (message == null) {
+                return null;
+            }
+            queuedBroadcasts.decrementAndGet();
+        }
+        queuedMessages.decrementAndGet();
+        return message;
+    }
+
+    /**
+     * Records that bytes of the queued messages have been written to the client.
+     *
+     * @param bytesWritten int representing the number of bytes written
+     */
+    protected void recordBytesWritten(int bytesWritten) {
+        queuedBytes.addAndGet(-bytesWritten);
+    }
+
+    /**
+     * Records that the writer has written every queued message, so the client is no longer behind.
+     */
+    protected void recordCaughtUp() {
+        backlogSince = 0;
+    }
+
+    /**
+     * Discards every queued message, used once the client's connection can no longer be written to.
+     */
+    protected void clearOutbound() {
+        while (pollOutbound() != null) {
+            // Discards the message
+        }
+        queuedBytes.set(0);
+        backlogSince = 0;
+    }
+
+    /**
+     * Waits until every queued message has been written or the timeout passes, whichever happens first.
+     *
+     * @param timeoutMillis long representing the longest time to wait in milliseconds
+     * @throws InterruptedException If the wait is interrupted
+     */
+    public void awaitOutboundEmpty(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (queuedBytes.get() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be written to the client.
+     *
+     * @return int representing the number of queued messages
+     */
+    public int getQueuedMessages() {
+        return queuedMessages.get();
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written to the client.
+     *
+     * @return long representing the number of bytes which have not been written yet
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Returns the number of broadcasts dropped because the client was too slow.
+     *
+     * @return long representing the number of dropped messages
+     */
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    /**
+     * Stops handling the client in a clean way once the messages already sent to it have been delivered.
+     */
+    public abstract void terminate();
+
+    /**
+     * Closes the connection with the client straight away, discarding any messages which have not been written.
+     *
+     * @throws IOException If the socket fails to close
+     */
+    public abstract void closeConnection() throws IOException;
+
+    /**
+     * Waits for the client's handling to finish once its connection has been closed, for at most the given time.
+     *
+     * @param timeoutMillis long representing the longest time to wait in milliseconds
+     * @return Boolean representing whether the handling finished in time
+     * @throws InterruptedException If the wait is interrupted
+     */
+    public abstract boolean awaitTermination(long timeoutMillis) throws InterruptedException;
+
+    /**
+     * Returns the type of the client.
+     *
+     * @return senderType which represents the type of the client
+     */
+    public SenderType getClientType() {
+        return clientType;
+    }
+
+    /**
+     * Returns how the client exchanges messages with the server.
+     *
+     * @return WireProtocol representing the client's protocol
+     */
+    public WireProtocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Returns the shard (event loop) which owns the client's connection. Clients only ever belong to shard 0 unless
+     * the server runs in nio mode.
+     *
+     * @return int representing the client's shard
+     */
+    public int getShard() {
+        return 0;
+    }
+
+    /**
+     * Returns the clientID.
+     *
+     * @return int representing the client's ID
+     */
+    public int getClientID() {
+        return clientID;
+    }
+
+    /**
+     * Returns whether the client is in the middle of playing a DoD game.
+     *
+     * @return Boolean representing whether the client is in the middle of playing a DoD game
+     */
+    public boolean getInDoDGame() {
+        return inDoDGame;
+    }
+
+    /**
+     * Sets the inDoDGame variable to the boolean value provided. Only the ClientRegistry calls this, so the recipients
+     * of the broadcasts are rebuilt along with it.
+     *
+     * @param inDoDGame Boolean representing the value the inDoDGame variable should be set to
+     */
+    public void setInDoDGame(boolean inDoDGame) {
+        this.inDoDGame = inDoDGame;
+    }
+
+    /**
+     * Returns the DoDClient running the client's DoD game.
+     *
+     * @return ClientHandler representing the DoDClient, or null if the client is not in a game
+     */
+    public ClientHandler getDoDWorker() {
+        return DoDWorker;
+    }
+
+    /**
+     * Sets the DoDClient running the client's DoD game. Only the ChatServer calls this, while holding the client's lock.
+     *
+     * @param DoDWorker ClientHandler representing the DoDClient, or null once the game is over
+     */
+    public void setDoDWorker(ClientHandler DoDWorker) {
+        this.DoDWorker = DoDWorker;
+    }
+
+    /**
+     * Returns the rooms the client is in.
+     *
+     * @return List of the rooms the client is in, in the order it last joined them
+     */
+    public List<Room> getRooms() {
+        return rooms;
+    }
+
+    /**
+     * Returns the room the client's broadcasts are sent in.
+     *
+     * @return Room the client joined most recently, or null if it is in no room
+     */
+    public Room getCurrentRoom() {
+        return currentRoom;
+    }
+
+    /**
+     * Records that the client joined a room, which becomes the room its broadcasts are sent in. Only the
+     * ClientRegistry calls this, so the room's members are updated along with it.
+     *
+     * @param room Room the client joined
+     */
+    public void enterRoom(Room room) {
+        rooms.remove(room); // Moves the room to the end if the client was already in it
+        rooms.add(room);
+        currentRoom = room;
+    }
+
+    /**
+     * Records that the client left a room. If its broadcasts were sent in that room, they are now sent in the room it
+     * joined most recently out of those it is still in. Only the ClientRegistry calls this.
+     *
+     * @param room Room the client left
+     */
+    public void exitRoom(Room room) {
+        rooms.remove(room);
+        currentRoom = rooms.isEmpty() ? null : rooms.get(rooms.size() - 1); // Only the ClientRegistry changes rooms, one change at a time
+    }
+
+    /**
+     * Reads the client's type and protocol from the first line they sent, which is the type optionally followed by a
+     * space and the protocol (text if none is given).
+     *
+     * @param line String representing the first line received from the client
+     * @return Boolean representing whether the line named a valid type and protocol
+     */
+    protected boolean dealWithHandshake(String line) {
+        int space = line.indexOf(' ');
+        try {
+            SenderType senderType = SenderType.valueOf(space == -1 ? line : line.substring(0, space));
+            protocol = space == -1 ? WireProtocol.text : WireProtocol.valueOf(line.substring(space + 1));
+            clientType = senderType; // Only set once the whole line is known to be valid
+            stopHandshakeDeadline();
+            if (senderType != SenderType.DoDBot) {
+                RateLimit clientRateLimit = server.getConfig().getClientRateLimit();
+                rateLimit = clientRateLimit == null ? null : clientRateLimit.newBucket();
+                typeRateLimit = server.getTypeBucket(senderType);
+            } else {
+                maxMessageBytes = Frame.MAX_LENGTH;
+                if (protocol == WireProtocol.binary) { // Its games' messages are batched, as it reads them from frames
+                    workerLink = new DoDLink(server, this);
+                }
+            }
+            return true;
+        } catch (IllegalArgumentException e) { // This is reached if the client did not send a valid type or protocol
+            Utility.print("Client " + clientID + " sent an invalid type.");
+            return false;
+        }
+    }
+
+    /**
+     * Checks that a line or frame the client is sending is not longer than it may send, so a client can never make the
+     * server hold an endless line or a huge frame in memory.
+     *
+     * @param length int representing the number of bytes of the line or frame received so far, or of the whole frame
+     *               once its length is known
+     * @throws IOException If the line or frame is too long, in which case the client is disconnected
+     */
+    protected void checkMessageLength(int length) throws IOException {
+        if (length > maxMessageBytes) {
+            Utility.print("Client " + clientID + " sent a message longer than " + maxMessageBytes + " bytes.");
+            throw new IOException("Message too long");
+        }
+    }
+
+    /**
+     * Deals with a line received from a text client depending on the client's type, the message and their current mode.
+     * A DoDClient's line is the ID of the client it is addressed to, whether it is the last line of the response and
+     * the output, separated by spaces. The line is parsed where it was read, without creating any String.
+     *
+     * @param line   ByteBuffer containing the line, which is read without changing its position
+     * @param start  int representing the index of the line's first byte
+     * @param length int representing the number of bytes in the line, without its line separator
+     */
+    protected void dealWithClientMsg(ByteBuffer line, int start, int length) {
+        int end = start + length;
+        if (Frame.equalsIgnoreCase(line, start, end, Frame.TEXT_PONG)) { // Only answers a ping, which the read already counted
+            return;
+        }
+        if (clientType != SenderType.DoDBot) {
+            dealWithChatMsg(line, start, length, Frame.TEXT_CHARSET);
+            return;
+        }
+        int firstSpace = Frame.indexOf(line, (byte) ' ', start, end);
+        int secondSpace = firstSpace == -1 ? -1 : Frame.indexOf(line, (byte) ' ', firstSpace + 1, end);
+        int targetID = firstSpace == -1 ? -1 : Frame.parseID(line, start, firstSpace);
+        if (secondSpace == -1 || targetID == -1) {
+            Utility.print("Client " + clientID + " sent an invalid message.");
+            return;
+        }
+        boolean lastLine = Frame.equalsIgnoreCase(line, firstSpace + 1, secondSpace, "true");
+        MessageType messageType = lastLine ? MessageType.DoDToClientMetaData : MessageType.DoDToClient;
+        envelope.set(messageType, clientID, targetID, line, secondSpace + 1, end - secondSpace - 1, Frame.TEXT_CHARSET);
+        if (lastLine) {
+            envelope.setGameRunning(envelope.payloadEqualsIgnoreCase("true"));
+        }
+        server.dealWithClientMsg(envelope);
+    }
+
+    /**
+     * Deals with a frame received from a binary client. A DoDClient's frames carry the ID of the client they are
+     * addressed to in their header, so they are routed without looking at the payload, apart from the tag of a
+     * DoDResponse saying whether the game is still running, which is left out of what the client is sent.
+     *
+     * @param frame  ByteBuffer containing the frame, which is read without changing its position
+     * @param start  int representing the index of the frame's type byte, just after its length
+     * @param length int representing the frame's length
+     * @throws IOException If the frame's type is not a MessageType
+     */
+    protected void dealWithClientFrame(ByteBuffer frame, int start, int length) throws IOException {
+        MessageType messageType = Frame.typeOf(frame.get(start));
+        int payloadStart = start + Frame.HEADER_SIZE;
+        int payloadLength = length - Frame.HEADER_SIZE;
+        if (messageType == MessageType.pong) { // Only answers a ping, which the read already counted
+            return;
+        }
+        if (clientType != SenderType.DoDBot) {
+            dealWithChatMsg(frame, payloadStart, payloadLength, Frame.PAYLOAD_CHARSET);
+        } else if (messageType == MessageType.DoDToClient || messageType == MessageType.DoDToClientMetaData) {
+            int targetID = frame.getInt(start + 5); // After the type byte and the senderID, which the server does not trust
+            envelope.set(messageType, clientID, targetID, frame, payloadStart, payloadLength, Frame.PAYLOAD_CHARSET);
+            if (messageType == MessageType.DoDToClientMetaData) {
+                envelope.setGameRunning(envelope.payloadEqualsIgnoreCase("true"));
+            }
+            server.dealWithClientMsg(envelope);
+        } else if (messageType == MessageType.DoDBatch) {
+            int responses = dealWithDoDBatch(envelope, frame, payloadStart, payloadStart + payloadLength);
+            server.getStats().recordDoDBatchReceived(responses);
+            if (workerLink != null) {
+                workerLink.responsesReceived();
+            }
+        } else {
+            Utility.print("Client " + clientID + " sent an invalid message.");
+        }
+    }
+
+    /**
+     * Routes each response in a DoDBatch from a DoDClient, in place. A response's payload is a tag saying whether the
+     * game is still running followed by the game's whole output, which is all the client is sent. A batch which does
+     * not hold whole entries is only routed up to its first broken entry.
+     *
+     * @param envelope Envelope the responses are routed in, only used by the calling thread
+     * @param frame    ByteBuffer containing the batch, which is read without changing its position
+     * @param from     int representing the index of the first entry
+     * @param to       int representing the index after the last entry
+     * @return int representing the number of responses routed
+     * @throws IOException If an entry's type is not a MessageType
+     */
+    protected int dealWithDoDBatch(Envelope envelope, ByteBuffer frame, int from, int to) throws IOException {
+        int tagLength = Frame.DOD_RUNNING.length();
+        int responses = 0;
+        for (int entry = from; entry < to; ) {
+            int payloadStart = entry + Frame.DOD_ENTRY_HEADER_SIZE;
+            int payloadLength = payloadStart <= to ? frame.getInt(entry + 9) : -1;
+            if (payloadLength < 0 || payloadLength > to - payloadStart) {
+                Utility.print("Client " + clientID + " sent an invalid batch.");
+                break;
+            }
+            MessageType messageType = Frame.typeOf(frame.get(entry));
+            if (messageType == MessageType.DoDResponse && payloadLength >= tagLength) {
+                envelope.set(messageType, clientID, frame.getInt(entry + 1), frame, payloadStart + tagLength,
+                        payloadLength - tagLength, Frame.PAYLOAD_CHARSET);
+                envelope.setGameRunning(Frame.equalsIgnoreCase(frame, payloadStart, payloadStart + tagLength, Frame.DOD_RUNNING));
+                envelope.setSequence(frame.getInt(entry + 5));
+                server.dealWithClientMsg(envelope);
+                responses++;
+            } // A pong only answers a ping, which the read already counted
+            entry = payloadStart + payloadLength;
+        }
+        return responses;
+    }
+
+    /**
+     * Sends this DoDClient a message about a client's game, in the next batch if it speaks binary, or else on its own.
+     *
+     * @param type         MessageType representing what the message is (DoDNewGame, DoDMidGame or DoDEndGame)
+     * @param clientThread ClientHandler representing the client playing the game
+     * @param envelope     Envelope representing the client's move for a DoDMidGame message, or null for the others
+     */
+    public void sendDoDCommand(MessageType type, ClientHandler clientThread, Envelope envelope) {
+        int sequence = clientThread.DoDSequence.incrementAndGet();
+        if (type == MessageType.DoDNewGame) {
+            clientThread.DoDGameSequence = sequence;
+        }
+        deliverDoDCommand(type, clientThread.getClientID(), sequence, envelope);
+    }
+
+    /**
+     * Delivers a numbered message about a client's game to this DoDClient.
+     *
+     * @param type     MessageType representing what the message is (DoDNewGame, DoDMidGame or DoDEndGame)
+     * @param clientID int representing the ID of the client playing the game
+     * @param sequence int representing the message's sequence number within the client's games
+     * @param envelope Envelope representing the client's move for a DoDMidGame message, or null for the others
+     */
+    protected void deliverDoDCommand(MessageType type, int clientID, int sequence, Envelope envelope) {
+        if (workerLink == null) {
+            if (envelope == null) {
+                send(type, clientID, "");
+            } else {
+                forward(envelope);
+            }
+        } else if (envelope == null) {
+            workerLink.add(type, clientID, sequence, ByteBuffer.allocate(0), 0, 0);
+        } else {
+            ByteBuffer payload = envelope.payloadIn(Frame.PAYLOAD_CHARSET);
+            workerLink.add(type, clientID, sequence, payload, payload.position(), payload.remaining());
+        }
+    }
+
+    /**
+     * Returns whether a response from a DoDClient answers the client's current game rather than one already over.
+     *
+     * @param sequence int representing the sequence number the response carried
+     * @return Boolean representing whether the response answers a message sent since the current game started
+     */
+    public boolean isCurrentDoDGame(int sequence) {
+        return sequence - DoDGameSequence >= 0; // Compared by their difference, so the sequence numbers may wrap around
+    }
+
+    /**
+     * Deals with a message from a ChatClient or ChatBot depending on the message and their current mode.
+     *
+     * @param source        ByteBuffer containing the message, which is read without changing its position
+     * @param start         int representing the index of the message's first byte
+     * @param length        int representing the number of bytes in the message
+     * @param sourceCharset Charset the message is encoded in
+     */
+    private void dealWithChatMsg(ByteBuffer source, int start, int length, Charset sourceCharset) {
+        if (!admit()) { // Messages over the client's rate limit never reach the server's routing
+            return;
+        }
+        MessageType messageType;
+        if (inDoDGame) { // If the client is in the middle of a DoD game, then the message is forwarded to the DoDClient
+            messageType = MessageType.DoDMidGame;
+        } else if (Frame.equalsIgnoreCase(source, start, start + length, "JOIN")) { // If the user requests to start a DoD game
+            messageType = MessageType.DoDNewGame;
+        } else if (startsWithCommand(source, start, length, "/join")) { // If the user requests to join or talk in a room
+            messageType = MessageType.joinRoom;
+        } else if (startsWithCommand(source, start, length, "/leave")) { // If the user requests to leave a room
+            messageType = MessageType.leaveRoom;
+        } else if (startsWithCommand(source, start, length, "/msg")) { // If the user sends a message to one client
+            dealWithDirectMsg(source, start + "/msg".length(), start + length, sourceCharset);
+            return;
+        } else { // All other messages are broadcasted in the client's current room
+            messageType = clientType == SenderType.client ? MessageType.broadcastClient : MessageType.broadcastBot;
+        }
+        if (messageType == MessageType.joinRoom || messageType == MessageType.leaveRoom) { // The payload is the room's name
+            int commandLength = messageType == MessageType.joinRoom ? "/join".length() : "/leave".length();
+            envelope.set(messageType, clientID, Frame.NO_CLIENT, source, start + commandLength, length - commandLength, sourceCharset);
+        } else {
+            envelope.set(messageType, clientID, Frame.NO_CLIENT, source, start, length, sourceCharset);
+            envelope.setRoom(currentRoom);
+        }
+        server.dealWithClientMsg(envelope);
+    }
+
+    /**
+     * Deals with a direct message, which is the recipient's ID followed by a space and the message. The recipient's ID
+     * is parsed in place; if it is missing or invalid, or there is no message, the target is left as Frame.NO_CLIENT
+     * so the server can tell the sender how to use the command.
+     *
+     * @param source        ByteBuffer containing the message, which is read without changing its position
+     * @param argsStart     int representing the index of the first byte after the command
+     * @param end           int representing the index after the message's last byte
+     * @param sourceCharset Charset the message is encoded in
+     */
+    private void dealWithDirectMsg(ByteBuffer source, int argsStart, int end, Charset sourceCharset) {
+        int idStart = argsStart + 1; // After the space following the command
+        int idEnd = idStart < end ? Frame.indexOf(source, (byte) ' ', idStart, end) : -1;
+        if (idEnd == -1 || idEnd + 1 >= end) { // There is no ID or no message
+            envelope.set(MessageType.directMessage, clientID, Frame.NO_CLIENT, source, end, 0, sourceCharset);
+        } else {
+            int targetID = Frame.parseID(source, idStart, idEnd); // Frame.NO_CLIENT if the ID is invalid
+            envelope.set(MessageType.directMessage, clientID, targetID, source, idEnd + 1, end - idEnd - 1, sourceCharset);
+        }
+        server.dealWithClientMsg(envelope);
+    }
+
+    /**
+     * Checks a message against the client's rate limits before it is routed, taking a token from each bucket. Taking a
+     * token is a single compare-and-set, so no lock is held. What happens to a message over a limit depends on the
+     * server's RateLimitPolicy.
+     *
+     * @return Boolean representing whether the message should be routed
+     */
+    private boolean admit() {
+        if (throttledOut) { // The rest of what the client sent before being disconnected is ignored
+            return false;
+        }
+        if (rateLimit == null && typeRateLimit == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        RateLimitPolicy policy = server.getConfig().getRateLimitPolicy();
+        if (policy == RateLimitPolicy.delay) { // Every message is let through, but reading stops until the client is back within its limits
+            long pauseNanos = Math.max(rateLimit == null ? 0 : rateLimit.take(now), typeRateLimit == null ? 0 : typeRateLimit.take(now));
+            if (pauseNanos > 0) {
+                readPauseNanos = Math.max(readPauseNanos, pauseNanos);
+                recordThrottle(policy);
+            }
+            return true;
+        }
+        if (rateLimit == null || rateLimit.tryTake(now)) {
+            if (typeRateLimit == null || typeRateLimit.tryTake(now)) {
+                throttleNotified = false;
+                return true;
+            }
+            if (rateLimit != null) { // The client is within its own limit, so it keeps the token for its next message
+                rateLimit.giveBack();
+            }
+        }
+        recordThrottle(policy);
+        if (policy == RateLimitPolicy.disconnect) {
+            throttledOut = true;
+            sendMessage("Server: You sent messages too fast and are being disconnected.");
+            terminate();
+        } else if (!throttleNotified) { // Only told once, so a client sending too fast does not also get a notice per message
+            throttleNotified = true;
+            sendMessage("Server: You are sending messages too fast. Some of your messages were dropped.");
+        }
+        return false;
+    }
+
+    /**
+     * Counts a message which was over the client's rate limit.
+     *
+     * @param policy RateLimitPolicy representing what happened to the message
+     */
+    private void recordThrottle(RateLimitPolicy policy) {
+        throttledMessages++;
+        server.getStats().recordThrottle(policy);
+    }
+
+    /**
+     * Returns whether the server should stop dealing with what the client sent to bring it back within its rate limit.
+     *
+     * @return Boolean representing whether the client is over its rate limit under the delay policy
+     */
+    protected boolean hasReadPause() {
+        return readPauseNanos > 0;
+    }
+
+    /**
+     * Returns how long the server should stop reading from the client to bring it back within its rate limit, and
+     * resets it. Called by the thread reading from the client after dealing with what it read.
+     *
+     * @return long representing the pause in nanoseconds, 0 if the client is within its limit
+     */
+    protected long takeReadPause() {
+        long pauseNanos = readPauseNanos;
+        readPauseNanos = 0;
+        return pauseNanos;
+    }
+
+    /**
+     * Returns how many of the client's messages were over its rate limit.
+     *
+     * @return long representing the number of messages over the limit
+     */
+    public long getThrottledMessages() {
+        return throttledMessages;
+    }
+
+    /**
+     * Returns whether a message is the given command, either on its own or followed by a space and its argument.
+     *
+     * @param source  ByteBuffer containing the message, which is read without changing its position
+     * @param start   int representing the index of the message's first byte
+     * @param length  int representing the number of bytes in the message
+     * @param command String made only of ASCII characters representing the command
+     * @return Boolean representing whether the message is the command
+     */
+    private static boolean startsWithCommand(ByteBuffer source, int start, int length, String command) {
+        int end = start + command.length();
+        return length >= command.length() && Frame.equalsIgnoreCase(source, start, end, command)
+                && (length == command.length() || source.get(end) == ' ');
+    }
+}
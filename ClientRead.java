@@ -1,5 +1,6 @@
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 /**
  * This class deals with reading data from the server and displaying it to the user. It inherits from thread as it is
@@ -11,14 +12,20 @@ public class ClientRead extends Thread {
      * BufferedReader which reads the text from the server.
      */
     private final BufferedReader serverIn;
+    /**
+     * PrintWriter which writes text to the server, only used here to answer the server's pings.
+     */
+    private final PrintWriter serverOut;
 
     /**
-     * Constructor that initialises the serverIn
+     * Constructor that initialises the serverIn and serverOut
      *
-     * @param serverIn BufferedReader which reads the text from the server.
+     * @param serverIn  BufferedReader which reads the text from the server.
+     * @param serverOut PrintWriter which writes text to the server.
      */
-    public ClientRead(BufferedReader serverIn) {
+    public ClientRead(BufferedReader serverIn, PrintWriter serverOut) {
         this.serverIn = serverIn; // Set up the ability to read the data from the server
+        this.serverOut = serverOut; // Set up the ability to answer the server's pings
     }
 
     /**
@@ -38,7 +45,8 @@ public class ClientRead extends Thread {
     }
 
     /**
-     * Keeps reading the data received from the server, and displaying it to the user
+     * Keeps reading the data received from the server, and displaying it to the user. The server's pings are answered
+     * rather than displayed.
      * This only stops if an IOException is thrown (if the server is forcibly closed) or if the serverResponse is null,
      * which occurs if the server closed peacefully.
      *
@@ -50,6 +58,10 @@ public class ClientRead extends Thread {
             if (serverResponse == null) {
                 break;
             } // Breaks if serverMsg is null as that implies the server has been shut down
+            if (serverResponse.equals(Frame.TEXT_PING)) { // The server checks the client is still there
+                serverOut.println(Frame.TEXT_PONG);
+                continue;
+            }
             Utility.print(serverResponse); // Displays serverResponse to the user
         }
     }
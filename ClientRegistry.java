@@ -0,0 +1,262 @@
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class stores the clients connected to the server, indexed by their ID, by their type and by their mode
+ * (in a DoD game or in broadcast mode), so that looking up, adding and removing a client takes constant time
+ * regardless of how many clients are connected. It also keeps the recipients of each kind of broadcast in prebuilt
+ * arrays, which are only rebuilt when a client joins, leaves or changes mode. All of its methods may be called concurrently.
+ */
+public class ClientRegistry {
+
+    /**
+     * ConcurrentHashMap with an Integer representing the clientID and the ClientHandler representing that client
+     */
+    private final ConcurrentHashMap<Integer, ClientHandler> clientsByID = new ConcurrentHashMap<>();
+    /**
+     * EnumMap with a SenderType and the set of clients of that type
+     */
+    private final EnumMap<SenderType, Set<ClientHandler>> clientsByType = new EnumMap<>(SenderType.class);
+    /**
+     * Set of the clients which are in the middle of a DoD game
+     */
+    private final Set<ClientHandler> DoDModeClients = ConcurrentHashMap.newKeySet();
+    /**
+     * int representing the number of shards the clients' connections are spread over
+     */
+    private final int shards;
+    /**
+     * ConcurrentHashMap with a String representing a room's name and the Room of that name. A room is removed once
+     * its last member leaves.
+     */
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    /**
+     * MessageHistoryPool the rooms take their history from, only used while holding audienceLock
+     */
+    private final MessageHistoryPool historyPool;
+    /**
+     * ReentrantLock making every change of a client's presence, mode or rooms and the rebuild of the audiences that
+     * follows it happen one at a time, so the audiences always reflect the latest change
+     */
+    private final ReentrantLock audienceLock = new ReentrantLock();
+    /**
+     * DoDWorkerRing of the DoDClients which run the DoD games, only replaced while holding audienceLock
+     */
+    private volatile DoDWorkerRing DoDWorkers = DoDWorkerRing.EMPTY;
+
+    /**
+     * The constructor creates an empty set for every type of client.
+     *
+     * @param shards          int representing the number of shards the clients' connections are spread over
+     * @param historyMessages int representing the most broadcasts each room keeps for clients joining it, 0 for none
+     */
+    public ClientRegistry(int shards, int historyMessages) {
+        this.shards = shards;
+        this.historyPool = new MessageHistoryPool(historyMessages);
+        for (SenderType senderType : SenderType.values()) {
+            clientsByType.put(senderType, ConcurrentHashMap.newKeySet());
+        }
+    }
+
+    /**
+     * Adds a client whose type is known to the registry. Clients always start in broadcast mode, and ChatClients
+     * and ChatBots start in the lobby.
+     *
+     * @param clientHandler ClientHandler representing the client to add
+     */
+    public void add(ClientHandler clientHandler) {
+        audienceLock.lock();
+        try {
+            clientsByID.put(clientHandler.getClientID(), clientHandler);
+            clientsByType.get(clientHandler.getClientType()).add(clientHandler);
+            if (clientHandler.getClientType() == SenderType.DoDBot) {
+                DoDWorkers = DoDWorkers.with(clientHandler); // New games may now be placed on it
+            } else {
+                addToRoom(clientHandler, Room.LOBBY);
+            }
+        } finally {
+            audienceLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a client from the registry.
+     *
+     * @param clientHandler ClientHandler representing the client to remove
+     */
+    public void remove(ClientHandler clientHandler) {
+        audienceLock.lock();
+        try {
+            clientsByID.remove(clientHandler.getClientID(), clientHandler);
+            clientsByType.get(clientHandler.getClientType()).remove(clientHandler);
+            DoDModeClients.remove(clientHandler);
+            DoDWorkers = DoDWorkers.without(clientHandler); // No new game is placed on it from now on
+            for (Room room : clientHandler.getRooms()) {
+                removeFromRoom(clientHandler, room);
+            }
+        } finally {
+            audienceLock.unlock();
+        }
+    }
+
+    /**
+     * Moves a client between DoD mode and broadcast mode.
+     *
+     * @param clientHandler ClientHandler representing the client whose mode changes
+     * @param inDoDGame     Boolean representing whether the client is now in a DoD game
+     */
+    public void setInDoDGame(ClientHandler clientHandler, boolean inDoDGame) {
+        audienceLock.lock();
+        try {
+            clientHandler.setInDoDGame(inDoDGame);
+            if (clientsByID.get(clientHandler.getClientID()) != clientHandler) {
+                return; // The client disconnected, so it must not be added back to the mode indexes
+            }
+            if (inDoDGame) {
+                DoDModeClients.add(clientHandler);
+            } else {
+                DoDModeClients.remove(clientHandler);
+            }
+            for (Room room : clientHandler.getRooms()) { // Only the rooms the client is in are affected
+                room.rebuildAudiences(shards);
+            }
+        } finally {
+            audienceLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a client to a room, creating the room if it does not exist, and makes it the room the client talks in.
+     * If the client is already in the room, it only becomes the room the client talks in.
+     *
+     * @param clientHandler ClientHandler representing the client joining the room
+     * @param roomName      String representing the name of the room, which must be valid
+     * @return Boolean representing whether the client joined, which it does not if it has disconnected
+     */
+    public boolean joinRoom(ClientHandler clientHandler, String roomName) {
+        audienceLock.lock();
+        try {
+            if (clientsByID.get(clientHandler.getClientID()) != clientHandler) {
+                return false; // The client disconnected, so it must not be added back to a room
+            }
+            addToRoom(clientHandler, roomName);
+            return true;
+        } finally {
+            audienceLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a client from a room. If it was the room the client talks in, the client goes back to talking in the
+     * room it joined most recently out of those it is still in.
+     *
+     * @param clientHandler ClientHandler representing the client leaving the room
+     * @param roomName      String representing the name of the room
+     * @return Boolean representing whether the client was in the room
+     */
+    public boolean leaveRoom(ClientHandler clientHandler, String roomName) {
+        audienceLock.lock();
+        try {
+            Room room = rooms.get(roomName);
+            if (room == null || !room.getMembers().contains(clientHandler)) {
+                return false;
+            }
+            removeFromRoom(clientHandler, room);
+            return true;
+        } finally {
+            audienceLock.unlock();
+        }
+    }
+
+    /**
+     * Adds a client to a room and rebuilds its audiences. It must be called while holding audienceLock.
+     *
+     * @param clientHandler ClientHandler representing the client joining the room
+     * @param roomName      String representing the name of the room
+     */
+    private void addToRoom(ClientHandler clientHandler, String roomName) {
+        Room room = rooms.computeIfAbsent(roomName, name -> new Room(name, shards, historyPool.take()));
+        clientHandler.enterRoom(room);
+        room.addMember(clientHandler, shards);
+    }
+
+    /**
+     * Removes a client from a room, rebuilding its audiences or removing the room if it is now empty.
+     * It must be called while holding audienceLock.
+     *
+     * @param clientHandler ClientHandler representing the client leaving the room
+     * @param room          Room the client is in
+     */
+    private void removeFromRoom(ClientHandler clientHandler, Room room) {
+        clientHandler.exitRoom(room);
+        room.getMembers().remove(clientHandler);
+        if (room.getMembers().isEmpty()) {
+            rooms.remove(room.getName(), room);
+            MessageHistory history = room.releaseHistory();
+            if (history != null) {
+                historyPool.release(history);
+            }
+        } else {
+            room.rebuildAudiences(shards);
+        }
+    }
+
+    /**
+     * Returns the client corresponding with the client's ID.
+     *
+     * @param clientID int representing the client's ID
+     * @return ClientHandler representing the client, or null if the client is not connected
+     */
+    public ClientHandler get(int clientID) {
+        return clientsByID.get(clientID);
+    }
+
+    /**
+     * Returns the DoDClients which run the DoD games, placed on a consistent hash ring.
+     *
+     * @return DoDWorkerRing of the DoDClients connected
+     */
+    public DoDWorkerRing getDoDWorkers() {
+        return DoDWorkers;
+    }
+
+    /**
+     * Returns the clients of the given type.
+     *
+     * @param senderType SenderType representing the type of the clients
+     * @return Set of the clients of the given type
+     */
+    public Set<ClientHandler> getClientsOfType(SenderType senderType) {
+        return clientsByType.get(senderType);
+    }
+
+    /**
+     * Returns the clients which are in the middle of a DoD game.
+     *
+     * @return Set of the clients in DoD mode
+     */
+    public Set<ClientHandler> getDoDModeClients() {
+        return DoDModeClients;
+    }
+
+    /**
+     * Returns the number of rooms which have at least one member.
+     *
+     * @return int representing the number of rooms
+     */
+    public int getRoomCount() {
+        return rooms.size();
+    }
+
+    /**
+     * Returns every client in the registry.
+     *
+     * @return Collection of all the clients
+     */
+    public Collection<ClientHandler> getAll() {
+        return clientsByID.values();
+    }
+}
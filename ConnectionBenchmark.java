@@ -0,0 +1,221 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class measures how many connections a running server holds and how long its broadcasts take to reach all of
+ * them, so the server's modes can be compared. It opens up to the number of connections asked for, stopping at the
+ * first one the server (or this machine) refuses, all read by a single selector thread so the benchmark itself stays
+ * cheap. One more client then sends broadcasts at a steady interval, each carrying the time it was sent, and the time
+ * every listening connection takes to receive each of them is recorded. The number of connections held and the
+ * percentiles of the broadcast latency are printed once the broadcasts have arrived.
+ * The server should be started without a rate limit ("-csr"), or with one the broadcasts are not sent faster than.
+ */
+public class ConnectionBenchmark {
+
+    /**
+     * Start of every broadcast's payload, followed by the System.nanoTime at which it was sent
+     */
+    private static final String STAMP = "t";
+    /**
+     * Longest time in milliseconds the broadcasts are waited for after the last one was sent
+     */
+    private static final int RECEIVE_TIMEOUT_MILLIS = 10000;
+    /**
+     * Longest line a listening connection is expected to receive, beyond which the line is skipped
+     */
+    private static final int MAX_LINE = 256;
+
+    /**
+     * Selector the listening connections are read with
+     */
+    private final Selector selector;
+    /**
+     * long[] of the latency of every broadcast received, in nanoseconds, only written by the reading thread
+     */
+    private final long[] latencies;
+    /**
+     * int representing the number of broadcasts received, only written by the reading thread
+     */
+    private volatile int received = 0;
+    /**
+     * Boolean representing whether the listening connections are still read from
+     */
+    private volatile boolean reading = true;
+
+    /**
+     * The constructor initialises the selector and room for every latency expected.
+     *
+     * @param expected int representing the most broadcasts the listening connections can receive in all
+     * @throws IOException If the selector cannot be opened
+     */
+    private ConnectionBenchmark(int expected) throws IOException {
+        this.selector = Selector.open();
+        this.latencies = new long[expected];
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the server's address (default localhost) and port (default 14001), the number of
+     *             connections to open (default 1000), the number of broadcasts (default 100) and the milliseconds
+     *             between two broadcasts (default 20)
+     * @throws IOException          If the selector cannot be opened or the broadcasting client cannot connect
+     * @throws InterruptedException If interrupted while waiting for the broadcasts
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String address = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? ServerConfig.parsePositive(args[1], 14001, "Port") : 14001;
+        int connections = args.length > 2 ? ServerConfig.parsePositive(args[2], 1000, "Connection count") : 1000;
+        int broadcasts = args.length > 3 ? ServerConfig.parsePositive(args[3], 100, "Broadcast count") : 100;
+        int intervalMillis = args.length > 4 ? ServerConfig.parsePositive(args[4], 20, "Broadcast interval") : 20;
+        ConnectionBenchmark benchmark = new ConnectionBenchmark(connections * broadcasts);
+        long start = System.nanoTime();
+        int opened = benchmark.open(new InetSocketAddress(address, port), connections);
+        Utility.print(String.format("%d of %d connections open in %.1fs", opened, connections, (System.nanoTime() - start) / 1e9));
+        Thread reader = new Thread(benchmark::read, "ConnectionReader");
+        reader.start();
+        TimeUnit.SECONDS.sleep(1); // Lets the server finish setting up the last connections
+        try (Socket socket = new Socket(address, port);
+             PrintWriter serverOut = new PrintWriter(socket.getOutputStream(), true)) {
+            serverOut.println(SenderType.client);
+            for (int i = 0; i < broadcasts; i++) {
+                serverOut.println(STAMP + System.nanoTime());
+                TimeUnit.MILLISECONDS.sleep(intervalMillis);
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RECEIVE_TIMEOUT_MILLIS);
+            while (benchmark.received < opened * broadcasts && System.nanoTime() - deadline < 0) {
+                TimeUnit.MILLISECONDS.sleep(10);
+            }
+        } finally {
+            benchmark.reading = false;
+            benchmark.selector.wakeup();
+            reader.join();
+            benchmark.close();
+        }
+        benchmark.print(opened, broadcasts);
+    }
+
+    /**
+     * Opens the listening connections, each introducing itself as a client, until all are open or one fails.
+     *
+     * @param server      InetSocketAddress of the server
+     * @param connections int representing the number of connections to open
+     * @return int representing the number of connections opened
+     */
+    private int open(InetSocketAddress server, int connections) {
+        ByteBuffer handshake = ByteBuffer.wrap((SenderType.client + "\n").getBytes(Frame.TEXT_CHARSET));
+        for (int i = 0; i < connections; i++) {
+            try {
+                SocketChannel channel = SocketChannel.open(server);
+                channel.write(handshake.duplicate());
+                channel.configureBlocking(false);
+                channel.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(MAX_LINE)); // Holds an unfinished line
+            } catch (IOException e) { // This is reached once the server or this machine cannot take another connection
+                Utility.print("Connection " + i + " failed: " + e.getMessage());
+                return i;
+            }
+        }
+        return connections;
+    }
+
+    /**
+     * Reads from every listening connection until the benchmark is over, recording the latency of each broadcast.
+     */
+    private void read() {
+        ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (reading) {
+                selector.select();
+                for (SelectionKey key : selector.selectedKeys()) {
+                    readBuffer.clear();
+                    if (((SocketChannel) key.channel()).read(readBuffer) == -1) { // The server closed the connection
+                        key.cancel();
+                        continue;
+                    }
+                    readBuffer.flip();
+                    readLines(readBuffer, (ByteBuffer) key.attachment(), System.nanoTime());
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) { // This is reached if a connection fails
+            Utility.print("Reading failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Deals with every complete line received on a connection, keeping an unfinished one for the next read.
+     *
+     * @param readBuffer ByteBuffer containing the bytes read
+     * @param line       ByteBuffer holding the connection's unfinished line
+     * @param now        long representing the System.nanoTime at which the bytes were read
+     */
+    private void readLines(ByteBuffer readBuffer, ByteBuffer line, long now) {
+        while (readBuffer.hasRemaining()) {
+            byte b = readBuffer.get();
+            if (b == '\n') {
+                recordLine(line.flip(), now);
+                line.clear();
+            } else if (line.hasRemaining()) { // A longer line is no broadcast of the benchmark's, so is cut short
+                line.put(b);
+            }
+        }
+    }
+
+    /**
+     * Records the latency of a broadcast, which is shown as "Client N: " followed by its payload. Any other line is
+     * ignored.
+     *
+     * @param line ByteBuffer containing the line
+     * @param now  long representing the System.nanoTime at which the line was read
+     */
+    private void recordLine(ByteBuffer line, long now) {
+        String text = new String(line.array(), 0, line.limit(), Frame.TEXT_CHARSET);
+        int stamp = text.indexOf(": " + STAMP);
+        if (!text.startsWith("Client ") || stamp == -1 || received == latencies.length) {
+            return;
+        }
+        try {
+            latencies[received] = now - Long.parseLong(text.substring(stamp + 2 + STAMP.length()));
+            received++;
+        } catch (NumberFormatException e) { // Someone else's broadcast which happens to look like one of the benchmark's
+            // Not recorded
+        }
+    }
+
+    /**
+     * Closes every listening connection and the selector.
+     *
+     * @throws IOException If the selector fails to close
+     */
+    private void close() throws IOException {
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Prints how many broadcasts were received and the percentiles of their latency.
+     *
+     * @param opened     int representing the number of listening connections
+     * @param broadcasts int representing the number of broadcasts sent
+     */
+    private void print(int opened, int broadcasts) {
+        long[] sorted = Arrays.copyOf(latencies, received);
+        Arrays.sort(sorted);
+        Utility.print(received + " of " + (long) opened * broadcasts + " broadcasts received");
+        if (sorted.length > 0) {
+            Utility.print("Broadcast latency in us: p50 " + DoDLatencyBenchmark.micros(sorted, 0.50) + ", p90 "
+                    + DoDLatencyBenchmark.micros(sorted, 0.90) + ", p99 " + DoDLatencyBenchmark.micros(sorted, 0.99)
+                    + ", max " + DoDLatencyBenchmark.micros(sorted, 1.0));
+        }
+    }
+}
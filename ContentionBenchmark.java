@@ -0,0 +1,163 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * This class measures whether a DoD move waits behind broadcasts, by timing the round trip of moves through a running
+ * server first while it is idle and then while other clients flood it with broadcasts. Many listening clients are
+ * connected throughout, so every broadcast of the flood is fanned out to all of them. A player times its moves in the
+ * same way as DoDLatencyBenchmark, and the percentiles of both runs are printed side by side; if routing a DoD move
+ * does not contend with the broadcasts, they stay close.
+ * The server should be started without a rate limit ("-csr"), and a DoDClient (or the server's own DoD engine) must
+ * be running.
+ */
+public class ContentionBenchmark {
+
+    /**
+     * Number of broadcasts a flooding client sends before flushing them to the server
+     */
+    private static final int FLOOD_BATCH = 100;
+
+    /**
+     * Boolean representing whether the flooding clients keep sending broadcasts
+     */
+    private static volatile boolean flooding = false;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the server's address (default localhost) and port (default 14001), the number of
+     *             listening clients (default 200) and flooding clients (default 1), and the moves timed in each run
+     *             (default 2000)
+     * @throws IOException          If the listening or flooding clients cannot connect
+     * @throws InterruptedException If interrupted while waiting for the clients
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String address = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? ServerConfig.parsePositive(args[1], 14001, "Port") : 14001;
+        int listeners = args.length > 2 ? ServerConfig.parsePositive(args[2], 200, "Listener count") : 200;
+        int flooders = args.length > 3 ? ServerConfig.parsePositive(args[3], 1, "Flooder count") : 1;
+        int moves = args.length > 4 ? ServerConfig.parsePositive(args[4], 2000, "Move count") : 2000;
+        List<Socket> sockets = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        try {
+            for (int i = 0; i < listeners; i++) {
+                Socket socket = connect(address, port, sockets);
+                threads.add(start("Listener-" + i, () -> discard(socket)));
+            }
+            long[] idle = DoDLatencyBenchmark.play(address, port, moves);
+            flooding = true;
+            for (int i = 0; i < flooders; i++) {
+                Socket socket = connect(address, port, sockets);
+                threads.add(start("FloodReader-" + i, () -> discard(socket)));
+                int flooder = i;
+                threads.add(start("Flooder-" + i, () -> flood(socket, flooder)));
+            }
+            long[] flood = DoDLatencyBenchmark.play(address, port, moves);
+            flooding = false;
+            Utility.print(listeners + " listening clients, " + flooders + " flooding clients, " + moves + " moves in each run");
+            print("Idle", idle);
+            print("Flood", flood);
+        } finally {
+            flooding = false;
+            for (Socket socket : sockets) {
+                socket.close(); // Ends the threads reading from the sockets
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+
+    /**
+     * Connects a chat client to the server.
+     *
+     * @param address String representing the server's address
+     * @param port    int representing the server's port
+     * @param sockets List of the sockets opened, to which the new one is added so it is closed at the end
+     * @return Socket connected to the server, once it has introduced itself as a client
+     * @throws IOException If the server cannot be reached
+     */
+    private static Socket connect(String address, int port, List<Socket> sockets) throws IOException {
+        Socket socket = new Socket(address, port);
+        sockets.add(socket);
+        socket.getOutputStream().write((SenderType.client + "\n").getBytes(Frame.TEXT_CHARSET));
+        return socket;
+    }
+
+    /**
+     * Starts a thread running the given task.
+     *
+     * @param name String representing the thread's name
+     * @param task Runnable representing what the thread does
+     * @return Thread which was started
+     */
+    private static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Reads and discards whatever the server sends a client until the connection is closed, so the server is never
+     * held up writing to it. Pings are not answered, as the run is far shorter than the idle timeout.
+     *
+     * @param socket Socket connected to the server
+     */
+    private static void discard(Socket socket) {
+        byte[] buffer = new byte[8192];
+        try {
+            InputStream serverIn = socket.getInputStream();
+            while (serverIn.read(buffer) != -1) {
+                // Only read so the server can keep writing
+            }
+        } catch (IOException e) { // This is reached once the benchmark closes the socket
+            // The benchmark is over
+        }
+    }
+
+    /**
+     * Sends broadcasts to the server as fast as it takes them until the flood is over.
+     *
+     * @param socket  Socket connected to the server
+     * @param flooder int representing the flooding client's number, which its broadcasts carry
+     */
+    private static void flood(Socket socket, int flooder) {
+        try {
+            PrintWriter serverOut = new PrintWriter(socket.getOutputStream(), false);
+            for (long sent = 0; flooding; ) {
+                for (int i = 0; i < FLOOD_BATCH; i++) {
+                    serverOut.println("flood " + flooder + " broadcast " + sent++);
+                }
+                serverOut.flush();
+                if (serverOut.checkError()) { // The connection was closed
+                    return;
+                }
+            }
+        } catch (IOException e) { // This is reached if the socket was closed
+            // The benchmark is over
+        }
+    }
+
+    /**
+     * Prints the percentiles of a run's round trips.
+     *
+     * @param name       String representing the run
+     * @param roundTrips long[] of the round trips in nanoseconds, in any order
+     */
+    private static void print(String name, long[] roundTrips) {
+        long[] sorted = roundTrips.clone();
+        Arrays.sort(sorted);
+        if (sorted.length == 0) {
+            Utility.print(name + ": no moves were answered.");
+            return;
+        }
+        Utility.print(name + " round trip in us: p50 " + DoDLatencyBenchmark.micros(sorted, 0.50) + ", p90 "
+                + DoDLatencyBenchmark.micros(sorted, 0.90) + ", p99 " + DoDLatencyBenchmark.micros(sorted, 0.99)
+                + ", max " + DoDLatencyBenchmark.micros(sorted, 1.0) + " (" + sorted.length + " moves)");
+    }
+}
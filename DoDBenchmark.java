@@ -0,0 +1,65 @@
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class measures how many DoD turns a second a DoDClient's game sessions sustain, without the network. Many games
+ * are played at once on a shared pool of threads, just as in a DoDClient, each by a player who makes their next random
+ * move as soon as the response to the last arrives, and who starts a new game once one ends. The rate is printed for
+ * every second, then for the whole run, so runs with different numbers of threads show how the games scale with cores.
+ */
+public class DoDBenchmark {
+
+    /**
+     * Moves the players choose from at random
+     */
+    private static final String[] MOVES = {"MOVE N", "MOVE S", "MOVE E", "MOVE W", "LOOK", "PICKUP", "GOLD"};
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the number of games played at once (default 1000), threads (default one per core) and
+     *             seconds to run for (default 10)
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int games = args.length > 0 ? ServerConfig.parsePositive(args[0], 1000, "Game count") : 1000;
+        int threads = args.length > 1 ? ServerConfig.parsePositive(args[1], cores, "Thread count") : cores;
+        int seconds = args.length > 2 ? ServerConfig.parsePositive(args[2], 10, "Duration") : 10;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        LongAdder turns = new LongAdder();
+        LongAdder gamesPlayed = new LongAdder();
+        for (int i = 0; i < games; i++) {
+            int clientID = i;
+            GameSession[] session = new GameSession[1]; // The response handler needs the session it belongs to
+            session[0] = new GameSession(clientID, executor, response -> {
+                turns.increment();
+                if (session[0].getGameRunning()) { // The player makes their next move straight away
+                    String move = MOVES[ThreadLocalRandom.current().nextInt(MOVES.length)];
+                    session[0].tell(new Frame(MessageType.DoDMidGame, clientID, Frame.NO_CLIENT, move));
+                } else if (!executor.isShutdown()) { // The game ended, so the player starts a new one
+                    gamesPlayed.increment();
+                    session[0].tell(new Frame(MessageType.DoDNewGame, clientID, Frame.NO_CLIENT, ""));
+                }
+            });
+            session[0].tell(new Frame(MessageType.DoDNewGame, clientID, Frame.NO_CLIENT, ""));
+        }
+        long start = System.nanoTime();
+        long lastTurns = 0;
+        for (int second = 1; second <= seconds; second++) {
+            TimeUnit.SECONDS.sleep(1);
+            long nowTurns = turns.sum();
+            Utility.print("Second " + second + ": " + (nowTurns - lastTurns) + " turns");
+            lastTurns = nowTurns;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long played = turns.sum();
+        executor.shutdownNow();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+        Utility.print(String.format("%d games on %d threads (%d cores): %.0f turns/s, %d games finished",
+                games, threads, cores, played / elapsed, gamesPlayed.sum()));
+    }
+}
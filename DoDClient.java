@@ -1,15 +1,50 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.util.HashMap;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This class represents a type of client, a DoDClient.
+ * It exchanges binary frames with the server, so the ID of the client each message is about travels in the frame's
+ * header rather than at the start of a line which has to be split.
+ * Each client's game is a GameSession actor run by a DoDEngine on a shared pool of threads, so the games of different
+ * clients are played on every core at once while the moves within a game are still played in order.
+ * The server sends the moves of many games in one DoDBatch frame, and the responses are sent back in batches too, each
+ * carrying the sequence number of the move it answers, so one connection carries the moves of every game.
  */
 public class DoDClient extends Client {
 
     /**
-     * HashMap with a String representing the clientID and a GameLogic instance representing the game they are playing
+     * DoDEngine playing the games, on one thread per core by default
      */
-    private final HashMap<String, GameLogic> ongoingGames = new HashMap<>();
+    private final DoDEngine engine;
+    /**
+     * Queue of the batch entries of the responses waiting to be written to the server. The sessions only add their
+     * responses to it, so a session never waits for another's response to be written.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+    /**
+     * AtomicBoolean representing whether a thread is writing the queued responses to the server.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    /**
+     * AtomicBoolean representing whether a task writing the queued responses is waiting to run on the engine's executor.
+     */
+    private final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+    /**
+     * DataInputStream which reads the frames from the server.
+     */
+    private DataInputStream frameIn;
+    /**
+     * OutputStream which writes the frames to the server, flushed once per response.
+     */
+    private OutputStream frameOut;
 
     /**
      * The constructor initialises userInput, socket (after validation), serverIn and serverOut.
@@ -17,10 +52,13 @@ public class DoDClient extends Client {
      *
      * @param consoleAddress String representing the address entered into the console (default is "localhost" if none was entered)
      * @param consolePort    String representing the port number entered into the console (default is "14001" if none was entered)
+     * @param gameThreads    int representing the number of threads the games are played on
      */
-    public DoDClient(String consoleAddress, String consolePort) {
+    public DoDClient(String consoleAddress, String consolePort, int gameThreads) {
         super(consoleAddress, consolePort); // Sets up the connection with the server and initialises the required BufferedReaders and PrintWriter
-        serverOut.println(clientType()); // Sends the server a message informing it which type of client it is
+        this.engine = new DoDEngine(gameThreads, "DoDGame", this::queueResponse);
+        serverOut.println(clientType() + " " + WireProtocol.binary); // Sends the server a message informing it which type of client it is and that it speaks binary frames
+        serverOut.flush(); // Flushed before any frame is written to the socket
     }
 
     /**
@@ -32,10 +70,12 @@ public class DoDClient extends Client {
     public static void main(String[] args) {
         String portString = "14001"; // Default portString is set to 14001 as required
         String addressIP = "localhost"; // Default addressIP is set to localhost as required
+        int gameThreads = Runtime.getRuntime().availableProcessors(); // Default is one thread per core
         /*
         Loops through all arguments and checks for "-cca" at which point it assigns the addressIP to the next argument
         and "-ccp" at which point it assigns the portString to the next argument.
         Hence, if multiple "-cca"/"-ccp" are entered, the last "-cca"/"-ccp" instance will be the determining one.
+        "-cct" sets the number of threads the games are played on in the same way.
          */
         for (int i = 0; i < args.length - 1; i++) {
             if (args[i].equals("-cca")) {
@@ -44,8 +84,11 @@ public class DoDClient extends Client {
             if (args[i].equals("-ccp")) {
                 portString = args[i + 1];
             }
+            if (args[i].equals("-cct")) {
+                gameThreads = ServerConfig.parsePositive(args[i + 1], gameThreads, "Game thread count");
+            }
         }
-        DoDClient myDoDClient = new DoDClient(addressIP, portString); // Creates an instance of ChatClient
+        DoDClient myDoDClient = new DoDClient(addressIP, portString, gameThreads); // Creates an instance of ChatClient
         myDoDClient.go(); // Calls the go method
     }
 
@@ -57,88 +100,123 @@ public class DoDClient extends Client {
     @Override
     public void go() {
         try {
+            frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            frameOut = new BufferedOutputStream(socket.getOutputStream());
             mainLoop();
         } catch (IOException e) { // This is reached if the server is closed forcibly.
             Utility.print("Server forcibly closed.");
         } finally {
+            engine.shutdown(); // The games can no longer be answered
             cleanShutDown(); // Closes the PrintWriter, BufferedReaders and socket
         }
     }
 
     /**
-     * Keeps reading the data received from the server, processing the data and if necessary then replying to the server
-     * This only stops if an IOException is thrown (if the server is forcibly closed) or if the serverMsg is null,
+     * Keeps reading the frames received from the server and handing them to the game session of the client they are
+     * about, without waiting for the game to be played, so the next frame is read straight away.
+     * A DoDBatch frame is handed over entry by entry, in order.
+     * This only stops if an IOException is thrown (if the server is forcibly closed) or if no frame is read,
      * which occurs if the server closed peacefully.
      *
      * @throws IOException if the server is closed forcibly
      */
     private void mainLoop() throws IOException {
-        while (true) {
-            String serverResponse = serverIn.readLine(); // Reads the data from the server
-            if (serverResponse == null) {
-                break;
-            } // Breaks if serverMsg is null as that implies the server has been shut down
-            String[] serverMsg = serverResponse.split(" ", 2);
-            if (serverMsg[0].equals("secondClient")) {
-                Utility.print("Another DoDClient connected to server.");
-            } else if (serverMsg[0].equals("disconnect")) {
-                String clientID = serverMsg[1];
-                ongoingGames.remove(clientID);
-                Utility.print("Disconnected client " + clientID);
-            } // If the message is a disconnect client then client is removed from the list of games
-            else {
-                dealWithServerMsg(serverMsg);
-            } // Deals with the message
+        ArrayList<Frame> messages = new ArrayList<>();
+        // Reads the next frame from the server, and stops if there is none as that implies the server has been shut down
+        while (Frame.readMessages(frameIn, messages)) {
+            for (Frame message : messages) {
+                dealWithMessage(message);
+            }
+            messages.clear();
         }
     }
 
     /**
-     * Depending on the serverMsg, this will either start a new game for the given clientID or attempt to input the clientID's
-     * request into the DoD game, and will send a String reply to the server
+     * Hands a message from the server to the engine, which passes it to the game session of the client it is about.
      *
-     * @param serverMsg String[] that consists of "clientID + ' ' + message" or "newGame + ' ' + clientID"
-     */
-    private void dealWithServerMsg(String[] serverMsg) {
-        String clientID;
-        String gameResponse;
-        if (serverMsg[0].equals("newGame")) { // If the command sent by the server is to start a new game
-            clientID = serverMsg[1];
-            gameResponse = createNewGame(clientID); // Creates a new game and stores it in the HashMap corresponding with clientID key
+     * @param frame Frame representing the message, on its own or from a batch
+     */
+    private void dealWithMessage(Frame frame) {
+        if (frame.getType() == MessageType.ping) { // The server checks the DoDClient is still there
+            queueResponse(Frame.encodeDoDEntry(MessageType.pong, Frame.NO_CLIENT, 0, null, ByteBuffer.allocate(0), 0, 0));
         } else {
-            clientID = serverMsg[0];
-            gameResponse = ongoingGames.get(clientID).loopTurn(serverMsg[1].toUpperCase()); // Executes a turn in the DoD game
+            engine.dealWithMessage(frame);
         }
-        sendToServer(clientID, gameResponse); // Sends gameResponse to the server
     }
 
     /**
-     * Sends the gameResponse to the server, directed to reach only the client the given clientID
+     * Queues a response to be written to the server. The first response queued since the last write hands a task
+     * writing them to the engine's executor, behind the sessions already waiting there, so the responses of every session the
+     * server's last batch woke up are written together rather than one at a time.
      *
-     * @param clientID     String representing the client's ID on the server
-     * @param gameResponse String representing the output from the DoD game
-     */
-    private void sendToServer(String clientID, String gameResponse) {
-        // Loops through each row in gameResponse and sends the row to the server
-        for (String response : gameResponse.split("\n")) {
-            // message sent to server consists of clientID, boolean representing whether it is the last message, and the response line, separated by spaces
-            serverOut.println(clientID + " " + false + " " + response);
+     * @param response ByteBuffer containing the batch entry of the response
+     */
+    private void queueResponse(ByteBuffer response) {
+        outbound.add(response);
+        if (writeScheduled.compareAndSet(false, true)) {
+            try {
+                engine.getExecutor().execute(this::writeResponses);
+            } catch (RejectedExecutionException e) { // This is reached if the DoDClient is shutting down, so nothing more is sent
+                outbound.clear();
+            }
         }
-        serverOut.println(clientID + " " + true + " " + ongoingGames.get(clientID).getGameRunning()); // Last message sends the server whether the game has ended or not
     }
 
     /**
-     * Creates a new GameLogic instance and stores it in the HashMap as the value for the clientID (which is the key)
+     * Writes the queued responses unless another thread already is. Responses queued while a thread writes are
+     * written by it too, in as few DoDBatch frames as fit within the largest frame length, and flushed together, so a
+     * burst of responses from many sessions costs one frame and one socket write. As a response may be queued just
+     * after the queue was found empty, the queue is checked once more after giving up the draining flag.
+     */
+    private void writeResponses() {
+        writeScheduled.set(false); // A response queued from now on schedules another write, unless this one takes it
+        while (!outbound.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                ArrayList<ByteBuffer> batch = new ArrayList<>();
+                int batchBytes = 0;
+                ByteBuffer queued;
+                while ((queued = outbound.poll()) != null) {
+                    if (batchBytes + queued.remaining() > Frame.MAX_LENGTH - Frame.HEADER_SIZE && !batch.isEmpty()) {
+                        writeBatch(batch, batchBytes);
+                        batch.clear();
+                        batchBytes = 0;
+                    }
+                    batch.add(queued);
+                    batchBytes += queued.remaining();
+                }
+                writeBatch(batch, batchBytes);
+                frameOut.flush(); // All the responses queued meanwhile are sent to the server together
+            } catch (IOException e) { // This is reached if the server is closed forcibly, which the reading thread deals with
+                outbound.clear();
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of responses to the server as one DoDBatch frame, without flushing it.
      *
-     * @param clientID String representing the client's ID on the server
-     * @return String to return to the server
-     */
-    private String createNewGame(String clientID) {
-        GameLogic logic = new GameLogic(1, 1); // Initialises the map
-        logic.init(); // Initialises the game settings
-        ongoingGames.put(clientID, logic);
-        Utility.print("Client " + clientID + " Started a game.");
-        return "Default Map initialised. Good Luck!";
+     * @param batch      ArrayList of the batch entries
+     * @param batchBytes int representing the number of bytes in the entries
+     * @throws IOException if the server is closed forcibly
+     */
+    private void writeBatch(ArrayList<ByteBuffer> batch, int batchBytes) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        ByteBuffer frame = Frame.encodeDoDBatch(batch, batchBytes);
+        frameOut.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
 
+    /**
+     * Only the first line is written through serverOut, and it is flushed explicitly before any frame is written.
+     *
+     * @return Boolean false, as serverOut is flushed explicitly
+     */
+    @Override
+    protected boolean autoFlush() {
+        return false;
     }
 
     /**
@@ -0,0 +1,119 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * This class runs the DoD games of many clients, each as a GameSession on a shared pool of threads. It is what a
+ * DoDClient runs its games with, and what the server runs them with when it hosts the games itself, so both play them
+ * in the same way: it is handed the messages about the games (new game, move and end of game) and hands back every
+ * response, encoded as the batch entry the server expects.
+ */
+public class DoDEngine {
+
+    /**
+     * ConcurrentHashMap with an Integer representing the clientID and a GameSession representing the game they are
+     * playing. The messages about one client's games are never handed over by two threads at once.
+     */
+    private final ConcurrentHashMap<Integer, GameSession> ongoingGames = new ConcurrentHashMap<>();
+    /**
+     * ExecutorService whose threads run the game sessions
+     */
+    private final ExecutorService gameExecutor;
+    /**
+     * Consumer which is handed every response, encoded as a batch entry, called by the thread running the session
+     */
+    private final Consumer<ByteBuffer> responses;
+
+    /**
+     * The constructor creates the pool of threads the games are played on.
+     *
+     * @param gameThreads int representing the number of threads the games are played on
+     * @param threadName  String representing the name of the threads, followed by their number
+     * @param responses   Consumer which is handed every response, encoded as a batch entry, called by the thread running
+     *                    the session
+     */
+    public DoDEngine(int gameThreads, String threadName, Consumer<ByteBuffer> responses) {
+        this.responses = responses;
+        this.gameExecutor = Executors.newFixedThreadPool(gameThreads, new ThreadFactory() {
+            private int created = 0;
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, threadName + "-" + created++);
+                thread.setDaemon(true); // The games never keep the program running once it is done with them
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Hands a message about a client's game to the game's session, without waiting for it to be dealt with.
+     *
+     * @param message Frame representing the message, whose senderID is the ID of the client playing the game
+     */
+    public void dealWithMessage(Frame message) {
+        int clientID = message.getSenderID(); // The client the message is about
+        GameSession session;
+        switch (message.getType()) {
+            case DoDEndGame: // The client is removed from the list of games, after the session deals with what it was sent before
+                session = ongoingGames.remove(clientID);
+                if (session != null) {
+                    session.tell(message);
+                }
+                break;
+            case DoDNewGame: // Creates a new session and stores it in the HashMap corresponding with clientID key
+                session = new GameSession(clientID, gameExecutor, responses);
+                ongoingGames.put(clientID, session);
+                session.tell(message);
+                break;
+            case DoDMidGame: // Hands the turn to the client's session
+                session = ongoingGames.get(clientID);
+                if (session != null) {
+                    session.tell(message);
+                }
+                break;
+        }
+    }
+
+    /**
+     * Returns the executor the games are played on, which may also run short tasks of whoever owns the engine.
+     *
+     * @return Executor running the game sessions
+     */
+    public Executor getExecutor() {
+        return gameExecutor;
+    }
+
+    /**
+     * Returns the number of games being played.
+     *
+     * @return int representing the number of games
+     */
+    public int getGames() {
+        return ongoingGames.size();
+    }
+
+    /**
+     * Stops playing the games straight away, as their responses can no longer be delivered.
+     */
+    public void shutdown() {
+        gameExecutor.shutdownNow();
+        ongoingGames.clear();
+    }
+
+    /**
+     * Waits for the threads playing the games to finish once the engine has been shut down, for at most the given time.
+     *
+     * @param timeoutMillis long representing the longest time to wait in milliseconds
+     * @return Boolean representing whether the threads finished in time
+     * @throws InterruptedException If the wait is interrupted
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return gameExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+}
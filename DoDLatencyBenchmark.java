@@ -0,0 +1,158 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class measures the round trip of a DoD move through a running server, from the moment a player sends it to the
+ * moment the game's answer arrives, so a server playing the games itself can be compared with one whose games are
+ * played by a DoDClient. Several players each join a game and send HELLO, which asks the game for the gold needed to
+ * win, then wait for the answer before sending the next; a player whose game ends joins a new one, untimed.
+ * The percentiles of the round trips are printed once every player is done. The server should be started without a
+ * rate limit ("-csr"), or the moves over it are dropped, and a player whose move is not answered within
+ * ANSWER_TIMEOUT_MILLIS gives up, even if it is sent broadcasts meanwhile.
+ */
+public class DoDLatencyBenchmark {
+
+    /**
+     * Start of the game's answer to HELLO
+     */
+    private static final String ANSWER = "Gold to win";
+    /**
+     * Longest time in milliseconds a player waits for the answer to a move, or for a game to start, before giving up
+     */
+    private static final int ANSWER_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the server's address (default localhost) and port (default 14001), the number of players
+     *             (default 1) and moves each player sends (default 10000)
+     * @throws InterruptedException If interrupted while waiting for the players
+     */
+    public static void main(String[] args) throws InterruptedException {
+        String address = args.length > 0 ? args[0] : "localhost";
+        String port = args.length > 1 ? args[1] : "14001";
+        int players = args.length > 2 ? ServerConfig.parsePositive(args[2], 1, "Player count") : 1;
+        int moves = args.length > 3 ? ServerConfig.parsePositive(args[3], 10000, "Move count") : 10000;
+        long[][] roundTrips = new long[players][];
+        Thread[] threads = new Thread[players];
+        long start = System.nanoTime();
+        for (int i = 0; i < players; i++) {
+            int player = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    roundTrips[player] = play(address, Integer.parseInt(port), moves);
+                } catch (IOException | NumberFormatException e) { // This is reached if the server cannot be reached or closes
+                    Utility.print("Player " + player + " failed: " + e.getMessage());
+                    roundTrips[player] = new long[0];
+                }
+            }, "DoDPlayer-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long[] all = Arrays.stream(roundTrips).flatMapToLong(Arrays::stream).sorted().toArray();
+        if (all.length == 0) {
+            Utility.print("No moves were answered.");
+            return;
+        }
+        Utility.print(String.format("%d players, %d moves answered in %.1fs (%.0f moves/s)", players, all.length, elapsed,
+                all.length / elapsed));
+        Utility.print("Round trip in us: p50 " + micros(all, 0.50) + ", p90 " + micros(all, 0.90) + ", p99 "
+                + micros(all, 0.99) + ", max " + micros(all, 1.0));
+    }
+
+    /**
+     * Plays as one player, timing the answer to every move.
+     *
+     * @param address String representing the server's address
+     * @param port    int representing the server's port
+     * @param moves   int representing the number of moves to send
+     * @return long[] of the round trips in nanoseconds, fewer than moves if the server closed first
+     * @throws IOException If the server cannot be reached
+     */
+    static long[] play(String address, int port, int moves) throws IOException {
+        long[] roundTrips = new long[moves];
+        try (Socket socket = new Socket(address, port);
+             BufferedReader serverIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter serverOut = new PrintWriter(socket.getOutputStream(), true)) {
+            socket.setSoTimeout(ANSWER_TIMEOUT_MILLIS);
+            serverOut.println(SenderType.client);
+            if (!join(serverIn, serverOut)) {
+                return new long[0];
+            }
+            for (int move = 0; move < moves; move++) {
+                long sent = System.nanoTime();
+                serverOut.println("HELLO");
+                String line;
+                while ((line = serverIn.readLine()) != null && !line.startsWith(ANSWER)) {
+                    if (System.nanoTime() - sent > TimeUnit.MILLISECONDS.toNanos(ANSWER_TIMEOUT_MILLIS)) {
+                        Utility.print("A move was not answered in time.");
+                        return Arrays.copyOf(roundTrips, move);
+                    }
+                    if (line.equals(Frame.TEXT_PING)) {
+                        serverOut.println(Frame.TEXT_PONG);
+                    } else if (line.endsWith("Returning to broadcast mode")) { // The game ended, so a new one is joined and the move sent again
+                        if (!join(serverIn, serverOut)) {
+                            return Arrays.copyOf(roundTrips, move);
+                        }
+                        sent = System.nanoTime();
+                        serverOut.println("HELLO");
+                    }
+                }
+                if (line == null) { // The server closed
+                    return Arrays.copyOf(roundTrips, move);
+                }
+                roundTrips[move] = System.nanoTime() - sent;
+            }
+        }
+        return roundTrips;
+    }
+
+    /**
+     * Joins a new game and waits for it to start.
+     *
+     * @param serverIn  BufferedReader reading from the server
+     * @param serverOut PrintWriter writing to the server
+     * @return Boolean representing whether the game started, false if no DoD worker is available, the game did not start
+     * in time or the server closed
+     * @throws IOException If the connection fails
+     */
+    private static boolean join(BufferedReader serverIn, PrintWriter serverOut) throws IOException {
+        serverOut.println("JOIN");
+        long sent = System.nanoTime();
+        String line;
+        while ((line = serverIn.readLine()) != null) {
+            if (System.nanoTime() - sent > TimeUnit.MILLISECONDS.toNanos(ANSWER_TIMEOUT_MILLIS)) {
+                Utility.print("A game did not start in time.");
+                return false;
+            }
+            if (line.endsWith("Good Luck!")) {
+                return true;
+            }
+            if (line.startsWith("Server: No DoD client available")) {
+                Utility.print(line);
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a percentile of the round trips.
+     *
+     * @param sorted     long[] of the round trips in nanoseconds, in increasing order
+     * @param percentile double representing the percentile, between 0 and 1
+     * @return long representing the round trip at the percentile in microseconds
+     */
+    static long micros(long[] sorted, double percentile) {
+        int index = (int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(percentile * sorted.length) - 1));
+        return TimeUnit.NANOSECONDS.toMicros(sorted[index]);
+    }
+}
@@ -0,0 +1,147 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class represents the server's side of the link with a binary DoDClient. Rather than queueing a frame for every
+ * new game, move and end of game, the server adds each of them to the link as an entry, and the link sends every entry
+ * added since its last flush to the DoDClient in a single DoDBatch frame. An entry added while nothing is in flight, as
+ * every batch sent has been answered, or once the batch interval has passed since the last batch, is sent straight
+ * away. One added while a batch is still waiting for its answers, within an interval of it, schedules the next flush for
+ * when the interval is over. A busy link so sends about one frame per interval whatever the number of games, while the
+ * move of a lone player, whose last move was answered, is never held back.
+ * Each entry carries the player's ID and a sequence number, which the DoDClient's response carries back, so responses
+ * from different games may come back in any order without one slow game holding up the others.
+ */
+public class DoDLink {
+
+    /**
+     * ChatServer which schedules the flushes
+     */
+    private final ChatServer server;
+    /**
+     * ClientHandler representing the DoDClient the link sends to
+     */
+    private final ClientHandler worker;
+    /**
+     * Queue of the encoded entries added since the last flush
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+    /**
+     * AtomicBoolean representing whether a flush is scheduled
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    /**
+     * AtomicBoolean representing whether a thread is taking the entries out of pending and queueing them, so the
+     * entries of a client's game always reach the DoDClient in the order they were added
+     */
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+    /**
+     * long representing the System.nanoTime() at which the last batch was flushed, long ago for a new link so its
+     * first entry is sent straight away
+     */
+    private volatile long lastFlushNanos = System.nanoTime() - Long.MAX_VALUE / 2;
+    /**
+     * Boolean representing whether a batch holding a new game or a move has been sent since the DoDClient last sent
+     * back a batch of responses
+     */
+    private volatile boolean inFlight = false;
+
+    /**
+     * The constructor initialises the server and worker variables.
+     *
+     * @param server ChatServer which schedules the flushes
+     * @param worker ClientHandler representing the DoDClient the link sends to
+     */
+    public DoDLink(ChatServer server, ClientHandler worker) {
+        this.server = server;
+        this.worker = worker;
+    }
+
+    /**
+     * Adds a message about a client's game to the next batch, copying its payload, and flushes or schedules a flush
+     * unless one already is.
+     *
+     * @param type          MessageType representing what the message is (DoDNewGame, DoDMidGame or DoDEndGame)
+     * @param clientID      int representing the ID of the client playing the game
+     * @param sequence      int representing the message's sequence number within the client's games
+     * @param payload       ByteBuffer containing the payload encoded in Frame.PAYLOAD_CHARSET, read without changing its position
+     * @param payloadStart  int representing the index of the payload's first byte
+     * @param payloadLength int representing the number of bytes in the payload
+     */
+    public void add(MessageType type, int clientID, int sequence, ByteBuffer payload, int payloadStart, int payloadLength) {
+        if (payloadLength > Frame.MAX_LENGTH - Frame.HEADER_SIZE - Frame.DOD_ENTRY_HEADER_SIZE) { // It could not fit in any batch
+            Utility.print("Client " + clientID + " sent a move too long for the DoD client.");
+            return;
+        }
+        pending.add(Frame.encodeDoDEntry(type, clientID, sequence, null, payload, payloadStart, payloadLength));
+        if (scheduled.compareAndSet(false, true)) {
+            if (inFlight) { // Waits out the interval, so the entries added meanwhile join this one
+                server.scheduleDoDFlush(this, lastFlushNanos);
+            } else {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Records that the DoDClient sent back a batch of responses, so the next entry added is sent straight away. Any
+     * batch of responses counts, so a move which is never answered, as its game was already over, cannot leave the
+     * link waiting for good.
+     */
+    public void responsesReceived() {
+        inFlight = false;
+    }
+
+    /**
+     * Sends every entry added since the last flush to the DoDClient, in as few DoDBatch frames as fit within the
+     * largest frame length, unless another thread already is. The scheduled flag is cleared before the queue is read,
+     * so an entry added meanwhile either goes in this batch or schedules the next flush, and is never left behind.
+     * Only the thread holding the draining flag takes entries out of the queue, so two flushes running at once can
+     * never reorder a client's moves; as an entry may be added just after the queue was found empty, the queue is
+     * checked once more after giving up the draining flag.
+     */
+    public void flush() {
+        lastFlushNanos = System.nanoTime();
+        scheduled.set(false);
+        while (!pending.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                ArrayList<ByteBuffer> batch = new ArrayList<>();
+                int batchBytes = 0;
+                ByteBuffer entry;
+                while ((entry = pending.poll()) != null) {
+                    if (batchBytes + entry.remaining() > Frame.MAX_LENGTH - Frame.HEADER_SIZE && !batch.isEmpty()) {
+                        send(batch, batchBytes);
+                        batch.clear();
+                        batchBytes = 0;
+                    }
+                    batch.add(entry);
+                    batchBytes += entry.remaining();
+                }
+                if (!batch.isEmpty()) {
+                    send(batch, batchBytes);
+                }
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * Queues a batch to be written to the DoDClient.
+     *
+     * @param batch      ArrayList of the encoded entries
+     * @param batchBytes int representing the number of bytes in the entries
+     */
+    private void send(ArrayList<ByteBuffer> batch, int batchBytes) {
+        for (ByteBuffer entry : batch) {
+            if (entry.get(entry.position()) != (byte) MessageType.DoDEndGame.ordinal()) { // Anything but the end of a game is answered
+                inFlight = true; // Set before the batch is queued, so its answers cannot arrive first
+                break;
+            }
+        }
+        worker.queuePriority(Frame.encodeDoDBatch(batch, batchBytes));
+        server.getStats().recordDoDBatchSent(batch.size());
+    }
+}
@@ -1,5 +1,5 @@
 import java.util.HashMap;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 /**
@@ -17,18 +17,14 @@ public final class DoDUtility {
         put("W", new Coordinate(-1, 0));
     }};
     /**
-     * Random which is used to generate random numbers
-     */
-    private static final Random rand = new Random();
-
-    /**
-     * Generates a random number between 0 and the upper bound given (excluding)
+     * Generates a random number between 0 and the upper bound given (excluding). Each thread uses its own generator,
+     * so games running on different threads do not contend on a shared seed.
      *
      * @param maxNum integer representing the upper bound (excluding) to generate a random integer from
      * @return integer between 0 and maxNum - 1.
      */
     public static int getRandNum(int maxNum) {
-        return rand.nextInt(maxNum);
+        return ThreadLocalRandom.current().nextInt(maxNum);
     }
 
 }
@@ -0,0 +1,147 @@
+import java.util.Arrays;
+import java.util.TreeMap;
+
+/**
+ * This class represents the DoDClients connected to the server as workers placed on a consistent hash ring, which
+ * decides the worker a new DoD game is run by. Each worker is placed at VIRTUAL_NODES points of the ring, and a game
+ * goes to the worker owning the first point at or after the hash of the player's ID. Adding a worker therefore only
+ * moves the games which land on its own points (about 1 / workers of them) away from the others, and removing one only
+ * moves its own games, unlike placing games by the player's ID modulo the number of workers, which moves nearly all
+ * of them. Games already running stay on the worker they started on, as only that worker knows their state.
+ * It never changes once built; the ClientRegistry builds a new one whenever a DoDClient joins or leaves, so a game
+ * is placed without any lock.
+ */
+public class DoDWorkerRing {
+
+    /**
+     * Number of points each worker is placed at, so the games are spread evenly even with few workers
+     */
+    private static final int VIRTUAL_NODES = 160;
+    /**
+     * DoDWorkerRing with no workers
+     */
+    public static final DoDWorkerRing EMPTY = new DoDWorkerRing(new ClientHandler[0]);
+
+    /**
+     * Array of the workers, in the order they joined
+     */
+    private final ClientHandler[] workers;
+    /**
+     * Array of the hashes of the ring's points, in increasing order
+     */
+    private final long[] points;
+    /**
+     * Array of the worker owning each point, in the same order as points
+     */
+    private final ClientHandler[] owners;
+
+    /**
+     * The constructor places every worker's points on the ring.
+     *
+     * @param workers ClientHandler[] of the workers, which must not be changed afterwards
+     */
+    private DoDWorkerRing(ClientHandler[] workers) {
+        this.workers = workers;
+        TreeMap<Long, ClientHandler> ring = new TreeMap<>();
+        for (ClientHandler worker : workers) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.putIfAbsent(hash(((long) worker.getClientID() << 32) | i), worker); // A point a worker already holds stays with it
+            }
+        }
+        this.points = new long[ring.size()];
+        this.owners = new ClientHandler[ring.size()];
+        int index = 0;
+        for (long point : ring.keySet()) { // In increasing order of hash
+            points[index] = point;
+            owners[index++] = ring.get(point);
+        }
+    }
+
+    /**
+     * Returns a ring with a worker added.
+     *
+     * @param worker ClientHandler representing the DoDClient joining
+     * @return DoDWorkerRing with the worker's points added
+     */
+    public DoDWorkerRing with(ClientHandler worker) {
+        ClientHandler[] joined = Arrays.copyOf(workers, workers.length + 1);
+        joined[workers.length] = worker;
+        return new DoDWorkerRing(joined);
+    }
+
+    /**
+     * Returns a ring with a worker removed.
+     *
+     * @param worker ClientHandler representing the DoDClient leaving
+     * @return DoDWorkerRing without the worker's points, or this ring if the worker is not in it
+     */
+    public DoDWorkerRing without(ClientHandler worker) {
+        if (!contains(worker)) {
+            return this;
+        }
+        ClientHandler[] remaining = new ClientHandler[workers.length - 1];
+        int index = 0;
+        for (ClientHandler other : workers) {
+            if (other != worker) {
+                remaining[index++] = other;
+            }
+        }
+        return remaining.length == 0 ? EMPTY : new DoDWorkerRing(remaining);
+    }
+
+    /**
+     * Returns the worker a new DoD game of the given client is placed on.
+     *
+     * @param clientID int representing the ID of the client starting the game
+     * @return ClientHandler representing the worker owning the first point at or after the client's hash, or null if
+     * there are no workers
+     */
+    public ClientHandler workerFor(int clientID) {
+        if (points.length == 0) {
+            return null;
+        }
+        // The top bit, never set in a point's key, keeps a client from hashing to exactly one of the points
+        int index = Arrays.binarySearch(points, hash(Long.MIN_VALUE | (clientID & 0xFFFFFFFFL)));
+        if (index < 0) {
+            index = -index - 1; // The first point after the hash
+        }
+        return owners[index == points.length ? 0 : index]; // Past the last point, the ring wraps around to the first
+    }
+
+    /**
+     * Returns whether a worker is on the ring.
+     *
+     * @param worker ClientHandler representing the DoDClient
+     * @return Boolean representing whether the worker is on the ring
+     */
+    public boolean contains(ClientHandler worker) {
+        for (ClientHandler other : workers) {
+            if (other == worker) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the workers on the ring.
+     *
+     * @return ClientHandler[] of the workers, in the order they joined, which must not be changed
+     */
+    public ClientHandler[] getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Spreads the bits of a number over the whole of a long (the finaliser of the SplitMix64 generator), so
+     * consecutive client IDs and points land all around the ring.
+     *
+     * @param value long representing the number to hash
+     * @return long representing the hash
+     */
+    private static long hash(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class represents a DoD engine hosted inside the server, for servers running on a single machine. To the rest of
+ * the server it is a DoDClient like any other: it has a client ID, is placed on the ring of DoD workers and is sent the
+ * messages about the games it runs. But those messages are handed straight to its DoDEngine, with no socket, frame or
+ * event loop in between, and the engine's responses are routed by the thread which played the turn, so a move costs no
+ * network hop in either direction. The games are played on the engine's own threads, never on the server's.
+ */
+public class EmbeddedDoDWorker extends ClientHandler {
+
+    /**
+     * DoDEngine playing the games
+     */
+    private final DoDEngine engine;
+    /**
+     * ThreadLocal holding the Envelope each of the engine's threads routes its responses in, as an Envelope is only
+     * ever used by one thread
+     */
+    private final ThreadLocal<Envelope> envelopes = ThreadLocal.withInitial(Envelope::new);
+    /**
+     * AtomicBoolean representing whether the worker has been closed
+     */
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    /**
+     * The constructor sets the worker up as a binary DoDClient and creates its engine.
+     *
+     * @param server      ChatServer representing the server hosting the worker
+     * @param clientID    int representing the worker's ID
+     * @param gameThreads int representing the number of threads the games are played on
+     */
+    public EmbeddedDoDWorker(ChatServer server, int clientID, int gameThreads) {
+        super(server, clientID);
+        this.clientType = SenderType.DoDBot;
+        this.protocol = WireProtocol.binary;
+        this.engine = new DoDEngine(gameThreads, "EmbeddedDoD", this::routeResponse);
+    }
+
+    /**
+     * Hands a numbered message about a client's game straight to the engine.
+     *
+     * @param type     MessageType representing what the message is (DoDNewGame, DoDMidGame or DoDEndGame)
+     * @param clientID int representing the ID of the client playing the game
+     * @param sequence int representing the message's sequence number within the client's games
+     * @param envelope Envelope representing the client's move for a DoDMidGame message, or null for the others
+     */
+    @Override
+    protected void deliverDoDCommand(MessageType type, int clientID, int sequence, Envelope envelope) {
+        if (!closed.get()) {
+            engine.dealWithMessage(new Frame(type, clientID, Frame.NO_CLIENT, envelope == null ? "" : envelope.getPayload(), sequence));
+        }
+    }
+
+    /**
+     * Routes a response from the engine to the client it is addressed to, in the same way as a response read from a
+     * DoDClient. Called by the engine's thread which played the turn.
+     *
+     * @param response ByteBuffer containing the response encoded as a batch entry
+     */
+    private void routeResponse(ByteBuffer response) {
+        try {
+            dealWithDoDBatch(envelopes.get(), response, response.position(), response.limit());
+        } catch (IOException e) { // This is reached if the engine encoded an invalid type, which it never does
+            Utility.print("Embedded DoD engine sent an invalid response.");
+        }
+    }
+
+    /**
+     * The worker is part of the server, so it is never checked for being silent.
+     */
+    @Override
+    public void startHeartbeat() {
+    }
+
+    /**
+     * Nothing but the games' messages is ever sent to a DoDClient, and those go straight to the engine, so anything
+     * else queued is discarded.
+     */
+    @Override
+    protected void scheduleDrain() {
+        ByteBuffer message;
+        while ((message = pollOutbound()) != null) {
+            recordBytesWritten(message.remaining());
+        }
+    }
+
+    /**
+     * Stops the worker, as it has no messages waiting to be delivered.
+     */
+    @Override
+    public void terminate() {
+        closeConnection();
+    }
+
+    /**
+     * Stops the engine and removes the worker from the server, which returns the clients playing on it to broadcast
+     * mode, just as when a DoDClient's connection closes.
+     */
+    @Override
+    public void closeConnection() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        engine.shutdown();
+        try {
+            server.removeClient(clientID);
+        } catch (IOException e) { // Never reached, as closing the worker again does nothing
+            Utility.print("Failed to remove the embedded DoD engine.");
+        }
+    }
+
+    /**
+     * Waits for the engine's threads to finish once the worker has been closed, for at most the given time.
+     *
+     * @param timeoutMillis long representing the longest time to wait in milliseconds
+     * @return Boolean representing whether the threads finished in time
+     * @throws InterruptedException If the wait is interrupted
+     */
+    @Override
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return engine.awaitTermination(timeoutMillis);
+    }
+}
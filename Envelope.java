@@ -0,0 +1,287 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * This class represents a message received from a client while the server routes it. Each ClientHandler reuses a
+ * single Envelope for every message it receives and keeps the routing metadata in primitive fields, so routing a
+ * message allocates nothing. The payload is left in the buffer it was read into, and its bytes are only copied when
+ * the message is encoded for its recipients.
+ * An Envelope is only used by the thread reading from its client, and only until that thread reads the next message,
+ * so nothing may keep a reference to it (or to its payload) once routing is over.
+ */
+public class Envelope {
+
+    /**
+     * MessageType representing what the message is.
+     */
+    private MessageType type;
+    /**
+     * int representing the ID of the client the message is from or about.
+     */
+    private int senderID;
+    /**
+     * int representing the ID of the client the message is addressed to, or Frame.NO_CLIENT.
+     */
+    private int targetID;
+    /**
+     * Boolean representing whether the DoD game is still running, only set for DoDToClientMetaData and DoDResponse messages.
+     */
+    private boolean gameRunning;
+    /**
+     * int representing the sequence number of a DoDResponse, tying it to the move it answers.
+     */
+    private int sequence;
+    /**
+     * ByteBuffer the message was read into, which holds the payload.
+     */
+    private ByteBuffer source;
+    /**
+     * int representing the index of the payload's first byte in source.
+     */
+    private int payloadStart;
+    /**
+     * int representing the number of bytes in the payload.
+     */
+    private int payloadLength;
+    /**
+     * Charset the payload is encoded in, depending on the protocol the client speaks.
+     */
+    private Charset payloadCharset;
+    /**
+     * Room a broadcast is sent in, or null if the message is not a broadcast or the sender is in no room.
+     */
+    private Room room;
+    /**
+     * ByteBuffer containing the payload re-encoded in the other protocol's charset, for the rare case that the two
+     * charsets differ. Only created when needed.
+     */
+    private ByteBuffer transcoded;
+    /**
+     * ByteBuffer containing the message encoded once for every text client it is broadcast to, or null if not yet encoded.
+     */
+    private ByteBuffer sharedText;
+    /**
+     * ByteBuffer containing the message encoded once for every binary client it is broadcast to, or null if not yet encoded.
+     */
+    private ByteBuffer sharedBinary;
+
+    /**
+     * Fills the envelope with the next message, discarding what it held before.
+     *
+     * @param type           MessageType representing what the message is
+     * @param senderID       int representing the ID of the client the message is from or about
+     * @param targetID       int representing the ID of the client the message is addressed to, or Frame.NO_CLIENT
+     * @param source         ByteBuffer the message was read into, which is read without changing its position
+     * @param payloadStart   int representing the index of the payload's first byte in source
+     * @param payloadLength  int representing the number of bytes in the payload
+     * @param payloadCharset Charset the payload is encoded in
+     */
+    public void set(MessageType type, int senderID, int targetID, ByteBuffer source, int payloadStart, int payloadLength,
+                    Charset payloadCharset) {
+        this.type = type;
+        this.senderID = senderID;
+        this.targetID = targetID;
+        this.gameRunning = false;
+        this.sequence = 0;
+        this.source = source;
+        this.payloadStart = payloadStart;
+        this.payloadLength = payloadLength;
+        this.payloadCharset = payloadCharset;
+        this.room = null;
+        this.transcoded = null;
+        this.sharedText = null;
+        this.sharedBinary = null;
+    }
+
+    /**
+     * Sets whether the DoD game is still running, for DoDToClientMetaData and DoDResponse messages.
+     *
+     * @param gameRunning Boolean representing whether the DoD game is still running
+     */
+    public void setGameRunning(boolean gameRunning) {
+        this.gameRunning = gameRunning;
+    }
+
+    /**
+     * Sets the sequence number of a DoDResponse, which is that of the move it answers.
+     *
+     * @param sequence int representing the sequence number
+     */
+    public void setSequence(int sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * Sets the room a broadcast is sent in. Messages sent in any room but the lobby are encoded with the room's tag
+     * before their content.
+     *
+     * @param room Room the broadcast is sent in, or null if the sender is in no room
+     */
+    public void setRoom(Room room) {
+        this.room = room;
+    }
+
+    /**
+     * Encodes the message for a single recipient in the given protocol, copying the payload's bytes once.
+     *
+     * @param protocol WireProtocol the recipient speaks
+     * @param targetID int representing the recipient's ID
+     * @return ByteBuffer containing the encoded message, ready to be queued
+     */
+    public ByteBuffer encode(WireProtocol protocol, int targetID) {
+        return encode(protocol, targetID, false);
+    }
+
+    /**
+     * Returns a view of the message encoded for every recipient of a broadcast speaking the given protocol. The message
+     * is encoded the first time the protocol is asked for into a read-only direct buffer, which is written to a
+     * channel without first being copied into a temporary native buffer, however many clients it is sent to.
+     *
+     * @param protocol WireProtocol the recipient speaks
+     * @return ByteBuffer containing the encoded message, which the recipient may consume without affecting others
+     */
+    public ByteBuffer sharedFor(WireProtocol protocol) {
+        if (protocol == WireProtocol.text) {
+            if (sharedText == null) {
+                sharedText = encode(protocol, Frame.NO_CLIENT, true).asReadOnlyBuffer();
+            }
+            return sharedText.duplicate();
+        }
+        if (sharedBinary == null) {
+            sharedBinary = encode(protocol, Frame.NO_CLIENT, true).asReadOnlyBuffer();
+        }
+        return sharedBinary.duplicate();
+    }
+
+    /**
+     * Returns the number of bytes the message takes as a binary frame, including its length prefix.
+     *
+     * @return int representing the size of the message's binary frame
+     */
+    public int frameLength() {
+        String tag = room == null ? null : room.getTag();
+        return 4 + Frame.HEADER_SIZE + (tag == null ? 0 : tag.length()) + payloadIn(Frame.PAYLOAD_CHARSET).remaining();
+    }
+
+    /**
+     * Writes the message as a binary frame at the given index of a buffer, without changing the buffer's position.
+     *
+     * @param frame ByteBuffer to write the frame into, which must have frameLength() bytes from index
+     * @param index int representing the index of the frame's first byte
+     */
+    public void putFrame(ByteBuffer frame, int index) {
+        ByteBuffer payload = payloadIn(Frame.PAYLOAD_CHARSET);
+        Frame.putFrame(frame, index, type, senderID, targetID, room == null ? null : room.getTag(), payload,
+                payload.position(), payload.remaining());
+    }
+
+    /**
+     * Returns a view of the payload encoded in the given charset, re-encoding it the first time if the payload is in
+     * the other protocol's charset. The view must only be read without changing it.
+     *
+     * @param charset Charset the payload is needed in
+     * @return ByteBuffer whose position and limit surround the payload
+     */
+    public ByteBuffer payloadIn(Charset charset) {
+        if (charset.equals(payloadCharset)) {
+            return source.duplicate().limit(payloadStart + payloadLength).position(payloadStart);
+        }
+        if (transcoded == null) {
+            transcoded = charset.encode(payloadCharset.decode(source.duplicate().limit(payloadStart + payloadLength).position(payloadStart)));
+        }
+        return transcoded;
+    }
+
+    /**
+     * Encodes the message in the given protocol, re-encoding the payload first if the protocol uses another charset.
+     *
+     * @param protocol WireProtocol to encode the message in
+     * @param targetID int representing the recipient's ID, or Frame.NO_CLIENT for a broadcast
+     * @param direct   Boolean representing whether the message is encoded into a direct buffer
+     * @return ByteBuffer containing the encoded message
+     */
+    private ByteBuffer encode(WireProtocol protocol, int targetID, boolean direct) {
+        Charset charset = Frame.charsetOf(protocol);
+        String tag = room == null ? null : room.getTag();
+        if (charset.equals(payloadCharset)) {
+            return Frame.encode(protocol, type, senderID, targetID, tag, source, payloadStart, payloadLength, direct);
+        }
+        ByteBuffer payload = payloadIn(charset);
+        return Frame.encode(protocol, type, senderID, targetID, tag, payload, payload.position(), payload.remaining(), direct);
+    }
+
+    /**
+     * Returns whether the payload is the given ASCII String, ignoring case.
+     *
+     * @param ascii String made only of ASCII characters to compare with
+     * @return Boolean representing whether the payload is the String
+     */
+    public boolean payloadEqualsIgnoreCase(String ascii) {
+        return Frame.equalsIgnoreCase(source, payloadStart, payloadStart + payloadLength, ascii);
+    }
+
+    /**
+     * Decodes the payload into a String. This allocates, so it is only used where a String is really needed.
+     *
+     * @return String representing the content of the message
+     */
+    public String getPayload() {
+        byte[] bytes = new byte[payloadLength];
+        source.get(payloadStart, bytes);
+        return new String(bytes, payloadCharset);
+    }
+
+    /**
+     * Returns what the message is.
+     *
+     * @return MessageType representing what the message is
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the ID of the client the message is from or about.
+     *
+     * @return int representing the sender's ID
+     */
+    public int getSenderID() {
+        return senderID;
+    }
+
+    /**
+     * Returns the ID of the client the message is addressed to.
+     *
+     * @return int representing the target's ID, or Frame.NO_CLIENT
+     */
+    public int getTargetID() {
+        return targetID;
+    }
+
+    /**
+     * Returns the room a broadcast is sent in.
+     *
+     * @return Room the broadcast is sent in, or null if the message is not a broadcast or the sender is in no room
+     */
+    public Room getRoom() {
+        return room;
+    }
+
+    /**
+     * Returns whether the DoD game is still running, for DoDToClientMetaData and DoDResponse messages.
+     *
+     * @return Boolean representing whether the DoD game is still running
+     */
+    public boolean isGameRunning() {
+        return gameRunning;
+    }
+
+    /**
+     * Returns the sequence number of a DoDResponse.
+     *
+     * @return int representing the sequence number of the move the response answers
+     */
+    public int getSequence() {
+        return sequence;
+    }
+}
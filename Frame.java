@@ -0,0 +1,610 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * This class represents a single message exchanged between the server and a client, and converts it to and from the
+ * bytes of either WireProtocol.
+ * A binary frame is laid out as: int length (of everything after it), byte type (the MessageType's ordinal),
+ * int senderID, int targetID and the payload encoded in UTF-8. A text message is a single line, laid out as the
+ * clients have always expected it for the given MessageType.
+ * The server and a binary DoDClient exchange DoDBatch frames, whose payload is a run of entries, each laid out as:
+ * byte type, int clientID (of the player), int sequence, int length (of the payload) and the payload. A batch carries
+ * the messages of many games in one frame, and the sequence ties each response to the move it answers.
+ */
+public class Frame {
+
+    /**
+     * Number of bytes before the payload in a frame, not counting the length itself (type, senderID and targetID).
+     */
+    public static final int HEADER_SIZE = 1 + 4 + 4;
+    /**
+     * Largest length a frame may declare. A larger length means the bytes received are not a frame at all.
+     */
+    public static final int MAX_LENGTH = 1024 * 1024;
+    /**
+     * int used as the senderID or targetID when there is no client to name, such as for broadcasts.
+     */
+    public static final int NO_CLIENT = -1;
+    /**
+     * Charset the payload of a binary frame is encoded in, fixed so both ends agree whatever their default charset.
+     */
+    public static final Charset PAYLOAD_CHARSET = StandardCharsets.UTF_8;
+    /**
+     * Charset used to encode and decode lines of text, identical to the one the clients' streams use.
+     */
+    public static final Charset TEXT_CHARSET = Charset.defaultCharset();
+    /**
+     * Line a text client receives when the server checks it is still there, which it answers with TEXT_PONG.
+     */
+    public static final String TEXT_PING = "/ping";
+    /**
+     * Line a text client sends to answer TEXT_PING.
+     */
+    public static final String TEXT_PONG = "/pong";
+    /**
+     * Number of bytes before the payload in an entry of a DoDBatch (type, clientID, sequence and length).
+     */
+    public static final int DOD_ENTRY_HEADER_SIZE = 1 + 4 + 4 + 4;
+    /**
+     * Tag before the output in a DoDResponse entry whose game is still running.
+     */
+    public static final String DOD_RUNNING = "1";
+    /**
+     * Tag before the output in a DoDResponse entry whose game has ended.
+     */
+    public static final String DOD_OVER = "0";
+    /**
+     * Line separator ending every line of text, identical to the one PrintWriter.println uses.
+     */
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+    /**
+     * Array of the MessageTypes, indexed by the type byte of a frame.
+     */
+    private static final MessageType[] TYPES = MessageType.values();
+
+    /**
+     * MessageType representing what the message is.
+     */
+    private final MessageType type;
+    /**
+     * int representing the ID of the client the message is from or about.
+     */
+    private final int senderID;
+    /**
+     * int representing the ID of the client the message is addressed to.
+     */
+    private final int targetID;
+    /**
+     * String representing the content of the message.
+     */
+    private final String payload;
+    /**
+     * int representing the sequence number of a message which came in a DoDBatch, or 0 for any other message.
+     */
+    private final int sequence;
+
+    /**
+     * The constructor initialises the type, senderID, targetID and payload variables.
+     *
+     * @param type     MessageType representing what the message is
+     * @param senderID int representing the ID of the client the message is from or about
+     * @param targetID int representing the ID of the client the message is addressed to
+     * @param payload  String representing the content of the message
+     */
+    public Frame(MessageType type, int senderID, int targetID, String payload) {
+        this(type, senderID, targetID, payload, 0);
+    }
+
+    /**
+     * The constructor initialises the type, senderID, targetID, payload and sequence variables.
+     *
+     * @param type     MessageType representing what the message is
+     * @param senderID int representing the ID of the client the message is from or about
+     * @param targetID int representing the ID of the client the message is addressed to
+     * @param payload  String representing the content of the message
+     * @param sequence int representing the sequence number the message came with in a DoDBatch
+     */
+    public Frame(MessageType type, int senderID, int targetID, String payload, int sequence) {
+        this.type = type;
+        this.senderID = senderID;
+        this.targetID = targetID;
+        this.payload = payload;
+        this.sequence = sequence;
+    }
+
+    /**
+     * Encodes a message in the given protocol.
+     *
+     * @param protocol WireProtocol representing how the message is encoded
+     * @param type     MessageType representing what the message is
+     * @param senderID int representing the ID of the client the message is from or about
+     * @param targetID int representing the ID of the client the message is addressed to
+     * @param payload  String representing the content of the message
+     * @return ByteBuffer containing the encoded message, ready to be written
+     */
+    public static ByteBuffer encode(WireProtocol protocol, MessageType type, int senderID, int targetID, String payload) {
+        byte[] payloadBytes = payload.getBytes(charsetOf(protocol));
+        return encode(protocol, type, senderID, targetID, null, ByteBuffer.wrap(payloadBytes), 0, payloadBytes.length, false);
+    }
+
+    /**
+     * Encodes the entry of a DoDBatch a DoDClient sends the server for a turn: the game's whole output, however many
+     * lines it has, tagged with whether the game is still running, so the server routes the turn once.
+     *
+     * @param clientID    int representing the ID of the client playing the game
+     * @param sequence    int representing the sequence number of the move the output answers
+     * @param output      String representing the output from the DoD game, its lines separated by "\n"
+     * @param gameRunning Boolean representing whether the game is still running
+     * @return ByteBuffer containing the encoded entry, ready to be batched
+     */
+    public static ByteBuffer encodeDoDResponse(int clientID, int sequence, String output, boolean gameRunning) {
+        byte[] outputBytes = output.getBytes(PAYLOAD_CHARSET);
+        return encodeDoDEntry(MessageType.DoDResponse, clientID, sequence, gameRunning ? DOD_RUNNING : DOD_OVER,
+                ByteBuffer.wrap(outputBytes), 0, outputBytes.length);
+    }
+
+    /**
+     * Encodes an entry of a DoDBatch, copying the payload's bytes once.
+     *
+     * @param type          MessageType representing what the message is
+     * @param clientID      int representing the ID of the client playing the game
+     * @param sequence      int representing the sequence number of the message
+     * @param tag           String made only of ASCII characters which is put before the payload, or null for none
+     * @param payload       ByteBuffer containing the payload encoded in PAYLOAD_CHARSET, read without changing its position
+     * @param payloadStart  int representing the index of the payload's first byte
+     * @param payloadLength int representing the number of bytes in the payload
+     * @return ByteBuffer containing the encoded entry, ready to be batched
+     */
+    public static ByteBuffer encodeDoDEntry(MessageType type, int clientID, int sequence, String tag,
+                                            ByteBuffer payload, int payloadStart, int payloadLength) {
+        int tagLength = tag == null ? 0 : tag.length();
+        ByteBuffer entry = ByteBuffer.allocate(DOD_ENTRY_HEADER_SIZE + tagLength + payloadLength);
+        entry.put((byte) type.ordinal()).putInt(clientID).putInt(sequence).putInt(tagLength + payloadLength);
+        putPayload(entry, tag, payload, payloadStart, payloadLength);
+        return entry.flip();
+    }
+
+    /**
+     * Encodes a DoDBatch frame holding the given entries, in order.
+     *
+     * @param entries    Iterable of the encoded entries, which are read without changing their positions
+     * @param entryBytes int representing the number of bytes in all the entries together, at most MAX_LENGTH - HEADER_SIZE
+     * @return ByteBuffer containing the encoded frame, ready to be written
+     */
+    public static ByteBuffer encodeDoDBatch(Iterable<ByteBuffer> entries, int entryBytes) {
+        ByteBuffer batch = ByteBuffer.allocate(4 + HEADER_SIZE + entryBytes);
+        putHeader(batch, 0, MessageType.DoDBatch, NO_CLIENT, NO_CLIENT, entryBytes);
+        batch.position(4 + HEADER_SIZE);
+        for (ByteBuffer entry : entries) {
+            batch.put(entry.duplicate());
+        }
+        return batch.flip();
+    }
+
+    /**
+     * Encodes a message whose payload is already encoded in the protocol's charset, copying the payload's bytes once.
+     *
+     * @param protocol      WireProtocol representing how the message is encoded
+     * @param type          MessageType representing what the message is
+     * @param senderID      int representing the ID of the client the message is from or about
+     * @param targetID      int representing the ID of the client the message is addressed to
+     * @param tag           String made only of ASCII characters which is put before the payload (such as the room a
+     *                      broadcast was sent in), or null for none
+     * @param payload       ByteBuffer containing the payload, which is read without changing its position
+     * @param payloadStart  int representing the index of the payload's first byte
+     * @param payloadLength int representing the number of bytes in the payload
+     * @param direct        Boolean representing whether the message is encoded into a direct buffer
+     * @return ByteBuffer containing the encoded message, ready to be written
+     */
+    public static ByteBuffer encode(WireProtocol protocol, MessageType type, int senderID, int targetID, String tag,
+                                    ByteBuffer payload, int payloadStart, int payloadLength, boolean direct) {
+        int tagLength = tag == null ? 0 : tag.length();
+        int size = protocol == WireProtocol.text
+                ? putLine(null, type, senderID, tag, payload, payloadStart, payloadLength)
+                : 4 + HEADER_SIZE + tagLength + payloadLength;
+        ByteBuffer encoded = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        if (protocol == WireProtocol.text) {
+            putLine(encoded, type, senderID, tag, payload, payloadStart, payloadLength);
+        } else {
+            putFrame(encoded, 0, type, senderID, targetID, tag, payload, payloadStart, payloadLength);
+            encoded.position(size);
+        }
+        return encoded.flip();
+    }
+
+    /**
+     * Writes a binary frame at the given index of a buffer, without changing the buffer's position, so a frame can be
+     * written straight into a larger buffer (such as the history of a room) without being encoded anywhere else first.
+     *
+     * @param frame         ByteBuffer to write the frame into, which must have 4 + HEADER_SIZE + the tag's and payload's
+     *                      length bytes from index
+     * @param index         int representing the index of the frame's first byte
+     * @param type          MessageType representing what the message is
+     * @param senderID      int representing the ID of the client the message is from or about
+     * @param targetID      int representing the ID of the client the message is addressed to
+     * @param tag           String made only of ASCII characters which is put before the payload, or null for none
+     * @param payload       ByteBuffer containing the payload encoded in PAYLOAD_CHARSET, read without changing its position
+     * @param payloadStart  int representing the index of the payload's first byte
+     * @param payloadLength int representing the number of bytes in the payload
+     */
+    public static void putFrame(ByteBuffer frame, int index, MessageType type, int senderID, int targetID, String tag,
+                                ByteBuffer payload, int payloadStart, int payloadLength) {
+        int tagLength = tag == null ? 0 : tag.length();
+        putHeader(frame, index, type, senderID, targetID, tagLength + payloadLength);
+        for (int i = 0; i < tagLength; i++) {
+            frame.put(index + 4 + HEADER_SIZE + i, (byte) tag.charAt(i));
+        }
+        frame.put(index + 4 + HEADER_SIZE + tagLength, payload, payloadStart, payloadLength);
+    }
+
+    /**
+     * Writes the length and header of a binary frame at the given index of a buffer, without changing its position.
+     *
+     * @param frame         ByteBuffer to write the header into
+     * @param index         int representing the index of the frame's first byte
+     * @param type          MessageType representing what the message is
+     * @param senderID      int representing the ID of the client the message is from or about
+     * @param targetID      int representing the ID of the client the message is addressed to
+     * @param payloadLength int representing the number of bytes after the header
+     */
+    private static void putHeader(ByteBuffer frame, int index, MessageType type, int senderID, int targetID, int payloadLength) {
+        frame.putInt(index, HEADER_SIZE + payloadLength);
+        frame.put(index + 4, (byte) type.ordinal());
+        frame.putInt(index + 5, senderID);
+        frame.putInt(index + 9, targetID);
+    }
+
+    /**
+     * Writes the line a text client receives for a message at the buffer's position, such as when several messages
+     * are gathered into one buffer. Called with no buffer, it only counts the bytes the line needs.
+     *
+     * @param line          ByteBuffer to write the line into, or null to only count its bytes
+     * @param type          MessageType representing what the message is
+     * @param senderID      int representing the ID of the client the message is from or about
+     * @param payload       ByteBuffer containing the payload, encoded in TEXT_CHARSET
+     * @param payloadStart  int representing the index of the payload's first byte
+     * @param payloadLength int representing the number of bytes in the payload
+     * @return int representing the number of bytes in the line, including its line separator
+     */
+    public static int putTextLine(ByteBuffer line, MessageType type, int senderID, ByteBuffer payload, int payloadStart, int payloadLength) {
+        return putLine(line, type, senderID, null, payload, payloadStart, payloadLength);
+    }
+
+    /**
+     * Writes the line a text client receives for a message, in the format the clients have always received it in.
+     * Called with no buffer, it only counts the bytes the line needs, so the line is built without any temporary String.
+     *
+     * @param line          ByteBuffer to write the line into, or null to only count its bytes
+     * @param type          MessageType representing what the message is
+     * @param senderID      int representing the ID of the client the message is from or about
+     * @param tag           String made only of ASCII characters which is put before the payload, or null for none
+     * @param payload       ByteBuffer containing the payload, encoded in TEXT_CHARSET
+     * @param payloadStart  int representing the index of the payload's first byte
+     * @param payloadLength int representing the number of bytes in the payload
+     * @return int representing the number of bytes in the line, including its line separator
+     */
+    private static int putLine(ByteBuffer line, MessageType type, int senderID, String tag, ByteBuffer payload, int payloadStart, int payloadLength) {
+        int length;
+        switch (type) {
+            case broadcastClient:
+                length = putAscii(line, "Client ") + putID(line, senderID) + putAscii(line, ": ") + putPayload(line, tag, payload, payloadStart, payloadLength);
+                break;
+            case broadcastBot:
+                length = putAscii(line, "Bot ") + putID(line, senderID) + putAscii(line, ": ") + putPayload(line, tag, payload, payloadStart, payloadLength);
+                break;
+            case directMessage:
+                length = putAscii(line, "Client ") + putID(line, senderID) + putAscii(line, " (direct): ") + putPayload(line, tag, payload, payloadStart, payloadLength);
+                break;
+            case DoDNewGame:
+                length = putAscii(line, "newGame ") + putID(line, senderID);
+                break;
+            case DoDMidGame:
+                length = putID(line, senderID) + putAscii(line, " ") + putPayload(line, tag, payload, payloadStart, payloadLength);
+                break;
+            case DoDEndGame:
+                length = putAscii(line, "disconnect ") + putID(line, senderID);
+                break;
+            case ping:
+                length = putAscii(line, TEXT_PING);
+                break;
+            default: // DoD output and server notices are sent as they are
+                length = putPayload(line, tag, payload, payloadStart, payloadLength);
+                break;
+        }
+        return length + putAscii(line, LINE_SEPARATOR);
+    }
+
+    /**
+     * Writes a String made only of ASCII characters, such as the fixed parts of a line.
+     *
+     * @param line  ByteBuffer to write into, or null to only count the bytes
+     * @param ascii String made only of ASCII characters
+     * @return int representing the number of bytes written
+     */
+    private static int putAscii(ByteBuffer line, String ascii) {
+        if (line != null) {
+            for (int i = 0; i < ascii.length(); i++) {
+                line.put((byte) ascii.charAt(i));
+            }
+        }
+        return ascii.length();
+    }
+
+    /**
+     * Writes a client ID as decimal digits.
+     *
+     * @param line     ByteBuffer to write into, or null to only count the bytes
+     * @param clientID int representing the client's ID
+     * @return int representing the number of bytes written
+     */
+    private static int putID(ByteBuffer line, int clientID) {
+        long value = clientID; // A long so that negating Integer.MIN_VALUE cannot overflow
+        int length = 1;
+        if (value < 0) {
+            value = -value;
+            length++;
+        }
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            length++;
+        }
+        if (line != null) {
+            int end = line.position() + length;
+            for (int i = end - 1; i >= line.position(); i--) {
+                line.put(i, (byte) ('0' + value % 10));
+                value /= 10;
+            }
+            if (clientID < 0) {
+                line.put(line.position(), (byte) '-');
+            }
+            line.position(end);
+        }
+        return length;
+    }
+
+    /**
+     * Writes the payload preceded by its tag, if it has one, so text clients see the same content as binary clients.
+     *
+     * @param line          ByteBuffer to write into, or null to only count the bytes
+     * @param tag           String made only of ASCII characters which is put before the payload, or null for none
+     * @param payload       ByteBuffer containing the payload, which is read without changing its position
+     * @param payloadStart  int representing the index of the payload's first byte
+     * @param payloadLength int representing the number of bytes in the payload
+     * @return int representing the number of bytes written
+     */
+    private static int putPayload(ByteBuffer line, String tag, ByteBuffer payload, int payloadStart, int payloadLength) {
+        return (tag == null ? 0 : putAscii(line, tag)) + putBytes(line, payload, payloadStart, payloadLength);
+    }
+
+    /**
+     * Copies bytes of the payload.
+     *
+     * @param line   ByteBuffer to write into, or null to only count the bytes
+     * @param source ByteBuffer containing the bytes, which is read without changing its position
+     * @param start  int representing the index of the first byte to copy
+     * @param length int representing the number of bytes to copy
+     * @return int representing the number of bytes written
+     */
+    private static int putBytes(ByteBuffer line, ByteBuffer source, int start, int length) {
+        if (line != null) {
+            line.put(line.position(), source, start, length);
+            line.position(line.position() + length);
+        }
+        return length;
+    }
+
+    /**
+     * Returns the charset a payload is encoded in when sent in the given protocol.
+     *
+     * @param protocol WireProtocol the payload is sent in
+     * @return Charset representing the payload's charset
+     */
+    public static Charset charsetOf(WireProtocol protocol) {
+        return protocol == WireProtocol.text ? TEXT_CHARSET : PAYLOAD_CHARSET;
+    }
+
+    /**
+     * Returns the index of the first occurrence of a byte within a region of a buffer.
+     *
+     * @param buffer ByteBuffer to search, which is read without changing its position
+     * @param b      byte to search for
+     * @param from   int representing the index to start searching at
+     * @param to     int representing the index to stop searching before
+     * @return int representing the index of the byte, or -1 if it is not in the region
+     */
+    public static int indexOf(ByteBuffer buffer, byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses a client ID written as decimal digits within a region of a buffer, without creating a String.
+     *
+     * @param buffer ByteBuffer containing the digits, which is read without changing its position
+     * @param from   int representing the index of the first digit
+     * @param to     int representing the index after the last digit
+     * @return int representing the client's ID, or -1 if the region is not a valid ID
+     */
+    public static int parseID(ByteBuffer buffer, int from, int to) {
+        if (from >= to || to - from > 9) { // At most 9 digits, so the value cannot overflow
+            return -1;
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Returns whether a region of a buffer holds the given ASCII String, ignoring case, without creating a String.
+     *
+     * @param buffer ByteBuffer containing the region, which is read without changing its position
+     * @param from   int representing the index of the region's first byte
+     * @param to     int representing the index after the region's last byte
+     * @param ascii  String made only of ASCII characters to compare with
+     * @return Boolean representing whether the region holds the String
+     */
+    public static boolean equalsIgnoreCase(ByteBuffer buffer, int from, int to, String ascii) {
+        if (to - from != ascii.length()) {
+            return false;
+        }
+        for (int i = 0; i < ascii.length(); i++) {
+            if (Character.toLowerCase((char) (buffer.get(from + i) & 0xff)) != Character.toLowerCase(ascii.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a whole frame from a blocking stream.
+     *
+     * @param in DataInputStream which reads the frames
+     * @return Frame representing the message read, or null if the stream ended cleanly before the frame
+     * @throws IOException If the stream fails or the bytes read are not a valid frame
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) { // This is reached if the other end closed the connection between frames
+            return null;
+        }
+        checkLength(length);
+        MessageType type = typeOf(in.readByte());
+        int senderID = in.readInt();
+        int targetID = in.readInt();
+        byte[] payload = new byte[length - HEADER_SIZE];
+        in.readFully(payload);
+        return new Frame(type, senderID, targetID, new String(payload, PAYLOAD_CHARSET));
+    }
+
+    /**
+     * Reads a whole frame from a blocking stream and adds the messages it holds to a list: each entry of a DoDBatch,
+     * with its sequence number and the ID of the client it is about as its senderID, or else the frame itself.
+     *
+     * @param in       DataInputStream which reads the frames
+     * @param messages List the messages read are added to, in order
+     * @return Boolean representing whether a frame was read, false if the stream ended cleanly before the frame
+     * @throws IOException If the stream fails or the bytes read are not a valid frame or batch
+     */
+    public static boolean readMessages(DataInputStream in, List<Frame> messages) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) { // This is reached if the other end closed the connection between frames
+            return false;
+        }
+        checkLength(length);
+        MessageType type = typeOf(in.readByte());
+        int senderID = in.readInt();
+        int targetID = in.readInt();
+        byte[] payload = new byte[length - HEADER_SIZE];
+        in.readFully(payload);
+        if (type != MessageType.DoDBatch) {
+            messages.add(new Frame(type, senderID, targetID, new String(payload, PAYLOAD_CHARSET)));
+            return true;
+        }
+        ByteBuffer batch = ByteBuffer.wrap(payload);
+        while (batch.hasRemaining()) {
+            if (batch.remaining() < DOD_ENTRY_HEADER_SIZE) {
+                throw new IOException("Truncated batch entry");
+            }
+            MessageType entryType = typeOf(batch.get());
+            int clientID = batch.getInt();
+            int sequence = batch.getInt();
+            int entryLength = batch.getInt();
+            if (entryLength < 0 || entryLength > batch.remaining()) {
+                throw new IOException("Invalid batch entry length " + entryLength);
+            }
+            messages.add(new Frame(entryType, clientID, NO_CLIENT,
+                    new String(payload, batch.position(), entryLength, PAYLOAD_CHARSET), sequence));
+            batch.position(batch.position() + entryLength);
+        }
+        return true;
+    }
+
+    /**
+     * Checks that the length read at the start of a frame is one a valid frame could have.
+     *
+     * @param length int representing the length read
+     * @throws IOException If the length is not valid
+     */
+    public static void checkLength(int length) throws IOException {
+        if (length < HEADER_SIZE || length > MAX_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    /**
+     * Returns the MessageType represented by the type byte of a frame.
+     *
+     * @param typeByte byte representing the MessageType's ordinal
+     * @return MessageType represented by the byte
+     * @throws IOException If the byte does not represent a MessageType
+     */
+    public static MessageType typeOf(byte typeByte) throws IOException {
+        if (typeByte < 0 || typeByte >= TYPES.length) {
+            throw new IOException("Invalid frame type " + typeByte);
+        }
+        return TYPES[typeByte];
+    }
+
+    /**
+     * Returns what the message is.
+     *
+     * @return MessageType representing what the message is
+     */
+    public MessageType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the ID of the client the message is from or about.
+     *
+     * @return int representing the sender's ID
+     */
+    public int getSenderID() {
+        return senderID;
+    }
+
+    /**
+     * Returns the ID of the client the message is addressed to.
+     *
+     * @return int representing the target's ID
+     */
+    public int getTargetID() {
+        return targetID;
+    }
+
+    /**
+     * Returns the content of the message.
+     *
+     * @return String representing the content of the message
+     */
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns the sequence number the message came with in a DoDBatch.
+     *
+     * @return int representing the sequence number, or 0 if the message did not come in a batch
+     */
+    public int getSequence() {
+        return sequence;
+    }
+}
@@ -0,0 +1,160 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * This class runs a single client's DoD game as an actor: the messages about the game wait in the session's own
+ * mailbox, and the session deals with them one at a time, in the order they arrived, on whichever thread of a shared
+ * executor is free. At most one thread runs a session at a time, so its GameLogic needs no lock, while the sessions of
+ * different clients run on different threads at the same time, so a DoDClient's games use every core.
+ */
+public class GameSession implements Runnable {
+
+    /**
+     * Most messages a session deals with before giving its thread up to the other sessions, so a client sending
+     * quickly cannot hold a thread while the others wait
+     */
+    private static final int MAILBOX_BATCH = 16;
+
+    /**
+     * int representing the ID on the server of the client playing the game
+     */
+    private final int clientID;
+    /**
+     * Executor shared by the sessions which runs them
+     */
+    private final Executor executor;
+    /**
+     * Consumer which is handed every response, encoded as the batch entry to send to the server
+     */
+    private final Consumer<ByteBuffer> responses;
+    /**
+     * Queue of the messages about the game which have not been dealt with yet
+     */
+    private final ConcurrentLinkedQueue<Frame> mailbox = new ConcurrentLinkedQueue<>();
+    /**
+     * AtomicBoolean representing whether the session is waiting to run on the executor or running
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    /**
+     * GameLogic of the game, or null before it starts and once it is ended. Only used by the thread running the session.
+     */
+    private GameLogic game;
+    /**
+     * Boolean representing whether the game is still running after the last message was dealt with
+     */
+    private volatile boolean gameRunning = false;
+
+    /**
+     * The constructor initialises the clientID, executor and responses variables.
+     *
+     * @param clientID  int representing the ID on the server of the client playing the game
+     * @param executor  Executor shared by the sessions which runs them
+     * @param responses Consumer which is handed every response, encoded as the batch entry to send to the server,
+     *                  called by the thread running the session
+     */
+    public GameSession(int clientID, Executor executor, Consumer<ByteBuffer> responses) {
+        this.clientID = clientID;
+        this.executor = executor;
+        this.responses = responses;
+    }
+
+    /**
+     * Adds a message about the game to the mailbox, and makes sure the session will run to deal with it. The session
+     * is only handed to the executor if it is not already waiting or running, so it never runs on two threads at once.
+     *
+     * @param message Frame representing the message from the server
+     */
+    public void tell(Frame message) {
+        mailbox.add(message);
+        if (scheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Implementation of the run method which is how the session runs on the executor. It deals with the messages in the
+     * mailbox, at most MAILBOX_BATCH of them, then hands itself back to the executor if more are waiting. As a message
+     * may arrive just after the mailbox was found empty, the mailbox is checked once more after giving up the flag.
+     */
+    @Override
+    public void run() {
+        for (int i = 0; i < MAILBOX_BATCH; i++) {
+            Frame message = mailbox.poll();
+            if (message == null) {
+                break;
+            }
+            dealWithMessage(message);
+        }
+        scheduled.set(false);
+        if (!mailbox.isEmpty() && scheduled.compareAndSet(false, true)) {
+            schedule();
+        }
+    }
+
+    /**
+     * Hands the session to the executor to run.
+     */
+    private void schedule() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) { // This is reached if the DoDClient is shutting down, so the game is dropped
+            mailbox.clear();
+        }
+    }
+
+    /**
+     * Deals with a message about the game depending on its type.
+     *
+     * @param message Frame representing the message from the server
+     */
+    private void dealWithMessage(Frame message) {
+        switch (message.getType()) {
+            case DoDNewGame: // Creates a new game
+                game = new GameLogic(1, 1); // Initialises the map
+                game.init(); // Initialises the game settings
+                Utility.print("Client " + clientID + " Started a game.");
+                respond(message.getSequence(), "Default Map initialised. Good Luck!");
+                break;
+            case DoDMidGame: // Executes a turn in the DoD game
+                String gameResponse = game == null ? null : game.loopTurn(message.getPayload().toUpperCase());
+                if (gameResponse != null) { // Otherwise the game is already over, and the server has been told so
+                    respond(message.getSequence(), gameResponse);
+                }
+                break;
+            case DoDEndGame: // The game is dropped
+                game = null;
+                gameRunning = false;
+                Utility.print("Disconnected client " + clientID);
+                break;
+        }
+    }
+
+    /**
+     * Encodes a response into the single batch entry the server expects, holding the game's whole output addressed to
+     * the client, whether the game has ended and the sequence number of the message it answers, and hands it over.
+     *
+     * @param sequence     int representing the sequence number of the message the response answers
+     * @param gameResponse String representing the output from the DoD game
+     */
+    private void respond(int sequence, String gameResponse) {
+        gameRunning = game.getGameRunning();
+        int end = gameResponse.length();
+        while (end > 0 && gameResponse.charAt(end - 1) == '\n') { // A trailing line break would show as an empty line
+            end--;
+        }
+        responses.accept(Frame.encodeDoDResponse(clientID, sequence, gameResponse.substring(0, end), gameRunning));
+    }
+
+    /**
+     * Returns whether the game is still running after the last message was dealt with.
+     *
+     * @return Boolean representing whether the game is running
+     */
+    public boolean getGameRunning() {
+        return gameRunning;
+    }
+}
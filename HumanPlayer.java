@@ -42,14 +42,14 @@ public class HumanPlayer extends Player {
 
     /**
      * Implementation of the abstract method which is how a human player deals with the return of an action.
-     * The human just prints the returnVal to the console for the user to see.
+     * The returnVal already reaches the user in the response sent to the server, so nothing is done with it here;
+     * printing it too would make every game played by the DoDClient wait for the console in turn.
      *
      * @param commandName String containing the command name the player made
      * @param returnVal   String containing the return value of the command the player has called
      */
     @Override
     public void handleCommandCallback(String commandName, String returnVal) {
-        System.out.println(returnVal);
     }
 
 
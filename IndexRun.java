@@ -0,0 +1,404 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * This class represents a run of the chat log's inverted index: a file mapping every term used in the broadcasts of
+ * a stretch of the log to the positions of the records it is used in. A run is written once and never changed, and is
+ * read through memory mapping, so looking a term up only touches the pages it needs.
+ * The file starts with HEADER_SIZE bytes (MAGIC, the number of terms, and the positions the run starts and ends at),
+ * followed by a table with an ENTRY_SIZE entry for each term, sorted by the term's UTF-8 bytes so a term is found by a
+ * binary search, then the terms' bytes, then the postings. A term's postings are the positions of its records in
+ * increasing order, each stored as its difference from the previous one in a varint (7 bits a byte, the high bit
+ * meaning more bytes follow), so most take one or two bytes however large the log grows.
+ */
+public class IndexRun {
+
+    /**
+     * int identifying a run file, "CIDX" in ASCII
+     */
+    private static final int MAGIC = 0x43494458;
+    /**
+     * Number of bytes before the table: MAGIC, the number of terms and the start and end positions
+     */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    /**
+     * Number of bytes in a table entry: the index and length of the term's bytes, the index and length of its
+     * postings, its number of postings and its last posting
+     */
+    private static final int ENTRY_SIZE = 4 + 4 + 8 + 4 + 4 + 8;
+
+    /**
+     * Path of the run's file
+     */
+    private final Path path;
+    /**
+     * MappedByteBuffer of the run's file
+     */
+    private final MappedByteBuffer map;
+    /**
+     * int representing the number of terms in the run
+     */
+    private final int termCount;
+    /**
+     * long representing the log position of the first record the run covers
+     */
+    private final long start;
+    /**
+     * long representing the log position after the last record the run covers
+     */
+    private final long end;
+
+    /**
+     * The constructor maps a run's file.
+     *
+     * @param path Path of the run's file
+     * @throws IOException If the file cannot be read or is not a run
+     */
+    public IndexRun(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (map.capacity() < HEADER_SIZE || map.getInt(0) != MAGIC) {
+            throw new IOException(path + " is not an index run");
+        }
+        this.termCount = map.getInt(4);
+        this.start = map.getLong(8);
+        this.end = map.getLong(16);
+    }
+
+    /**
+     * Writes a run to a file, first under a temporary name so a run is never seen half written.
+     *
+     * @param path     Path of the run's file
+     * @param start    long representing the log position of the first record the run covers
+     * @param end      long representing the log position after the last record the run covers
+     * @param terms    byte array array with the UTF-8 bytes of every term, sorted with compareUnsigned
+     * @param postings Postings array with the postings of each term, in the same order
+     * @throws IOException If the file cannot be written
+     */
+    static void write(Path path, long start, long end, byte[][] terms, Postings[] postings) throws IOException {
+        long size = HEADER_SIZE + (long) ENTRY_SIZE * terms.length;
+        for (int i = 0; i < terms.length; i++) {
+            size += terms[i].length + postings[i].length;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Index run of " + size + " bytes is too large");
+        }
+        ByteBuffer run = ByteBuffer.allocate((int) size);
+        run.putInt(MAGIC).putInt(terms.length).putLong(start).putLong(end);
+        int termIndex = HEADER_SIZE + ENTRY_SIZE * terms.length;
+        long postingsIndex = termIndex;
+        for (byte[] term : terms) {
+            postingsIndex += term.length;
+        }
+        for (int i = 0; i < terms.length; i++) {
+            run.putInt(termIndex).putInt(terms[i].length).putLong(postingsIndex).putInt(postings[i].length)
+                    .putInt(postings[i].count).putLong(postings[i].last);
+            termIndex += terms[i].length;
+            postingsIndex += postings[i].length;
+        }
+        for (byte[] term : terms) {
+            run.put(term);
+        }
+        for (Postings termPostings : postings) {
+            run.put(termPostings.bytes, 0, termPostings.length);
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            run.flip();
+            while (run.hasRemaining()) {
+                channel.write(run);
+            }
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Merges two runs covering consecutive stretches of the log into one covering both. A term's postings from the
+     * later run are appended to its postings from the earlier one, only the first of them being re-encoded.
+     *
+     * @param path    Path of the merged run's file
+     * @param earlier IndexRun covering the earlier stretch
+     * @param later   IndexRun covering the later stretch
+     * @return IndexRun which was written
+     * @throws IOException If the merged run cannot be written
+     */
+    static IndexRun merge(Path path, IndexRun earlier, IndexRun later) throws IOException {
+        int capacity = earlier.termCount + later.termCount;
+        byte[][] terms = new byte[capacity][];
+        Postings[] postings = new Postings[capacity];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < earlier.termCount || j < later.termCount) {
+            int order = i == earlier.termCount ? 1 : j == later.termCount ? -1
+                    : Arrays.compareUnsigned(earlier.termAt(i), later.termAt(j));
+            Postings merged = new Postings();
+            if (order <= 0) {
+                merged.appendEncoded(earlier, i);
+                terms[count] = earlier.termAt(i++);
+            }
+            if (order >= 0) {
+                merged.appendEncoded(later, j);
+                terms[count] = later.termAt(j++);
+            }
+            postings[count++] = merged;
+        }
+        write(path, earlier.start, later.end, Arrays.copyOf(terms, count), Arrays.copyOf(postings, count));
+        return new IndexRun(path);
+    }
+
+    /**
+     * Finds a term in the run by a binary search of its table.
+     *
+     * @param term byte array with the term's UTF-8 bytes
+     * @return int representing the term's entry, or -1 if the term is not in the run
+     */
+    public int find(byte[] term) {
+        int low = 0;
+        int high = termCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = HEADER_SIZE + middle * ENTRY_SIZE;
+            int order = Arrays.compareUnsigned(termBytes(entry), term);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes a term's postings into an array, after the positions already in it.
+     *
+     * @param term      int representing the term's entry
+     * @param positions long array to decode into, which must have room for the term's postings from offset
+     * @param offset    int representing the index to decode the first posting into
+     * @return int representing the index after the last posting decoded
+     */
+    public int decode(int term, long[] positions, int offset) {
+        int entry = HEADER_SIZE + term * ENTRY_SIZE;
+        int index = (int) map.getLong(entry + 8);
+        int postingsEnd = index + map.getInt(entry + 16);
+        long position = 0;
+        while (index < postingsEnd) {
+            long delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = map.get(index++);
+                delta |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            position += delta;
+            positions[offset++] = position;
+        }
+        return offset;
+    }
+
+    /**
+     * Returns the number of postings of a term.
+     *
+     * @param term int representing the term's entry
+     * @return int representing the number of records the term is used in
+     */
+    public int countOf(int term) {
+        return map.getInt(HEADER_SIZE + term * ENTRY_SIZE + 20);
+    }
+
+    /**
+     * Returns the bytes of the term at an entry of the table.
+     *
+     * @param term int representing the term's entry
+     * @return byte array with the term's UTF-8 bytes
+     */
+    private byte[] termAt(int term) {
+        return termBytes(HEADER_SIZE + term * ENTRY_SIZE);
+    }
+
+    /**
+     * Returns the bytes of the term whose table entry starts at the given index.
+     *
+     * @param entry int representing the index of the entry in the file
+     * @return byte array with the term's UTF-8 bytes
+     */
+    private byte[] termBytes(int entry) {
+        byte[] term = new byte[map.getInt(entry + 4)];
+        map.get(map.getInt(entry), term);
+        return term;
+    }
+
+    /**
+     * Returns the path of the run's file.
+     *
+     * @return Path of the run's file
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the log position of the first record the run covers.
+     *
+     * @return long representing the run's start position
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * Returns the log position after the last record the run covers.
+     *
+     * @return long representing the run's end position
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * Returns the size of the run's file.
+     *
+     * @return int representing the number of bytes in the run
+     */
+    public int size() {
+        return map.capacity();
+    }
+
+    /**
+     * This class builds the postings of a term, encoding each position as it is added.
+     */
+    static final class Postings {
+
+        /**
+         * byte array with the encoded postings, which grows as needed
+         */
+        private byte[] bytes = new byte[8];
+        /**
+         * int representing the number of bytes used in bytes
+         */
+        private int length = 0;
+        /**
+         * int representing the number of positions added
+         */
+        private int count = 0;
+        /**
+         * long representing the last position added
+         */
+        private long last = 0;
+
+        /**
+         * Adds a position, which must be greater than every position already added. A record using the term several
+         * times is only added once.
+         *
+         * @param position long representing the position of a record using the term
+         */
+        void add(long position) {
+            if (count > 0 && position == last) {
+                return;
+            }
+            putVarint(position - last);
+            last = position;
+            count++;
+        }
+
+        /**
+         * Appends a term's postings from a run, whose positions are all greater than those already added. Only the
+         * first is re-encoded, as a difference from the last position added rather than from 0.
+         *
+         * @param run  IndexRun holding the postings
+         * @param term int representing the term's entry in the run
+         */
+        private void appendEncoded(IndexRun run, int term) {
+            int entry = HEADER_SIZE + term * ENTRY_SIZE;
+            int index = (int) run.map.getLong(entry + 8);
+            int postingsLength = run.map.getInt(entry + 16);
+            long first = 0;
+            int shift = 0;
+            byte b;
+            int firstLength = 0;
+            do {
+                b = run.map.get(index + firstLength++);
+                first |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            putVarint(first - last);
+            ensureCapacity(postingsLength - firstLength);
+            run.map.get(index + firstLength, bytes, length, postingsLength - firstLength);
+            length += postingsLength - firstLength;
+            count += run.map.getInt(entry + 20);
+            last = run.map.getLong(entry + 24);
+        }
+
+        /**
+         * Appends a number as a varint.
+         *
+         * @param value long representing the number, which must not be negative
+         */
+        private void putVarint(long value) {
+            ensureCapacity(10); // The most bytes a long takes as a varint
+            while (value >= 0x80) {
+                bytes[length++] = (byte) (value | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        /**
+         * Grows bytes so that it has room for the given number of bytes more.
+         *
+         * @param needed int representing the number of bytes about to be appended
+         */
+        private void ensureCapacity(int needed) {
+            if (length + needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + needed, bytes.length * 2));
+            }
+        }
+
+        /**
+         * Decodes the postings into an array, after the positions already in it.
+         *
+         * @param positions long array to decode into, which must have room for count positions from offset
+         * @param offset    int representing the index to decode the first position into
+         * @return int representing the index after the last position decoded
+         */
+        int decode(long[] positions, int offset) {
+            long position = 0;
+            for (int index = 0; index < length; ) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[index++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                position += delta;
+                positions[offset++] = position;
+            }
+            return offset;
+        }
+
+        /**
+         * Returns the number of positions added.
+         *
+         * @return int representing the number of records the term is used in
+         */
+        int getCount() {
+            return count;
+        }
+    }
+}
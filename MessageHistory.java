@@ -0,0 +1,172 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This class keeps the most recent broadcasts sent in a room, so a client joining the room can be sent what it missed.
+ * The broadcasts are kept as binary frames in a ring of fixed size carved out of off-heap memory, which is written
+ * in place as each broadcast is sent and never grows, so keeping the history costs neither allocations nor garbage
+ * collection however many messages go through the room. Frames are never split across the end of the ring: if one
+ * does not fit before the end, the rest is left unused and it is written at the start.
+ * The oldest frames are overwritten once the ring holds as many messages as it may keep or runs out of bytes.
+ * A MessageHistory is not thread safe: its Room only uses it while holding the room's lock.
+ */
+public class MessageHistory {
+
+    /**
+     * ByteBuffer holding the frames, whose capacity is the most bytes the history may use
+     */
+    private final ByteBuffer ring;
+    /**
+     * long array with the virtual offset of each frame kept, which only ever grows, so that the frame's index in the
+     * ring is the offset modulo the ring's capacity and comparing offsets tells which frames are overwritten
+     */
+    private final long[] starts;
+    /**
+     * int array with the number of bytes of each frame kept, including its length prefix
+     */
+    private final int[] lengths;
+    /**
+     * MessageType array with what each frame kept is, so it need not be read back from the frame's type byte
+     */
+    private final MessageType[] types;
+    /**
+     * int representing the slot of the oldest frame kept
+     */
+    private int oldest = 0;
+    /**
+     * int representing the number of frames kept
+     */
+    private int count = 0;
+    /**
+     * long representing the virtual offset the next frame is written at
+     */
+    private long head = 0;
+
+    /**
+     * The constructor creates an empty history over the given memory.
+     *
+     * @param ring     ByteBuffer holding the frames, which the history uses as a whole and nothing else may change
+     * @param messages int representing the most messages the history keeps
+     */
+    public MessageHistory(ByteBuffer ring, int messages) {
+        this.ring = ring;
+        this.starts = new long[messages];
+        this.lengths = new int[messages];
+        this.types = new MessageType[messages];
+    }
+
+    /**
+     * Adds a broadcast to the history, overwriting the oldest broadcasts it needs the space of. A broadcast larger than
+     * the whole ring is not kept.
+     *
+     * @param envelope Envelope representing the broadcast being sent
+     */
+    public void append(Envelope envelope) {
+        int capacity = ring.capacity();
+        int length = envelope.frameLength();
+        if (length > capacity) {
+            return;
+        }
+        int index = (int) (head % capacity);
+        if (index + length > capacity) { // The frame does not fit before the end, so it is written at the start
+            head += capacity - index;
+            index = 0;
+        }
+        while (count > 0 && (count == starts.length || starts[oldest] < head + length - capacity)) {
+            oldest = (oldest + 1) % starts.length; // Drops the oldest frame, whose space is needed
+            count--;
+        }
+        envelope.putFrame(ring, index);
+        int slot = (oldest + count) % starts.length;
+        starts[slot] = head;
+        lengths[slot] = length;
+        types[slot] = envelope.getType();
+        count++;
+        head += length;
+    }
+
+    /**
+     * Encodes every broadcast in the history, oldest first, into a single buffer in the given protocol, so the whole
+     * history is queued and written to the client as one message.
+     *
+     * @param protocol WireProtocol the client speaks
+     * @return ByteBuffer containing the broadcasts, which is empty if the history is
+     */
+    public ByteBuffer replay(WireProtocol protocol) {
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            size += protocol == WireProtocol.binary ? lengths[slotOf(i)] : putLine(null, slotOf(i));
+        }
+        ByteBuffer replay = ByteBuffer.allocate(size);
+        for (int i = 0; i < count; i++) {
+            int slot = slotOf(i);
+            if (protocol == WireProtocol.binary) { // The frames are kept in the binary protocol, so are copied as they are
+                replay.put(replay.position(), ring, indexOf(slot), lengths[slot]);
+                replay.position(replay.position() + lengths[slot]);
+            } else {
+                putLine(replay, slot);
+            }
+        }
+        return replay.flip();
+    }
+
+    /**
+     * Writes the line a text client receives for a frame kept in the history. The tag of the room is already part of
+     * the frame's payload. Called with no buffer, it only counts the bytes the line needs.
+     *
+     * @param line ByteBuffer to write the line into, or null to only count its bytes
+     * @param slot int representing the slot of the frame
+     * @return int representing the number of bytes in the line
+     */
+    private int putLine(ByteBuffer line, int slot) {
+        int index = indexOf(slot);
+        MessageType type = types[slot];
+        int senderID = ring.getInt(index + 5);
+        int payloadStart = index + 4 + Frame.HEADER_SIZE;
+        int payloadLength = lengths[slot] - 4 - Frame.HEADER_SIZE;
+        if (Frame.TEXT_CHARSET.equals(Frame.PAYLOAD_CHARSET)) {
+            return Frame.putTextLine(line, type, senderID, ring, payloadStart, payloadLength);
+        }
+        // Only reached if the platform's charset is not the binary protocol's, in which case the payload is re-encoded
+        ByteBuffer payload = Frame.TEXT_CHARSET.encode(Frame.PAYLOAD_CHARSET.decode(
+                ring.duplicate().limit(payloadStart + payloadLength).position(payloadStart)));
+        return Frame.putTextLine(line, type, senderID, payload, payload.position(), payload.remaining());
+    }
+
+    /**
+     * Returns the slot of the frame at the given position in the history.
+     *
+     * @param position int representing the position of the frame, 0 being the oldest
+     * @return int representing the slot of the frame
+     */
+    private int slotOf(int position) {
+        return (oldest + position) % starts.length;
+    }
+
+    /**
+     * Returns the index in the ring of the first byte of a frame.
+     *
+     * @param slot int representing the slot of the frame
+     * @return int representing the index of the frame's length prefix
+     */
+    private int indexOf(int slot) {
+        return (int) (starts[slot] % ring.capacity());
+    }
+
+    /**
+     * Forgets every broadcast in the history, so its memory can be reused by another room.
+     */
+    public void clear() {
+        oldest = 0;
+        count = 0;
+        head = 0;
+    }
+
+    /**
+     * Returns whether the history holds no broadcast.
+     *
+     * @return Boolean representing whether the history is empty
+     */
+    public boolean isEmpty() {
+        return count == 0;
+    }
+}
@@ -0,0 +1,61 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * This class hands out the histories of the rooms, all carved out of one block of off-heap memory allocated when the
+ * server starts, so the memory used for history is fixed however many rooms come and go. A room takes a history when
+ * it is created and gives it back when it is removed. Rooms created while every history is taken keep none.
+ * It is only used by the ClientRegistry while holding its lock, so it is not thread safe.
+ */
+public class MessageHistoryPool {
+
+    /**
+     * Most rooms which may keep a history at the same time
+     */
+    public static final int ROOMS = 64;
+    /**
+     * Number of bytes set aside for each message a history keeps, which a room's messages share, so a room whose
+     * messages are longer than this on average keeps fewer of them
+     */
+    public static final int BYTES_PER_MESSAGE = 256;
+
+    /**
+     * ArrayDeque of the histories no room is using
+     */
+    private final ArrayDeque<MessageHistory> free = new ArrayDeque<>(ROOMS);
+
+    /**
+     * The constructor allocates the memory of every history at once. No memory is allocated if no messages are kept.
+     *
+     * @param messages int representing the most messages each room keeps, 0 meaning rooms keep no history
+     */
+    public MessageHistoryPool(int messages) {
+        if (messages == 0) {
+            return;
+        }
+        int historyBytes = messages * BYTES_PER_MESSAGE;
+        ByteBuffer memory = ByteBuffer.allocateDirect(ROOMS * historyBytes);
+        for (int i = 0; i < ROOMS; i++) {
+            free.add(new MessageHistory(memory.slice(i * historyBytes, historyBytes), messages));
+        }
+    }
+
+    /**
+     * Takes a history for a new room.
+     *
+     * @return MessageHistory which is empty, or null if every history is taken
+     */
+    public MessageHistory take() {
+        return free.poll();
+    }
+
+    /**
+     * Gives back the history of a room which has been removed, so another room can use its memory.
+     *
+     * @param history MessageHistory the room was using, which no one may use any longer
+     */
+    public void release(MessageHistory history) {
+        history.clear();
+        free.add(history);
+    }
+}
@@ -30,5 +30,50 @@ public enum MessageType {
     /**
      * If DoD sends a message to the client with whether the game is over
      */
-    DoDToClientMetaData
+    DoDToClientMetaData,
+
+    /**
+     * If the server tells DoD to end a client's game
+     */
+    DoDEndGame,
+
+    /**
+     * If the server sends a client a notice which is addressed to them alone
+     */
+    serverNotice,
+
+    /**
+     * If a client asks to join a room, or to talk in a room it is already in
+     */
+    joinRoom,
+
+    /**
+     * If a client asks to leave a room
+     */
+    leaveRoom,
+
+    /**
+     * If a client sends a message to one other client
+     */
+    directMessage,
+
+    /**
+     * If the server checks that a client which has been silent is still there
+     */
+    ping,
+
+    /**
+     * If a client answers a ping
+     */
+    pong,
+
+    /**
+     * If DoD sends a client the whole output of a turn in one message, preceded by whether the game is still running
+     */
+    DoDResponse,
+
+    /**
+     * If the server and a DoDClient exchange the messages of many games in one frame
+     */
+    DoDBatch
 }
@@ -0,0 +1,540 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class deals with handling with a single client connected to the server using a non-blocking SocketChannel.
+ * It does not own a thread; instead its ServerEventLoop calls it whenever the client's channel is ready.
+ */
+public class NioClientHandler extends ClientHandler {
+
+    /**
+     * SocketChannel representing the server side endpoint for communication between the client and server.
+     */
+    private final SocketChannel channel;
+    /**
+     * ServerEventLoop which owns this client's channel.
+     */
+    private final ServerEventLoop eventLoop;
+    /**
+     * SelectionKey representing the channel's registration with the event loop's selector.
+     */
+    private SelectionKey key;
+    /**
+     * Bytes of a line which has only partially been received. Only allocated once a line is split across reads.
+     */
+    private ByteBuffer partialLine;
+    /**
+     * Bytes of a binary frame which has only partially been received. Only allocated once a frame is split across reads.
+     */
+    private ByteBuffer partialFrame;
+    /**
+     * Boolean representing whether the client has sent the line containing their type.
+     */
+    private boolean handshakeDone = false;
+    /**
+     * Boolean representing whether the channel should be closed once the queued messages have been written.
+     */
+    private volatile boolean closeAfterFlush = false;
+    /**
+     * Boolean representing whether the channel has been closed.
+     */
+    private volatile boolean closed = false;
+    /**
+     * Boolean representing whether the channel should be closed without writing the queued messages.
+     */
+    private volatile boolean closeNow = false;
+    /**
+     * Messages taken out of the queues which have not been fully written yet, because the client's TCP window filled.
+     * Only used by the event loop thread.
+     */
+    private final ArrayDeque<ByteBuffer> inFlight = new ArrayDeque<>();
+    /**
+     * Boolean representing whether the event loop will write the queued messages at the end of its current pass.
+     * Only used by the event loop thread.
+     */
+    private boolean writeRequested = false;
+    /**
+     * AtomicBoolean representing whether the client is waiting in its event loop's pendingWrites, so another thread
+     * queueing a message hands the client to the loop and wakes it only once until the loop writes to it.
+     */
+    private final AtomicBoolean writePending = new AtomicBoolean(false);
+    /**
+     * Boolean representing whether the event loop has stopped reading from the client, which is over its rate limit.
+     * Only used by the event loop thread.
+     */
+    private boolean readPaused = false;
+    /**
+     * long representing the System.nanoTime at which the event loop starts reading from the client again, while
+     * readPaused. Only used by the event loop thread.
+     */
+    private long resumeReadingAt;
+    /**
+     * Bytes received from the client which have not been dealt with because it went over its rate limit, dealt with
+     * once reading resumes. Only used by the event loop thread.
+     */
+    private ByteBuffer held;
+
+    /**
+     * The constructor initialises the channel, server, event loop and clientID variables.
+     *
+     * @param channel   SocketChannel representing the server side endpoint for communication between the client and server
+     * @param server    ChatServer representing the server that NioClientHandler is instantiated from
+     * @param eventLoop ServerEventLoop which owns this client's channel
+     * @param clientID  int representing the client's ID
+     */
+    public NioClientHandler(SocketChannel channel, ChatServer server, ServerEventLoop eventLoop, int clientID) {
+        super(server, clientID);
+        this.channel = channel;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * Reads whatever the client has sent into the shared buffer and deals with every complete line or frame received.
+     * This is only called by the event loop thread.
+     *
+     * @param readBuffer ByteBuffer shared by the event loop's connections to read into
+     */
+    void handleRead(ByteBuffer readBuffer) {
+        try {
+            readBuffer.clear();
+            int bytesRead = channel.read(readBuffer);
+            if (bytesRead == -1) { // The client disconnected
+                throw new IOException();
+            }
+            recordHeard(); // Anything received shows the client is still there
+            readBuffer.flip();
+            dealWithBytes(readBuffer);
+        } catch (IOException e) { // This is reached when client forcibly disconnects or sends an invalid frame
+            Utility.print("Client " + clientID + " socket's closed.");
+            disconnect();
+        }
+    }
+
+    /**
+     * Deals with every complete line or frame in the bytes received. If the client goes over its rate limit under the
+     * delay policy, the rest of the bytes are held and the event loop stops reading from the client until its pause
+     * is over, so what it sends meanwhile waits in the network buffers.
+     *
+     * @param bytes ByteBuffer containing the bytes received
+     * @throws IOException If the client sent bytes which are not a valid frame
+     */
+    private void dealWithBytes(ByteBuffer bytes) throws IOException {
+        if (protocol == WireProtocol.text) {
+            readLines(bytes); // Stops after the first line if it switches the client to binary frames
+        }
+        if (protocol == WireProtocol.binary && !closed) {
+            readFrames(bytes);
+        }
+        long pauseNanos = takeReadPause();
+        if (pauseNanos > 0 && !closed) { // The client is over its rate limit under the delay policy
+            readPaused = true;
+            resumeReadingAt = System.nanoTime() + pauseNanos;
+            updateInterest();
+            eventLoop.pauseReading(this);
+        }
+    }
+
+    /**
+     * Keeps the bytes which have not been dealt with until reading resumes.
+     *
+     * @param bytes ByteBuffer containing the bytes
+     * @param start int representing the index of the first byte to keep
+     * @param end   int representing the index after the last byte to keep
+     */
+    private void hold(ByteBuffer bytes, int start, int end) {
+        held = ByteBuffer.allocate(end - start).put(0, bytes, start, end - start);
+    }
+
+    /**
+     * Deals with every complete line in the buffer, keeping the bytes of an unfinished line for the next read.
+     * If the handshake switches the client to binary frames, the buffer is left positioned after the handshake.
+     *
+     * @param readBuffer ByteBuffer containing the bytes read
+     * @throws IOException If the client sent a line longer than it may send
+     */
+    private void readLines(ByteBuffer readBuffer) throws IOException {
+        int lineStart = readBuffer.position();
+        int partialLength = partialLine == null ? 0 : partialLine.position();
+        for (int i = lineStart; i < readBuffer.limit() && !closed && !hasReadPause(); i++) {
+            if (readBuffer.get(i) == '\n') {
+                checkMessageLength(partialLength + i - lineStart);
+                partialLength = 0;
+                dealWithLine(readBuffer, lineStart, i);
+                lineStart = i + 1;
+                if (protocol == WireProtocol.binary) { // The rest of the buffer holds frames
+                    readBuffer.position(lineStart);
+                    return;
+                }
+            }
+        }
+        if (lineStart < readBuffer.limit() && !closed) {
+            if (hasReadPause()) { // Keeps the lines which have not been dealt with until reading resumes
+                hold(readBuffer, lineStart, readBuffer.limit());
+            } else { // Keeps the bytes of the unfinished line for the next read
+                checkMessageLength(partialLength + readBuffer.limit() - lineStart);
+                appendToPartialLine(readBuffer, lineStart, readBuffer.limit());
+            }
+        }
+    }
+
+    /**
+     * Adds bytes to the unfinished line, allocating or growing partialLine as needed.
+     *
+     * @param readBuffer ByteBuffer containing the bytes
+     * @param start      int representing the index of the first byte to add
+     * @param end        int representing the index after the last byte to add
+     */
+    private void appendToPartialLine(ByteBuffer readBuffer, int start, int end) {
+        int length = end - start;
+        if (partialLine == null) {
+            partialLine = ByteBuffer.allocate(Math.max(length, 256));
+        } else if (partialLine.remaining() < length) {
+            partialLine = ByteBuffer.allocate(Math.max(partialLine.position() + length, partialLine.capacity() * 2)).put(partialLine.flip());
+        }
+        partialLine.put(partialLine.position(), readBuffer, start, length);
+        partialLine.position(partialLine.position() + length);
+    }
+
+    /**
+     * Deals with every complete frame in the buffer, keeping the bytes of an unfinished frame for the next read.
+     * Frames are found by their length prefix, so the bytes are never searched or split.
+     *
+     * @param readBuffer ByteBuffer containing the bytes read
+     * @throws IOException If the client sent bytes which are not a valid frame
+     */
+    private void readFrames(ByteBuffer readBuffer) throws IOException {
+        if (partialFrame != null && !completePartialFrame(readBuffer)) {
+            return; // Every byte read belonged to the frame, which is still unfinished
+        }
+        while (readBuffer.remaining() >= 4 && !closed && !hasReadPause()) {
+            int length = readBuffer.getInt(readBuffer.position());
+            Frame.checkLength(length);
+            checkMessageLength(length);
+            if (readBuffer.remaining() < 4 + length) {
+                break;
+            }
+            dealWithClientFrame(readBuffer, readBuffer.position() + 4, length); // Parsed where it was read
+            readBuffer.position(readBuffer.position() + 4 + length);
+        }
+        if (readBuffer.hasRemaining() && !closed && hasReadPause()) { // Keeps the frames which have not been dealt with until reading resumes
+            hold(readBuffer, readBuffer.position(), readBuffer.limit());
+        } else if (readBuffer.hasRemaining() && !closed) { // Keeps the bytes of the unfinished frame for the next read
+            int length = readBuffer.remaining() >= 4 ? readBuffer.getInt(readBuffer.position()) : 0;
+            partialFrame = ByteBuffer.allocate(4 + length).put(readBuffer);
+        }
+    }
+
+    /**
+     * Adds the bytes read to the unfinished frame, and deals with the frame if that completes it.
+     *
+     * @param readBuffer ByteBuffer containing the bytes read
+     * @return Boolean representing whether the frame was completed
+     * @throws IOException If the client sent bytes which are not a valid frame
+     */
+    private boolean completePartialFrame(ByteBuffer readBuffer) throws IOException {
+        while (partialFrame.position() < 4 && readBuffer.hasRemaining()) { // The length itself was split
+            partialFrame.put(readBuffer.get());
+        }
+        if (partialFrame.position() < 4) {
+            return false;
+        }
+        int length = partialFrame.getInt(0);
+        Frame.checkLength(length);
+        checkMessageLength(length);
+        if (partialFrame.capacity() < 4 + length) { // The length was not known when the buffer was allocated
+            partialFrame = ByteBuffer.allocate(4 + length).put(partialFrame.flip());
+        }
+        int needed = 4 + length - partialFrame.position();
+        int taken = Math.min(needed, readBuffer.remaining());
+        partialFrame.put(partialFrame.position(), readBuffer, readBuffer.position(), taken);
+        partialFrame.position(partialFrame.position() + taken);
+        readBuffer.position(readBuffer.position() + taken);
+        if (taken < needed) {
+            return false;
+        }
+        ByteBuffer frame = partialFrame;
+        partialFrame = null; // Released so idle connections do not keep holding it
+        dealWithClientFrame(frame, 4, length);
+        return true;
+    }
+
+    /**
+     * Deals with the line between start and end, joined with any previously received partial line. Unless the line
+     * was split across reads it is parsed where it was read, without being copied.
+     *
+     * @param readBuffer ByteBuffer containing the line
+     * @param start      int representing the index of the first byte of the line
+     * @param end        int representing the index of the line's '\n'
+     */
+    private void dealWithLine(ByteBuffer readBuffer, int start, int end) {
+        ByteBuffer line = readBuffer;
+        if (partialLine != null) {
+            appendToPartialLine(readBuffer, start, end);
+            line = partialLine;
+            partialLine = null; // Released so idle connections do not keep holding it
+            start = 0;
+            end = line.position();
+        }
+        if (end > start && line.get(end - 1) == '\r') { // Lines may end with "\r\n"
+            end--;
+        }
+        if (!handshakeDone) {
+            byte[] bytes = new byte[end - start];
+            line.get(start, bytes);
+            readHandshake(new String(bytes, Frame.TEXT_CHARSET));
+        } else {
+            dealWithClientMsg(line, start, end - start); // Deals with the client's message depending on the message and the mode they are in
+        }
+    }
+
+    /**
+     * Reads the client's type and protocol from the first line they sent and adds them to the server.
+     *
+     * @param line String representing the first line received from the client
+     */
+    private void readHandshake(String line) {
+        if (!dealWithHandshake(line)) {
+            disconnect();
+            return;
+        }
+        handshakeDone = true;
+        server.addClient(this);
+    }
+
+    /**
+     * Writes as many queued messages as the channel accepts without blocking, gathering several messages into each
+     * write so that a burst of messages costs few system calls.
+     * If some could not be written, they are kept in inFlight and the event loop is asked to report when the channel
+     * is writable again. This is only called by the event loop thread.
+     *
+     * @param batch ByteBuffer[] owned by the event loop which is used to gather the messages
+     */
+    void handleWrite(ByteBuffer[] batch) {
+        writeRequested = false;
+        if (closed || key == null) {
+            return;
+        }
+        if (closeNow) {
+            disconnect();
+            return;
+        }
+        try {
+            while (true) {
+                ByteBuffer message;
+                while (inFlight.size() < batch.length && (message = pollOutbound()) != null) {
+                    inFlight.add(message);
+                }
+                if (inFlight.isEmpty()) {
+                    break;
+                }
+                int count = 0;
+                for (ByteBuffer inFlightMessage : inFlight) {
+                    batch[count++] = inFlightMessage;
+                }
+                recordBytesWritten((int) channel.write(batch, 0, count));
+                Arrays.fill(batch, 0, count, null); // So the batch does not keep the messages alive
+                while (!inFlight.isEmpty() && !inFlight.peek().hasRemaining()) { // Removes the messages which were fully written
+                    inFlight.poll();
+                }
+                if (!inFlight.isEmpty()) { // The client's TCP window is full
+                    updateInterest();
+                    return;
+                }
+            }
+            recordCaughtUp();
+            updateInterest();
+            if (closeAfterFlush) {
+                disconnect();
+            }
+        } catch (IOException e) { // This is reached if the client disconnected
+            disconnect();
+        }
+    }
+
+    /**
+     * Deals with the bytes held back and starts reading from the client again once its rate limit pause is over,
+     * unless the held bytes take it over its limit again. Only used by the event loop thread.
+     */
+    void resumeReading() {
+        readPaused = false;
+        if (closed) {
+            return;
+        }
+        if (held != null) {
+            ByteBuffer bytes = held;
+            held = null;
+            try {
+                dealWithBytes(bytes);
+            } catch (IOException e) { // This is reached if the client sent an invalid frame
+                Utility.print("Client " + clientID + " socket's closed.");
+                disconnect();
+                return;
+            }
+        }
+        if (!readPaused && !closed) {
+            updateInterest();
+        }
+    }
+
+    /**
+     * Returns when the event loop starts reading from the client again, while reading is paused.
+     *
+     * @return long representing the System.nanoTime at which reading resumes
+     */
+    long getResumeReadingAt() {
+        return resumeReadingAt;
+    }
+
+    /**
+     * Sets which operations the selector reports on for the channel: reading unless it is paused, and writing while
+     * some messages could not be written.
+     */
+    private void updateInterest() {
+        ServerEventLoop.setInterest(key, (readPaused ? 0 : SelectionKey.OP_READ) | (inFlight.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+    }
+
+    /**
+     * Closes the channel and removes the client from the server. Calling this more than once has no effect.
+     */
+    void disconnect() {
+        if (closed) {
+            return;
+        }
+        closeChannel();
+        stopHandshakeDeadline();
+        if (handshakeDone) {
+            try {
+                server.removeClient(clientID); // Removes client from server and DoDClient (if one exists)
+            } catch (IOException e) { // This is reached if the channel fails to close
+                Utility.print("Channel " + channel + " failed to close.");
+            }
+        }
+        Utility.print("Client " + clientID + " disconnected.");
+    }
+
+    /**
+     * Cancels the channel's registration and closes it.
+     */
+    private void closeChannel() {
+        closed = true;
+        inFlight.clear();
+        held = null;
+        clearOutbound();
+        if (key != null) {
+            key.cancel();
+            eventLoop.recordClosed();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Utility.print("Failed to close channel of client " + clientID);
+        }
+    }
+
+    /**
+     * Asks the event loop to write the queued messages to the client.
+     */
+    @Override
+    protected void scheduleDrain() {
+        if (closed) {
+            clearOutbound();
+            return;
+        }
+        eventLoop.requestWrite(this);
+    }
+
+    /**
+     * Closes the channel once the queued messages have been written.
+     */
+    @Override
+    public void terminate() {
+        closeAfterFlush = true;
+        eventLoop.requestWrite(this);
+    }
+
+    /**
+     * Closes the channel without writing the queued messages. The channel is closed by the event loop thread.
+     */
+    @Override
+    public void closeConnection() {
+        closeNow = true;
+        eventLoop.requestWrite(this);
+    }
+
+    /**
+     * Returns the shard which owns the client's connection, which is the index of its event loop.
+     *
+     * @return int representing the client's shard
+     */
+    @Override
+    public int getShard() {
+        return eventLoop.getShard();
+    }
+
+    /**
+     * The event loop finishes the client's handling itself, so there is nothing to wait for; the server waits for the
+     * event loops instead.
+     *
+     * @param timeoutMillis long representing the longest time to wait in milliseconds
+     * @return Boolean which is always true
+     */
+    @Override
+    public boolean awaitTermination(long timeoutMillis) {
+        return true;
+    }
+
+    /**
+     * Marks that the event loop will write the queued messages at the end of its current pass.
+     * Only used by the event loop thread.
+     *
+     * @return Boolean representing whether a write was not already requested
+     */
+    boolean requestWriteThisPass() {
+        if (writeRequested) {
+            return false;
+        }
+        writeRequested = true;
+        return true;
+    }
+
+    /**
+     * Marks that the client is waiting in its event loop's pendingWrites. Used by threads other than the event loop.
+     *
+     * @return Boolean representing whether the client was not already waiting, in which case the caller hands it to the
+     * event loop
+     */
+    boolean requestPendingWrite() {
+        return writePending.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks that the client is no longer waiting in its event loop's pendingWrites. The event loop thread calls this
+     * before writing, so a message queued from then on requests a new write.
+     */
+    void clearPendingWrite() {
+        writePending.set(false);
+    }
+
+    /**
+     * Returns the client's channel.
+     *
+     * @return SocketChannel representing the server side endpoint for communication between the client and server
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Sets the key representing the channel's registration with the selector.
+     *
+     * @param key SelectionKey representing the channel's registration with the selector
+     */
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+}
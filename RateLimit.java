@@ -0,0 +1,68 @@
+/**
+ * This class represents a rate limit entered into the console: how many messages may be sent every second and how
+ * many may be sent at once. It never changes once created.
+ */
+public class RateLimit {
+
+    /**
+     * double representing how many messages may be sent every second on average
+     */
+    private final double ratePerSecond;
+    /**
+     * int representing how many messages may be sent at once
+     */
+    private final int burst;
+
+    /**
+     * The constructor initialises the ratePerSecond and burst variables.
+     *
+     * @param ratePerSecond double representing how many messages may be sent every second on average
+     * @param burst         int representing how many messages may be sent at once
+     */
+    public RateLimit(double ratePerSecond, int burst) {
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+    }
+
+    /**
+     * Parses a rate limit of the form rate or rate:burst, where the burst defaults to twice the rate (and at least 1).
+     *
+     * @param value String representing the rate limit entered
+     * @return RateLimit representing the limit, or null if the rate is 0 or "off", meaning there is no limit
+     * @throws NumberFormatException If the value is not a valid rate limit
+     */
+    public static RateLimit parse(String value) throws NumberFormatException {
+        if (value.equalsIgnoreCase("off")) {
+            return null;
+        }
+        int colon = value.indexOf(':');
+        double rate = Double.parseDouble(colon == -1 ? value : value.substring(0, colon));
+        if (rate == 0) {
+            return null;
+        }
+        int burst = colon == -1 ? Math.max(1, (int) Math.ceil(rate * 2)) : Integer.parseInt(value.substring(colon + 1));
+        if (!(rate > 0 && rate <= 1_000_000_000) || burst <= 0) { // Also rejects NaN
+            throw new NumberFormatException();
+        }
+        return new RateLimit(rate, burst);
+    }
+
+    /**
+     * Creates a full token bucket enforcing this limit.
+     *
+     * @return TokenBucket enforcing this limit
+     */
+    public TokenBucket newBucket() {
+        return new TokenBucket(ratePerSecond, burst);
+    }
+
+    /**
+     * Returns the limit in the form it is entered in.
+     *
+     * @return String representing the limit
+     */
+    @Override
+    public String toString() {
+        return ratePerSecond + ":" + burst;
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Represents what happens to a message sent by a client which is over its rate limit
+ */
+public enum RateLimitPolicy {
+    /**
+     * The message is dropped, and the client is told the first time it happens
+     */
+    drop,
+
+    /**
+     * The message is let through, but the server stops reading from the client until it is back within its limit,
+     * so a client sending too fast is slowed down to its rate without losing any messages
+     */
+    delay,
+
+    /**
+     * The client is disconnected
+     */
+    disconnect
+}
@@ -0,0 +1,196 @@
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents a named chat room. A client's broadcasts only reach the members of the room it is talking in,
+ * so the number of messages sent for each broadcast is bounded by the size of the room rather than of the server.
+ * Every ChatClient and ChatBot starts in the lobby. The members only change through the ClientRegistry, which
+ * rebuilds the room's audiences whenever they do.
+ * A room may also keep its most recent broadcasts, which a ChatClient joining the room is sent before anything else.
+ * Recording a broadcast and a client joining happen under the room's lock, so a joining client is sent every
+ * broadcast exactly once: either in the history or because it is in the broadcast's audience, never both nor neither.
+ */
+public class Room {
+
+    /**
+     * String representing the name of the room every ChatClient and ChatBot starts in
+     */
+    public static final String LOBBY = "lobby";
+    /**
+     * Longest name a room may have
+     */
+    private static final int MAX_NAME_LENGTH = 32;
+
+    /**
+     * String representing the name of the room
+     */
+    private final String name;
+    /**
+     * String put before the content of every message sent in the room, so its members can tell which room it was sent
+     * in, or null for the lobby whose messages are sent as they always have been
+     */
+    private final String tag;
+    /**
+     * Set of the clients in the room
+     */
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    /**
+     * Audience of a ChatClient's broadcast in the room, replaced rather than changed
+     */
+    private volatile Audience broadcastAudience;
+    /**
+     * Audience of a ChatBot's broadcast in the room, replaced rather than changed
+     */
+    private volatile Audience botBroadcastAudience;
+    /**
+     * MessageHistory of the room's most recent broadcasts, or null if the room keeps none
+     */
+    private MessageHistory history;
+    /**
+     * ReentrantLock making the recording of a broadcast and the joining of a client happen one at a time. It is
+     * only ever taken after the ClientRegistry's lock, never before.
+     */
+    private final ReentrantLock historyLock = new ReentrantLock();
+
+    /**
+     * The constructor initialises the name and tag of an empty room.
+     *
+     * @param name    String representing the name of the room, which must be valid
+     * @param shards  int representing the number of shards the clients' connections are spread over
+     * @param history MessageHistory the room keeps its broadcasts in, or null if it keeps none
+     */
+    public Room(String name, int shards, MessageHistory history) {
+        this.name = name;
+        this.tag = LOBBY.equals(name) ? null : "[" + name + "] ";
+        this.history = history;
+        rebuildAudiences(shards);
+    }
+
+    /**
+     * Returns whether a name may be used for a room: 1 to 32 ASCII letters, digits, '-' or '_'. As room names are
+     * ASCII, their tag is encoded the same way in every protocol.
+     *
+     * @param name String representing the name requested
+     * @return Boolean representing whether the name is valid
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') || ('0' <= c && c <= '9') || c == '-' || c == '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rebuilds the audiences of the room from its current members. Only the ClientRegistry calls this, while holding
+     * its lock, so the audiences always reflect the latest change.
+     *
+     * @param shards int representing the number of shards the clients' connections are spread over
+     */
+    void rebuildAudiences(int shards) {
+        ClientHandler[] clients = members.toArray(new ClientHandler[0]);
+        broadcastAudience = Audience.of(clients, shards, MessageType.broadcastClient);
+        botBroadcastAudience = Audience.of(clients, shards, MessageType.broadcastBot);
+    }
+
+    /**
+     * Adds a client to the room and rebuilds the audiences. A ChatClient is then sent the room's history, before any
+     * broadcast it is in the audience of. Only the ClientRegistry calls this, while holding its lock.
+     *
+     * @param clientHandler ClientHandler representing the client joining the room
+     * @param shards        int representing the number of shards the clients' connections are spread over
+     */
+    void addMember(ClientHandler clientHandler, int shards) {
+        historyLock.lock();
+        try {
+            if (!members.add(clientHandler)) {
+                return; // The client was already in the room, so has already been sent its history
+            }
+            rebuildAudiences(shards);
+            if (history != null && !history.isEmpty() && clientHandler.getClientType() == SenderType.client) {
+                clientHandler.replay(history.replay(clientHandler.getProtocol())); // Bots are not sent it, as they would reply to old messages
+            }
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    /**
+     * Records a broadcast sent in the room and returns who it is sent to, both at the same moment.
+     *
+     * @param envelope Envelope representing the broadcast being sent
+     * @return Audience of the members who receive the broadcast
+     */
+    public Audience recordBroadcast(Envelope envelope) {
+        historyLock.lock();
+        try {
+            if (history != null) {
+                history.append(envelope);
+            }
+            return getAudience(envelope.getType());
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    /**
+     * Stops keeping a history, once the room has been removed, and returns the history so its memory can be reused.
+     * Only the ClientRegistry calls this, while holding its lock.
+     *
+     * @return MessageHistory the room kept its broadcasts in, or null if it kept none
+     */
+    MessageHistory releaseHistory() {
+        historyLock.lock();
+        try {
+            MessageHistory released = history;
+            history = null; // A broadcast still being sent in the room is no longer recorded
+            return released;
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the recipients of a kind of broadcast in the room.
+     *
+     * @param broadcastType MessageType representing the kind of broadcast, either broadcastClient or broadcastBot
+     * @return Audience of the members who receive the broadcast
+     */
+    public Audience getAudience(MessageType broadcastType) {
+        return broadcastType == MessageType.broadcastBot ? botBroadcastAudience : broadcastAudience;
+    }
+
+    /**
+     * Returns the clients in the room. Only the ClientRegistry changes the set.
+     *
+     * @return Set of the room's members
+     */
+    Set<ClientHandler> getMembers() {
+        return members;
+    }
+
+    /**
+     * Returns the name of the room.
+     *
+     * @return String representing the name of the room
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns what is put before the content of every message sent in the room.
+     *
+     * @return String made only of ASCII characters, or null for the lobby
+     */
+    public String getTag() {
+        return tag;
+    }
+}
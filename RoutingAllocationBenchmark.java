@@ -0,0 +1,158 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class measures how many bytes the server allocates to route a message once it is running steadily. Clients
+ * with no connection are added to a server, and one of them sends the same message many times through the
+ * ClientHandler's parsing and the server's routing, exactly as if it had been read from its socket; the recipients
+ * discard what they are sent as soon as it is queued. The bytes the sending thread allocated are then divided by the
+ * number of messages, for a broadcast, a direct message and a DoD move in turn.
+ * A broadcast still allocates a view of the shared buffer for each recipient, so its bytes are also printed per
+ * recipient.
+ */
+public class RoutingAllocationBenchmark {
+
+    /**
+     * Number of messages routed, in each case, before the measured ones, so the JIT has compiled the routing
+     */
+    private static final int WARMUP_MESSAGES = 20000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args optionally the number of messages routed in each case (default 100000), the number of clients hearing
+     *             each broadcast (default 10) and the port the server binds, which must be free (default 14099)
+     * @throws IOException          If the server cannot be shut down
+     * @throws InterruptedException If interrupted while shutting the server down
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int messages = args.length > 0 ? ServerConfig.parsePositive(args[0], 100000, "Message count") : 100000;
+        int recipients = args.length > 1 ? ServerConfig.parsePositive(args[1], 10, "Recipient count") : 10;
+        String port = args.length > 2 ? args[2] : "14099";
+        // Rate limits are off, or most of the messages would be dropped before they are routed
+        ChatServer server = new ChatServer(ServerConfig.fromArgs(new String[]{"-csp", port, "-csr", "off"}));
+        int clientID = 0;
+        new BenchmarkClient(server, clientID++, "DoDBot"); // The DoD worker every game is placed on
+        BenchmarkClient sender = new BenchmarkClient(server, clientID++, "client");
+        BenchmarkClient target = new BenchmarkClient(server, clientID++, "client");
+        for (int i = 0; i < recipients - 1; i++) { // The direct message's target hears the broadcasts too
+            new BenchmarkClient(server, clientID++, "client");
+        }
+        print("Broadcast", route(sender, "hello everyone, this is a broadcast", messages), messages, recipients);
+        print("Direct message", route(sender, "/msg " + target.getClientID() + " hello, this is a direct message", messages), messages, 1);
+        route(sender, "JOIN", 1); // The moves after this are forwarded to the DoD worker, which discards them
+        print("DoD move", route(sender, "HELLO", messages), messages, 1);
+        server.cleanShutDown();
+    }
+
+    /**
+     * Routes a message from the sender over and over, first unmeasured and then measured.
+     *
+     * @param sender   BenchmarkClient sending the message
+     * @param message  String representing the line the sender sends
+     * @param messages int representing the number of messages measured
+     * @return long representing the bytes allocated by this thread while routing the measured messages
+     */
+    private static long route(BenchmarkClient sender, String message, int messages) {
+        ByteBuffer line = ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)); // Stands in for the buffer a line is read into
+        for (int i = 0; i < Math.min(messages, WARMUP_MESSAGES); i++) {
+            sender.dealWithClientMsg(line, 0, line.limit());
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < messages; i++) {
+            sender.dealWithClientMsg(line, 0, line.limit());
+        }
+        return threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+    }
+
+    /**
+     * Prints the bytes allocated per message routed, and per recipient.
+     *
+     * @param name       String representing the kind of message
+     * @param allocated  long representing the bytes allocated while routing the messages
+     * @param messages   int representing the number of messages routed
+     * @param recipients int representing the number of clients each message reached
+     */
+    private static void print(String name, long allocated, int messages, int recipients) {
+        Utility.print(String.format("%-15s %8.1f bytes allocated per message, %6.1f per recipient (%d messages)", name,
+                (double) allocated / messages, (double) allocated / messages / recipients, messages));
+    }
+
+    /**
+     * This class represents a client with no connection, whose messages are handed to it by the benchmark and which
+     * discards whatever it is sent as soon as it is queued.
+     */
+    private static class BenchmarkClient extends ClientHandler {
+
+        /**
+         * The constructor completes the client's handshake and adds it to the server.
+         *
+         * @param server     ChatServer representing the server the client is added to
+         * @param clientID   int representing the client's ID
+         * @param clientType String representing the client's type, as sent in the handshake
+         */
+        BenchmarkClient(ChatServer server, int clientID, String clientType) {
+            super(server, clientID);
+            dealWithHandshake(clientType);
+            server.addClient(this);
+        }
+
+        /**
+         * The client has no connection, so it is never checked for being silent.
+         */
+        @Override
+        public void startHeartbeat() {
+        }
+
+        /**
+         * Discards everything queued, as if it had been written at once.
+         */
+        @Override
+        protected void scheduleDrain() {
+            ByteBuffer message;
+            while ((message = pollOutbound()) != null) {
+                recordBytesWritten(message.remaining());
+            }
+        }
+
+        /**
+         * Discards a message about a client's game, as a DoD worker which plays no games.
+         *
+         * @param type     MessageType representing what the message is (DoDNewGame, DoDMidGame or DoDEndGame)
+         * @param clientID int representing the ID of the client playing the game
+         * @param sequence int representing the message's sequence number within the client's games
+         * @param envelope Envelope representing the client's move for a DoDMidGame message, or null for the others
+         */
+        @Override
+        protected void deliverDoDCommand(MessageType type, int clientID, int sequence, Envelope envelope) {
+        }
+
+        /**
+         * The client has nothing to stop.
+         */
+        @Override
+        public void terminate() {
+        }
+
+        /**
+         * The client has no connection to close.
+         */
+        @Override
+        public void closeConnection() {
+        }
+
+        /**
+         * The client has no threads to wait for.
+         *
+         * @param timeoutMillis long representing the longest time to wait in milliseconds
+         * @return Boolean representing whether the threads finished in time, always true
+         */
+        @Override
+        public boolean awaitTermination(long timeoutMillis) {
+            return true;
+        }
+    }
+}
@@ -1,87 +1,179 @@
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * This class deals with handling with a single client connected to the server. It inherits from thread as it is
- * run concurrently with other parts of the ChatServer (such as the ChatServer and the ServerUserInput Thread).
+ * This class deals with handling with a single client connected to the server using blocking streams. It implements
+ * Runnable as it is run by the server's executor on its own (platform or virtual) thread, concurrently with other parts
+ * of the ChatServer (such as the ChatServer and the ServerUserInput).
  */
-public class ServerClientHandler extends Thread {
+public class ServerClientHandler extends ClientHandler implements Runnable {
 
     /**
      * Socket representing the server side endpoint for communication between the client and server.
      */
     private final Socket clientSocket;
+    /**
+     * Longest time in milliseconds to wait for the queued messages to be written once the handler is terminated
+     */
+    private static final long TERMINATE_FLUSH_MILLIS = 1000;
+    /**
+     * Size in bytes of the buffer the client's input is first read into. It grows if a single line or frame is larger.
+     */
+    private static final int INITIAL_READ_BUFFER_SIZE = 8 * 1024;
 
     /**
-     * ChatServer representing the server that ServerClientThread is instantiated from.
+     * BufferedOutputStream which writes the encoded messages to the client.
      */
-    private final ChatServer server;
+    private BufferedOutputStream clientStream;
     /**
-     * int representing the client's ID.
+     * WritableByteChannel which writes the queued ByteBuffers into clientStream.
      */
-    private final int clientID;
+    private WritableByteChannel clientOut;
     /**
-     * PrintWriter which writes text to the client.
+     * InputStream which reads the bytes received from the client into readBytes.
      */
-    private PrintWriter clientOut;
+    private InputStream clientIn;
     /**
-     * BufferedReader which reads the text from the client.
+     * Buffer the client's input is read into and parsed from in place, reused for every line or frame.
      */
-    private BufferedReader clientIn;
+    private byte[] readBytes = new byte[INITIAL_READ_BUFFER_SIZE];
     /**
-     * senderType which represents the type of the client
+     * ByteBuffer wrapping readBytes, through which the lines and frames are handed to the server without being copied.
      */
-    private SenderType clientType;
+    private ByteBuffer readBuffer = ByteBuffer.wrap(readBytes);
     /**
-     * Boolean which represents whether the client is in a DoD game or not.
+     * int representing the index in readBytes of the first byte which has not been dealt with yet.
      */
-    private boolean inDoDGame = false;
+    private int readStart = 0;
+    /**
+     * int representing the index in readBytes after the last byte read from the client.
+     */
+    private int readEnd = 0;
     /**
      * Boolean representing whether this thread should terminate or not.
      */
     private boolean terminate;
+    /**
+     * CountDownLatch which is released once this handler has finished running.
+     */
+    private final CountDownLatch finished = new CountDownLatch(1);
+    /**
+     * AtomicBoolean representing whether a task writing the queued messages to the client is scheduled or running.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean(false);
 
     /**
-     * The constructor initialises the clientSocket, server, clientID, clientIn, clientOut, clientType and terminate variables.
+     * The constructor initialises the clientSocket, server and clientID variables. The streams and the client's type
+     * are initialised once the handler runs, so the thread accepting connections never waits for a client.
      *
      * @param clientSocket Socket representing the server side endpoint for communication between the client and server
      * @param server       ChatServer representing the server that ServerClientThread is instantiated from
      * @param clientID     int representing the client's ID
      */
     public ServerClientHandler(Socket clientSocket, ChatServer server, int clientID) {
+        super(server, clientID);
         this.clientSocket = clientSocket;
-        this.server = server;
-        this.clientID = clientID;
-        this.terminate = initialiseStreams(); // returns whether the clientIn, clientOut and clientType have been successfully initialised
-
     }
 
     /**
-     * Attempts to initialise clientIn, clientOut and clientType and returns whether the attempt is successful or not.
+     * Attempts to initialise clientIn, clientOut, clientType and protocol and returns whether the attempt is successful
+     * or not.
      *
-     * @return Boolean representing whether clientIn, clientOut and clientType have been successfully initialised
+     * @return Boolean representing whether the thread should terminate as the initialisation failed
      */
     private boolean initialiseStreams() {
         try {
-            this.clientIn = new BufferedReader(new InputStreamReader(clientSocket.getInputStream())); // Setup the ability to read the data from the client
-            this.clientOut = new PrintWriter(clientSocket.getOutputStream(), true); // Setup the ability to send the data to the client
-            this.clientType = SenderType.valueOf(clientIn.readLine()); // Reads the message from the client containing their type.
-            return false; // Initialisation succeeded, so the thread should not terminate
+            this.clientIn = clientSocket.getInputStream(); // Setup the ability to read the data from the client
+            this.clientStream = new BufferedOutputStream(clientSocket.getOutputStream()); // Setup the ability to send the data to the client
+            this.clientOut = Channels.newChannel(clientStream);
+            int lineLength = nextLine(); // Reads the message from the client containing their type and protocol
+            if (lineLength == -1) {
+                return true;
+            }
+            String handshake = new String(readBytes, readStart - lineLength - 1, lineLength, Frame.TEXT_CHARSET);
+            return !dealWithHandshake(handshake.endsWith("\r") ? handshake.substring(0, lineLength - 1) : handshake);
         } catch (IOException e) { // Reaches this point if the initialisation of one of the above has failed
             return true; // terminates the thread as something is wrong with the initialisation of one of the variables above
         }
     }
 
+    /**
+     * Makes sure at least the given number of bytes which have not been dealt with are in readBytes, reading from the
+     * client as needed. The bytes are moved to the start of readBytes when it runs out of space, and readBytes only
+     * grows if a single line or frame does not fit.
+     *
+     * @param needed int representing the number of bytes needed from readStart
+     * @return Boolean representing whether the bytes are available, false if the client disconnected first
+     * @throws IOException If reading from the client fails
+     */
+    private boolean fill(int needed) throws IOException {
+        if (readStart + needed > readBytes.length) {
+            if (needed > readBytes.length) {
+                readBytes = Arrays.copyOf(readBytes, Math.max(needed, readBytes.length * 2));
+                readBuffer = ByteBuffer.wrap(readBytes);
+            }
+            System.arraycopy(readBytes, readStart, readBytes, 0, readEnd - readStart);
+            readEnd -= readStart;
+            readStart = 0;
+        }
+        while (readEnd - readStart < needed) {
+            int bytesRead = clientIn.read(readBytes, readEnd, readBytes.length - readEnd);
+            if (bytesRead == -1) {
+                return false;
+            }
+            recordHeard(); // Anything received shows the client is still there
+            readEnd += bytesRead;
+        }
+        return true;
+    }
+
+    /**
+     * Finds the next line received from the client and marks it as dealt with. The line is left in readBytes, ending
+     * just before readStart - 1 (where its '\n' is).
+     *
+     * @return int representing the number of bytes in the line without its '\n', or -1 if the client disconnected
+     * @throws IOException If reading from the client fails or the client sent a line longer than it may send
+     */
+    private int nextLine() throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = readStart + scanned; i < readEnd; i++) {
+                if (readBytes[i] == '\n') {
+                    int length = i - readStart;
+                    checkMessageLength(length);
+                    readStart = i + 1;
+                    return length;
+                }
+            }
+            scanned = readEnd - readStart;
+            checkMessageLength(scanned);
+            if (!fill(scanned + 1)) {
+                return -1;
+            }
+        }
+    }
+
     /**
      * Attempts to close the clientIn and clientOut streams
      */
     private void closeStreams() {
         try {
-            clientIn.close(); // Closes the BufferedReader corresponding with reading text from the client
-            clientOut.close(); // Closes the PrintWriter corresponding with writing text to the client
+            if (clientOut == null) { // The streams were never set up, as the connection was closed before the handler ran
+                clientSocket.close();
+                return;
+            }
+            clientOut.close(); // Closes the channel and stream corresponding with writing to the client, flushing it first
+            clientIn.close(); // Closes the stream corresponding with reading from the client, which closes the socket
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -89,19 +181,38 @@ public class ServerClientHandler extends Thread {
 
     /**
      * Implementation of the abstract run method which is how the ServerClientHandler should run.
-     * It runs the handleClientSocket which deals with reading from the client and dealing with their inputs,
+     * It reads the client's type, adding the client to the server if it is valid, then runs the handleClientSocket
+     * which deals with reading from the client and dealing with their inputs,
      * Once the main loop is broken from, the client is removed from the server and the streams are closed.
      */
     @Override
     public void run() {
         try {
+            terminate = initialiseStreams(); // returns whether the clientIn, clientOut and clientType have been successfully initialised
+            server.handshakeEnded(this);
             handleClientSocket();
         } catch (IOException e) { // This is reached when client forcibly disconnects or if the socket is closed
             Utility.print("Client " + clientID + " socket's closed.");
         } finally {
+            if (terminate) { // The handler was stopped cleanly, so the messages already sent to the client are delivered first
+                awaitQueuedMessages();
+            }
+            stopHandshakeDeadline();
             closeStreams(); // Closes the clientIn and clientOut streams
             removeClientFromServer(); // Closes Client Socket
             Utility.print("Client " + clientID + " disconnected.");
+            finished.countDown();
+        }
+    }
+
+    /**
+     * Waits for the queued messages to be written to the client before the streams are closed.
+     */
+    private void awaitQueuedMessages() {
+        try {
+            awaitOutboundEmpty(TERMINATE_FLUSH_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -120,66 +231,128 @@ public class ServerClientHandler extends Thread {
      * @throws IOException If a client forcibly disconnects
      */
     private void handleClientSocket() throws IOException {
-        String userInput;
+        if (protocol == WireProtocol.binary) {
+            handleClientFrames();
+            return;
+        }
         while (!terminate) {
-            userInput = clientIn.readLine();
-            if (userInput == null) {
+            int length = nextLine();
+            if (length == -1) {
                 throw new IOException();
             }
-            dealWithClientMsg(userInput); // Deals with the client's message depending on the message and the mode they are in
+            int lineStart = readStart - length - 1;
+            if (length > 0 && readBytes[lineStart + length - 1] == '\r') { // Lines may end with "\r\n"
+                length--;
+            }
+            dealWithClientMsg(readBuffer, lineStart, length); // Deals with the client's message depending on the message and the mode they are in
+            pauseIfThrottled();
         }
     }
 
     /**
-     * Sends a message to the client using the PrintWriter.
+     * Keeps reading the binary frames the client sends and deal with them in another method until the "terminate"
+     * boolean value is true or if an IOException is thrown.
      *
-     * @param message String representing the message to the sent to the client
+     * @throws IOException If a client forcibly disconnects or sends an invalid frame
      */
-    public void sendMessage(String message) {
-        clientOut.println(message);
+    private void handleClientFrames() throws IOException {
+        while (!terminate) {
+            if (!fill(4)) {
+                throw new IOException();
+            }
+            int length = readBuffer.getInt(readStart);
+            Frame.checkLength(length);
+            checkMessageLength(length);
+            if (!fill(4 + length)) {
+                throw new IOException();
+            }
+            int frameStart = readStart + 4;
+            readStart = frameStart + length;
+            dealWithClientFrame(readBuffer, frameStart, length); // Deals with the client's message depending on the message and the mode they are in
+            pauseIfThrottled();
+        }
     }
 
     /**
-     * Returns the type of the client.
-     *
-     * @return senderType which represents the type of the client
+     * Stops reading from the client while it is over its rate limit under the delay policy, so what it sends waits in
+     * the network buffers and the client is slowed down to its rate.
      */
-    public SenderType getClientType() {
-        return clientType;
+    private void pauseIfThrottled() {
+        long pauseNanos = takeReadPause();
+        if (pauseNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(pauseNanos);
+            } catch (InterruptedException e) { // This is reached if the server is shutting down
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
-     * Returns the clientID.
-     *
-     * @return int representing the client's ID
+     * Schedules a task on the server's executor which writes the queued messages to the client, unless one is already
+     * scheduled or running. This means the thread sending a message never waits on the client's socket.
      */
-    public int getClientID() {
-        return clientID;
+    @Override
+    protected void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            try {
+                server.runWriter(this::drainOutbound);
+            } catch (RejectedExecutionException e) { // This is reached if the server is shutting down
+                draining.set(false);
+            }
+        }
+    }
+
+    /**
+     * Writes the queued messages to the client until none are left. The messages are collected in clientStream and
+     * flushed together, so a burst of messages costs one socket write rather than one per message.
+     * As a message may be queued just after the queue was found empty, the queue is checked once more after giving up
+     * the draining flag.
+     */
+    private void drainOutbound() {
+        do {
+            try {
+                ByteBuffer message;
+                while ((message = pollOutbound()) != null) {
+                    recordBytesWritten(clientOut.write(message));
+                }
+                clientStream.flush();
+                recordCaughtUp();
+            } catch (IOException e) { // This is reached if the socket is closed, which the reading thread deals with
+                clearOutbound();
+            }
+            draining.set(false);
+        } while (getQueuedMessages() > 0 && draining.compareAndSet(false, true));
     }
 
     /**
      * Sets the terminate variable to true.
      */
-    public void terminateThread() {
+    @Override
+    public void terminate() {
         terminate = true;
     }
 
     /**
-     * Returns whether the client is in the middle of playing a DoD game.
+     * Closes the clientSocket, causing the blocked read to raise an error which is then dealt with.
      *
-     * @return Boolean representing whether the client is in the middle of playing a DoD game
+     * @throws IOException If the socket fails to close
      */
-    public boolean getInDoDGame() {
-        return inDoDGame;
+    @Override
+    public void closeConnection() throws IOException {
+        clientSocket.close();
     }
 
     /**
-     * Sets the inDoDGame variable to the boolean value provided.
+     * Waits for this handler to finish running, for at most the given time.
      *
-     * @param inDoDGame Boolean representing the value the inDoDGame variable should be set to
+     * @param timeoutMillis long representing the longest time to wait in milliseconds
+     * @return Boolean representing whether the handler finished in time
+     * @throws InterruptedException If the thread did not join
      */
-    public void setInDoDGame(boolean inDoDGame) {
-        this.inDoDGame = inDoDGame;
+    @Override
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -191,28 +364,4 @@ public class ServerClientHandler extends Thread {
         return clientSocket;
     }
 
-
-    /**
-     * Deals with the client's message depending on their the client's type, the message and their current mode.
-     *
-     * @param message String containing the message received from the client
-     */
-    private void dealWithClientMsg(String message) {
-        MessageType messageType;
-        if (clientType == SenderType.DoDBot) { // If the client is a DoDBot then the message is unpacked
-            String[] messageSplit = message.split(" ", 3); // the String[] contains the clientID, whether this is the last message from the DoDClient and the message to client
-            messageType = Boolean.parseBoolean(messageSplit[1]) ? MessageType.DoDToClientMetaData : MessageType.DoDToClient;
-            message = messageSplit[0] + " " + messageSplit[2];
-        } else if (inDoDGame) { // If the client is in the middle of a DoD game, then the message is forwarded to the DoDClient
-            messageType = MessageType.DoDMidGame;
-            message = clientID + " " + message;
-        } else if (message.equalsIgnoreCase("JOIN")) { // If the user requests to start a DoD game
-            messageType = MessageType.DoDNewGame;
-        } else { // All other messages are broadcasted
-            messageType = clientType == SenderType.client ? MessageType.broadcastClient : MessageType.broadcastBot;
-            String userType = clientType == SenderType.client ? "Client " : "Bot ";
-            message = userType + clientID + ": " + message;
-        }
-        server.dealWithClientMsg(clientID, messageType, message);
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,488 @@
+import java.util.EnumMap;
+
+/**
+ * This class stores the settings the server is started with, read from the console arguments.
+ */
+public class ServerConfig {
+
+    /**
+     * Most broadcasts each room may keep
+     */
+    private static final int MAX_HISTORY_MESSAGES = 10000;
+
+    /**
+     * String representing the port number the server listens on
+     */
+    private String portString = "14001"; // Default portString is set to 14001 as required
+    /**
+     * ServerMode representing how the server handles its client connections
+     */
+    private ServerMode serverMode = ServerMode.thread; // Default mode is a thread per client
+    /**
+     * int representing the maximum number of messages queued for a single client
+     */
+    private int outboundCapacity = 1024;
+    /**
+     * int representing the most bytes a ChatClient or ChatBot may send in a single line or frame
+     */
+    private int maxMessageBytes = 64 * 1024;
+    /**
+     * int representing how many milliseconds a client's writer waits to collect more messages before writing them
+     */
+    private int flushDelayMillis = 0;
+    /**
+     * SlowConsumerPolicy representing what happens when a client's queue of broadcasts is full
+     */
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.dropNewest;
+    /**
+     * int representing the most bytes a client may have queued before being disconnected under the disconnect policy
+     */
+    private int maxBacklogBytes = 1024 * 1024;
+    /**
+     * int representing how many seconds a client may be behind before being disconnected under the disconnect policy
+     */
+    private int maxBacklogSeconds = 30;
+    /**
+     * int representing how many event loops share the client connections in nio mode
+     */
+    private int eventLoops = Runtime.getRuntime().availableProcessors(); // Default is one loop per core
+    /**
+     * RateLimit representing how fast each ChatClient and ChatBot may send messages, or null for no limit
+     */
+    private RateLimit clientRateLimit = null; // Default is no limit, so no DoD move is ever dropped unasked
+    /**
+     * EnumMap with a SenderType and the RateLimit shared by all the clients of that type together
+     */
+    private final EnumMap<SenderType, RateLimit> typeRateLimits = new EnumMap<>(SenderType.class);
+    /**
+     * RateLimitPolicy representing what happens to a message sent by a client which is over its rate limit
+     */
+    private RateLimitPolicy rateLimitPolicy = RateLimitPolicy.drop;
+    /**
+     * int representing how many of its most recent broadcasts each room keeps for the clients joining it
+     */
+    private int historyMessages = 20;
+    /**
+     * String representing the directory every broadcast is logged in, or null if broadcasts are not logged
+     */
+    private String chatLogDirectory = null;
+    /**
+     * int representing the most megabytes the chat log may take before its oldest segments are deleted
+     */
+    private int chatLogRetainMegabytes = 1024;
+    /**
+     * int representing how many hours the chat log's segments are kept
+     */
+    private int chatLogRetainHours = 24 * 7; // Default is a week
+    /**
+     * int representing how many milliseconds the server waits for the clients' queued messages to be written when it
+     * shuts down, before closing their connections anyway
+     */
+    private int shutdownDrainMillis = 5000;
+    /**
+     * int representing how many seconds a client may be silent before the server sends it a ping, 0 meaning never
+     */
+    private int heartbeatSeconds = 30;
+    /**
+     * int representing how many seconds a client may be silent, not even answering a ping, before it is disconnected
+     */
+    private int idleTimeoutSeconds = 90;
+    /**
+     * int representing the fewest milliseconds between two batches of messages to a DoDClient while the first is
+     * waiting for its answers, the messages added meanwhile being collected into the next batch, 0 meaning a batch is
+     * sent as soon as a message is added
+     */
+    private int DoDBatchMillis = 1;
+    /**
+     * int representing the number of threads the server's own DoD engine plays its games on, 0 meaning the server
+     * hosts no DoD engine and the games are only played by DoDClients
+     */
+    private int embeddedDoDThreads = 0;
+
+    /**
+     * Creates a ServerConfig from the console arguments.
+     * Loops through all arguments and checks for each flag at which point it assigns the setting to the next argument.
+     * Hence, if a flag is entered multiple times, the last instance will be the determining one.
+     * Invalid values are reported and the default is kept.
+     *
+     * @param args arguments received from commandline
+     * @return ServerConfig containing the settings
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (int i = 0; i < args.length - 1; i++) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-csp": // Port
+                    config.portString = value;
+                    break;
+                case "-csm": // Server mode
+                    try {
+                        config.serverMode = ServerMode.valueOf(value.toLowerCase());
+                    } catch (IllegalArgumentException e) { // This is reached if the mode entered is not one of the ServerModes
+                        Utility.print("Mode supplied is not valid. Using " + config.serverMode + " mode.");
+                    }
+                    break;
+                case "-csq": // Outbound queue capacity
+                    config.outboundCapacity = parsePositive(value, config.outboundCapacity, "Queue capacity");
+                    break;
+                case "-csz": // Longest line or frame in bytes
+                    config.maxMessageBytes = parseMaxMessageBytes(value, config.maxMessageBytes);
+                    break;
+                case "-csf": // Flush delay
+                    config.flushDelayMillis = parsePositive(value, config.flushDelayMillis, "Flush delay");
+                    break;
+                case "-csc": // Slow consumer policy
+                    try {
+                        config.slowConsumerPolicy = SlowConsumerPolicy.valueOf(value);
+                    } catch (IllegalArgumentException e) { // This is reached if the policy entered is not one of the SlowConsumerPolicies
+                        Utility.print("Slow consumer policy supplied is not valid. Using " + config.slowConsumerPolicy + ".");
+                    }
+                    break;
+                case "-csb": // Backlog limit in bytes
+                    config.maxBacklogBytes = parsePositive(value, config.maxBacklogBytes, "Backlog limit");
+                    break;
+                case "-cst": // Backlog limit in seconds
+                    config.maxBacklogSeconds = parsePositive(value, config.maxBacklogSeconds, "Backlog time limit");
+                    break;
+                case "-csl": // Number of event loops
+                    config.eventLoops = parsePositive(value, config.eventLoops, "Event loop count");
+                    break;
+                case "-csr": // Rate limit, either for each client or, if prefixed with a type, for all clients of that type
+                    config.parseRateLimit(value);
+                    break;
+                case "-cso": // Rate limit policy
+                    try {
+                        config.rateLimitPolicy = RateLimitPolicy.valueOf(value);
+                    } catch (IllegalArgumentException e) { // This is reached if the policy entered is not one of the RateLimitPolicies
+                        Utility.print("Rate limit policy supplied is not valid. Using " + config.rateLimitPolicy + ".");
+                    }
+                    break;
+                case "-csh": // Number of broadcasts each room keeps, 0 meaning none
+                    config.historyMessages = parseHistoryMessages(value, config.historyMessages);
+                    break;
+                case "-csj": // Directory of the chat log
+                    config.chatLogDirectory = value;
+                    break;
+                case "-csk": // Chat log size limit in megabytes
+                    config.chatLogRetainMegabytes = parsePositive(value, config.chatLogRetainMegabytes, "Chat log size limit");
+                    break;
+                case "-csa": // Chat log age limit in hours
+                    config.chatLogRetainHours = parsePositive(value, config.chatLogRetainHours, "Chat log age limit");
+                    break;
+                case "-csd": // Shutdown drain deadline
+                    config.shutdownDrainMillis = parsePositive(value, config.shutdownDrainMillis, "Shutdown deadline");
+                    break;
+                case "-csi": // Heartbeat interval in seconds, 0 meaning no heartbeats
+                    config.heartbeatSeconds = value.equals("0") ? 0 : parsePositive(value, config.heartbeatSeconds, "Heartbeat interval");
+                    break;
+                case "-csx": // Idle timeout in seconds
+                    config.idleTimeoutSeconds = parsePositive(value, config.idleTimeoutSeconds, "Idle timeout");
+                    break;
+                case "-csg": // DoD batch interval in milliseconds, 0 meaning no wait
+                    config.DoDBatchMillis = value.equals("0") ? 0 : parsePositive(value, config.DoDBatchMillis, "DoD batch interval");
+                    break;
+                case "-cse": // Threads of the embedded DoD engine, 0 meaning none
+                    config.embeddedDoDThreads = value.equals("0") ? 0 : parsePositive(value, config.embeddedDoDThreads, "Embedded DoD thread count");
+                    break;
+            }
+        }
+        if (config.heartbeatSeconds > 0 && config.idleTimeoutSeconds <= config.heartbeatSeconds) { // A client must get a ping before it can time out
+            config.idleTimeoutSeconds = 3 * config.heartbeatSeconds;
+            Utility.print("Idle timeout must be longer than the heartbeat interval. Using " + config.idleTimeoutSeconds + ".");
+        }
+        return config;
+    }
+
+    /**
+     * Parses a rate limit of the form [type=]rate[:burst]. Without a type it limits each ChatClient and ChatBot on its
+     * own; with a type it limits all the clients of that type together. A rate of 0 (or "off") removes the limit.
+     * Invalid values are reported and the previous limit is kept.
+     *
+     * @param value String representing the rate limit entered
+     */
+    private void parseRateLimit(String value) {
+        int equals = value.indexOf('=');
+        try {
+            SenderType senderType = equals == -1 ? null : SenderType.valueOf(value.substring(0, equals));
+            RateLimit rateLimit = RateLimit.parse(value.substring(equals + 1));
+            if (senderType == null) {
+                clientRateLimit = rateLimit;
+            } else if (rateLimit == null) {
+                typeRateLimits.remove(senderType);
+            } else {
+                typeRateLimits.put(senderType, rateLimit);
+            }
+        } catch (IllegalArgumentException e) { // This is reached if the type or numbers are not valid (NumberFormatException included)
+            Utility.print("Rate limit " + value + " is not valid. Use [type=]rate[:burst].");
+        }
+    }
+
+    /**
+     * Parses how many broadcasts each room keeps, which may be 0 to keep none, returning the default if the value is
+     * not valid. The limit keeps the memory of every room's history in a single buffer.
+     *
+     * @param value        String representing the value entered
+     * @param defaultValue int representing the value to use if the value entered is invalid
+     * @return int representing the parsed value or the default
+     */
+    private static int parseHistoryMessages(String value, int defaultValue) {
+        if (value.equals("0")) {
+            return 0;
+        }
+        int parsed = parsePositive(value, defaultValue, "History size");
+        if (parsed > MAX_HISTORY_MESSAGES) {
+            Utility.print("History size may be at most " + MAX_HISTORY_MESSAGES + ". Using " + defaultValue + ".");
+            return defaultValue;
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses the most bytes a client may send in a single line or frame, which may be at most Frame.MAX_LENGTH.
+     *
+     * @param value        String representing the value entered
+     * @param defaultValue int representing the value to use if the value entered is invalid
+     * @return int representing the parsed value or the default
+     */
+    private static int parseMaxMessageBytes(String value, int defaultValue) {
+        int parsed = parsePositive(value, defaultValue, "Message size limit");
+        if (parsed > Frame.MAX_LENGTH) {
+            Utility.print("Message size limit may be at most " + Frame.MAX_LENGTH + ". Using " + defaultValue + ".");
+            return defaultValue;
+        }
+        return parsed;
+    }
+
+    /**
+     * Parses a positive integer, returning the default if the value is not one.
+     *
+     * @param value        String representing the value entered
+     * @param defaultValue int representing the value to use if the value entered is invalid
+     * @param name         String representing the name of the setting, used when reporting an invalid value
+     * @return int representing the parsed value or the default
+     */
+    static int parsePositive(String value, int defaultValue, String name) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) { // This is reached if the value is not an integer
+            // Dealt with below in the same way as a non-positive integer
+        }
+        Utility.print(name + " supplied is not a positive integer. Using " + defaultValue + ".");
+        return defaultValue;
+    }
+
+    /**
+     * Returns the port number the server listens on.
+     *
+     * @return String representing the port number
+     */
+    public String getPortString() {
+        return portString;
+    }
+
+    /**
+     * Returns how the server handles its client connections.
+     *
+     * @return ServerMode representing how the server handles its client connections
+     */
+    public ServerMode getServerMode() {
+        return serverMode;
+    }
+
+    /**
+     * Returns the maximum number of messages queued for a single client.
+     *
+     * @return int representing the maximum number of messages queued for a single client
+     */
+    public int getOutboundCapacity() {
+        return outboundCapacity;
+    }
+
+    /**
+     * Returns the most bytes a ChatClient or ChatBot may send in a single line or frame.
+     *
+     * @return int representing the message size limit in bytes
+     */
+    public int getMaxMessageBytes() {
+        return maxMessageBytes;
+    }
+
+    /**
+     * Returns how many milliseconds a client's writer waits to collect more messages before writing them.
+     *
+     * @return int representing the flush delay in milliseconds, 0 meaning the messages are written straight away
+     */
+    public int getFlushDelayMillis() {
+        return flushDelayMillis;
+    }
+
+    /**
+     * Returns what happens when a client's queue of broadcasts is full.
+     *
+     * @return SlowConsumerPolicy representing what happens when a client's queue of broadcasts is full
+     */
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /**
+     * Returns the most bytes a client may have queued before being disconnected under the disconnect policy.
+     *
+     * @return long representing the backlog limit in bytes
+     */
+    public long getMaxBacklogBytes() {
+        return maxBacklogBytes;
+    }
+
+    /**
+     * Returns how long a client may be behind before being disconnected under the disconnect policy.
+     *
+     * @return long representing the backlog time limit in milliseconds
+     */
+    public long getMaxBacklogMillis() {
+        return maxBacklogSeconds * 1000L;
+    }
+
+    /**
+     * Returns how many event loops share the client connections in nio mode.
+     *
+     * @return int representing the number of event loops
+     */
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /**
+     * Returns how fast each ChatClient and ChatBot may send messages.
+     *
+     * @return RateLimit representing the limit of each client, or null if there is none
+     */
+    public RateLimit getClientRateLimit() {
+        return clientRateLimit;
+    }
+
+    /**
+     * Returns how fast all the clients of a type may send messages together.
+     *
+     * @param senderType SenderType representing the type of the clients
+     * @return RateLimit representing the limit shared by the clients of that type, or null if there is none
+     */
+    public RateLimit getTypeRateLimit(SenderType senderType) {
+        return typeRateLimits.get(senderType);
+    }
+
+    /**
+     * Returns what happens to a message sent by a client which is over its rate limit.
+     *
+     * @return RateLimitPolicy representing what happens to the message
+     */
+    public RateLimitPolicy getRateLimitPolicy() {
+        return rateLimitPolicy;
+    }
+
+    /**
+     * Returns how many of its most recent broadcasts each room keeps for the clients joining it.
+     *
+     * @return int representing the number of broadcasts kept, 0 meaning none
+     */
+    public int getHistoryMessages() {
+        return historyMessages;
+    }
+
+    /**
+     * Returns the directory every broadcast is logged in.
+     *
+     * @return String representing the chat log's directory, or null if broadcasts are not logged
+     */
+    public String getChatLogDirectory() {
+        return chatLogDirectory;
+    }
+
+    /**
+     * Returns the most bytes the chat log may take before its oldest segments are deleted.
+     *
+     * @return long representing the chat log's size limit in bytes
+     */
+    public long getChatLogRetainBytes() {
+        return chatLogRetainMegabytes * 1024L * 1024L;
+    }
+
+    /**
+     * Returns how long the chat log's segments are kept after they were last written to.
+     *
+     * @return long representing the chat log's age limit in milliseconds
+     */
+    public long getChatLogRetainMillis() {
+        return chatLogRetainHours * 3600L * 1000L;
+    }
+
+    /**
+     * Returns how long the server waits for the clients' queued messages to be written when it shuts down.
+     *
+     * @return long representing the shutdown drain deadline in milliseconds
+     */
+    public long getShutdownDrainMillis() {
+        return shutdownDrainMillis;
+    }
+
+    /**
+     * Returns how long a client may be silent before the server sends it a ping.
+     *
+     * @return long representing the heartbeat interval in milliseconds, 0 meaning clients are never pinged or timed out
+     */
+    public long getHeartbeatMillis() {
+        return heartbeatSeconds * 1000L;
+    }
+
+    /**
+     * Returns how long a client may be silent, not even answering a ping, before it is disconnected.
+     *
+     * @return long representing the idle timeout in milliseconds
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutSeconds * 1000L;
+    }
+
+    /**
+     * Returns the fewest milliseconds between two batches of messages to a DoDClient while the first is unanswered.
+     *
+     * @return int representing the DoD batch interval in milliseconds, 0 meaning a batch is sent as soon as a message is added
+     */
+    public int getDoDBatchMillis() {
+        return DoDBatchMillis;
+    }
+
+    /**
+     * Returns the number of threads the server's own DoD engine plays its games on.
+     *
+     * @return int representing the number of threads, 0 meaning the server hosts no DoD engine
+     */
+    public int getEmbeddedDoDThreads() {
+        return embeddedDoDThreads;
+    }
+
+    /**
+     * Returns a summary of the settings to print when the server starts.
+     *
+     * @return String representing the settings
+     */
+    @Override
+    public String toString() {
+        return "port: " + portString + " mode: " + serverMode + " queue capacity: " + outboundCapacity
+                + " message size limit: " + maxMessageBytes
+                + " flush delay: " + flushDelayMillis + "ms slow consumer policy: " + slowConsumerPolicy
+                + (serverMode == ServerMode.nio ? " event loops: " + eventLoops : "")
+                + " rate limit: " + (clientRateLimit == null ? "off" : clientRateLimit)
+                + (typeRateLimits.isEmpty() ? "" : " " + typeRateLimits) + " (" + rateLimitPolicy + ")"
+                + " history: " + historyMessages
+                + " heartbeat: " + (heartbeatSeconds == 0 ? "off" : heartbeatSeconds + "s (idle timeout " + idleTimeoutSeconds + "s)")
+                + " DoD batch interval: " + DoDBatchMillis + "ms"
+                + (embeddedDoDThreads == 0 ? "" : " embedded DoD engine: " + embeddedDoDThreads + " threads")
+                + (chatLogDirectory == null ? "" : " chat log: " + chatLogDirectory + " (" + chatLogRetainMegabytes
+                + "MB, " + chatLogRetainHours + "h)");
+    }
+}
@@ -0,0 +1,361 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class multiplexes many client connections onto a single thread using a Selector. It extends Thread as it is
+ * run concurrently with other parts of the ChatServer (such as the ChatServer and the ServerUserInput Thread).
+ * In nio mode the server runs several loops (shards), each owning the connections handed to it; a broadcast is
+ * handed to every loop through a lock-free queue and each loop fans it out to its own connections.
+ */
+public class ServerEventLoop extends Thread {
+
+    /**
+     * Size in bytes of the buffer that every connection of this loop reads into.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Largest number of queued messages gathered into a single write.
+     */
+    private static final int WRITE_BATCH_SIZE = 64;
+
+    /**
+     * ChatServer representing the server that ServerEventLoop is instantiated from.
+     */
+    private final ChatServer server;
+    /**
+     * int representing the index of this loop among the server's loops, which its clients' shard is set to.
+     */
+    private final int shard;
+    /**
+     * Selector which reports the connections that are ready to be read from or written to.
+     */
+    private final Selector selector;
+    /**
+     * Buffer shared by all connections of this loop to read into, so idle connections do not hold a buffer of their own.
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    /**
+     * Queue of accepted connections waiting to be registered with the selector by the loop thread.
+     */
+    private final ConcurrentLinkedQueue<NioClientHandler> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    /**
+     * Queue of connections which had messages queued by other threads and so need to be written to by the loop thread.
+     */
+    private final ConcurrentLinkedQueue<NioClientHandler> pendingWrites = new ConcurrentLinkedQueue<>();
+    /**
+     * Queue of broadcasts sent by other threads which the loop thread has yet to fan out to its connections. Many
+     * threads add to it but only the loop thread takes from it, and neither side ever blocks.
+     */
+    private final ConcurrentLinkedQueue<Broadcast> pendingBroadcasts = new ConcurrentLinkedQueue<>();
+    /**
+     * Connections which had messages queued by the loop thread during the current pass. They are written once the
+     * pass is over, so every message queued for a connection during the pass goes out in one write.
+     */
+    private final ArrayDeque<NioClientHandler> writesThisPass = new ArrayDeque<>();
+    /**
+     * Array used to gather a connection's queued messages into a single write.
+     */
+    private final ByteBuffer[] writeBatch = new ByteBuffer[WRITE_BATCH_SIZE];
+    /**
+     * Connections which the loop stopped reading from for being over their rate limit, ordered by when reading resumes.
+     * Only used by the loop thread.
+     */
+    private final PriorityQueue<NioClientHandler> pausedReaders = new PriorityQueue<>(Comparator.comparingLong(NioClientHandler::getResumeReadingAt));
+    /**
+     * Boolean representing whether the loop should keep running.
+     */
+    private volatile boolean running = true;
+    /**
+     * int representing the number of connections the loop owns. Only changed by the loop thread.
+     */
+    private volatile int connections = 0;
+    /**
+     * long representing the number of reads the loop has dealt with. Only changed by the loop thread.
+     */
+    private volatile long reads = 0;
+    /**
+     * long representing the number of broadcasts the loop has fanned out. Only changed by the loop thread.
+     */
+    private volatile long broadcasts = 0;
+    /**
+     * long representing the number of messages the loop's broadcasts were queued as. Only changed by the loop thread.
+     */
+    private volatile long broadcastDeliveries = 0;
+
+    /**
+     * The constructor initialises the server and shard and opens the selector.
+     *
+     * @param server ChatServer representing the server that ServerEventLoop is instantiated from
+     * @param shard  int representing the index of this loop among the server's loops
+     * @throws IOException If the selector fails to open
+     */
+    public ServerEventLoop(ChatServer server, int shard) throws IOException {
+        super("ServerEventLoop-" + shard);
+        this.server = server;
+        this.shard = shard;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Hands an accepted connection to this loop. The connection is registered by the loop thread itself, as registering
+     * from another thread would block while the loop is selecting.
+     *
+     * @param channel  SocketChannel representing the accepted connection
+     * @param clientID int representing the ID assigned to the client
+     * @return NioClientHandler representing the handler created for the connection
+     */
+    public NioClientHandler register(SocketChannel channel, int clientID) {
+        NioClientHandler handler = new NioClientHandler(channel, server, this, clientID);
+        pendingRegistrations.add(handler);
+        selector.wakeup();
+        return handler;
+    }
+
+    /**
+     * Requests that the loop thread writes the queued messages of a connection.
+     * If called by the loop thread the messages are written at the end of the current pass. Otherwise the connection is
+     * handed to the loop, which is woken up, unless it is already waiting there to be written.
+     *
+     * @param handler NioClientHandler which has messages waiting to be written
+     */
+    public void requestWrite(NioClientHandler handler) {
+        if (Thread.currentThread() == this) {
+            if (handler.requestWriteThisPass()) {
+                writesThisPass.add(handler);
+            }
+        } else if (handler.requestPendingWrite()) {
+            pendingWrites.add(handler);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Hands a broadcast to this loop to fan out to the recipients whose connections it owns.
+     * If called by the loop thread the broadcast is fanned out straight away.
+     *
+     * @param broadcast Broadcast representing the broadcast encoded once for all its recipients
+     */
+    public void fanOut(Broadcast broadcast) {
+        if (Thread.currentThread() == this) {
+            fanOutNow(broadcast);
+        } else {
+            pendingBroadcasts.add(broadcast);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops the loop, which then closes all the connections it owns.
+     */
+    public void shutDown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Implementation of the abstract run method which is how the ServerEventLoop should run.
+     * It keeps waiting for ready connections and dealing with them, and once the loop is broken from, every remaining
+     * connection is flushed and closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                registerPendingClients();
+                fanOutPendingBroadcasts();
+                writeThisPass(); // Writes the broadcasts fanned out together with the other queued messages
+                writePendingClients();
+                selector.select(selectTimeoutMillis());
+                resumePausedReaders();
+                dealWithReadyKeys();
+                writeThisPass();
+            }
+        } catch (IOException e) { // This is reached if the selector fails
+            Utility.print("Event loop failed: " + e.getMessage());
+        } finally {
+            closeAll();
+        }
+    }
+
+    /**
+     * Records that the loop stopped reading from a connection, so that reading resumes once its pause is over.
+     * Only used by the loop thread.
+     *
+     * @param handler NioClientHandler whose reading is paused
+     */
+    void pauseReading(NioClientHandler handler) {
+        pausedReaders.add(handler);
+    }
+
+    /**
+     * Returns how long the selector may wait before a paused connection should be read from again.
+     *
+     * @return long representing the timeout in milliseconds, 0 meaning the selector waits until woken up
+     */
+    private long selectTimeoutMillis() {
+        NioClientHandler next = pausedReaders.peek();
+        if (next == null) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next.getResumeReadingAt() - System.nanoTime() + 999_999)); // Rounded up
+    }
+
+    /**
+     * Starts reading again from every paused connection whose pause is over.
+     */
+    private void resumePausedReaders() {
+        long now = System.nanoTime();
+        NioClientHandler next;
+        while ((next = pausedReaders.peek()) != null && next.getResumeReadingAt() - now <= 0) {
+            pausedReaders.poll().resumeReading();
+        }
+    }
+
+    /**
+     * Registers every connection waiting in pendingRegistrations with the selector for reading.
+     */
+    private void registerPendingClients() {
+        NioClientHandler handler;
+        while ((handler = pendingRegistrations.poll()) != null) {
+            try {
+                handler.getChannel().configureBlocking(false);
+                handler.setKey(handler.getChannel().register(selector, SelectionKey.OP_READ, handler));
+                connections++;
+            } catch (IOException e) { // This is reached if the client disconnected before being registered
+                handler.disconnect();
+            }
+        }
+    }
+
+    /**
+     * Fans out every broadcast waiting in pendingBroadcasts.
+     */
+    private void fanOutPendingBroadcasts() {
+        Broadcast broadcast;
+        while ((broadcast = pendingBroadcasts.poll()) != null) {
+            fanOutNow(broadcast);
+        }
+    }
+
+    /**
+     * Queues a broadcast for every recipient whose connection this loop owns. The connections are written once the
+     * current pass is over. Only used by the loop thread.
+     *
+     * @param broadcast Broadcast representing the broadcast encoded once for all its recipients
+     */
+    private void fanOutNow(Broadcast broadcast) {
+        ClientHandler[] recipients = broadcast.getAudience().getClients(shard);
+        for (ClientHandler clientHandler : recipients) {
+            clientHandler.sendShared(broadcast);
+        }
+        broadcasts++;
+        broadcastDeliveries += recipients.length;
+    }
+
+    /**
+     * Writes the queued messages of every connection waiting in pendingWrites.
+     */
+    private void writePendingClients() {
+        NioClientHandler handler;
+        while ((handler = pendingWrites.poll()) != null) {
+            handler.clearPendingWrite(); // Cleared before writing, so a message queued during the write is not missed
+            handler.handleWrite(writeBatch);
+        }
+    }
+
+    /**
+     * Writes the queued messages of every connection which had messages queued during the current pass.
+     */
+    private void writeThisPass() {
+        NioClientHandler handler;
+        while ((handler = writesThisPass.poll()) != null) {
+            handler.handleWrite(writeBatch);
+        }
+    }
+
+    /**
+     * Reads from and writes to every connection the selector reported as ready.
+     */
+    private void dealWithReadyKeys() {
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            NioClientHandler handler = (NioClientHandler) key.attachment();
+            if (key.isValid() && key.isWritable()) {
+                handler.handleWrite(writeBatch);
+            }
+            if (key.isValid() && key.isReadable()) {
+                reads++;
+                handler.handleRead(readBuffer);
+            }
+        }
+    }
+
+    /**
+     * Writes whatever can be written without blocking to every connection and then closes them and the selector.
+     */
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            NioClientHandler handler = (NioClientHandler) key.attachment();
+            handler.handleWrite(writeBatch);
+            handler.disconnect();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Utility.print("Failed to close selector");
+        }
+    }
+
+    /**
+     * Records that one of the loop's connections was closed. Only used by the loop thread.
+     */
+    void recordClosed() {
+        connections--;
+    }
+
+    /**
+     * Returns the index of this loop among the server's loops.
+     *
+     * @return int representing the loop's shard
+     */
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * Returns a summary of the loop's load to print when the server's user asks for it.
+     *
+     * @return String representing the loop's connections, reads and broadcasts
+     */
+    public String describeLoad() {
+        return "Event loop " + shard + ": " + connections + " connections, " + reads + " reads, " + broadcasts
+                + " broadcasts fanned out as " + broadcastDeliveries + " messages, " + pendingBroadcasts.size()
+                + " broadcasts waiting";
+    }
+
+    /**
+     * Re-registers a key for the given interest set, ignoring keys whose connection has already been closed.
+     *
+     * @param key         SelectionKey representing the connection's registration with the selector
+     * @param interestOps int representing the operations the selector should report on
+     */
+    static void setInterest(SelectionKey key, int interestOps) {
+        try {
+            key.interestOps(interestOps);
+        } catch (CancelledKeyException e) {
+            // This is reached if the connection was closed concurrently, in which case there is nothing to update
+        }
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * Represents the ways in which the server can handle its client connections
+ */
+public enum ServerMode {
+    /**
+     * Each client is handled by its own thread which blocks while reading from the client (ServerClientHandler)
+     */
+    thread,
+
+    /**
+     * Each client is handled by its own virtual thread which blocks while reading from the client (ServerClientHandler).
+     * Falls back to thread mode on Java releases without virtual threads.
+     */
+    virtual,
+
+    /**
+     * All clients are multiplexed onto a selector based event loop using non-blocking channels (NioClientHandler)
+     */
+    nio,
+}
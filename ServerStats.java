@@ -0,0 +1,143 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class counts the decisions the server makes about its clients, so the server's user can see them.
+ * LongAdders are used as the counters may be updated by many threads at once.
+ */
+public class ServerStats {
+
+    /**
+     * LongAdder representing the number of queued broadcasts dropped to make room for newer ones
+     */
+    private final LongAdder droppedOldest = new LongAdder();
+    /**
+     * LongAdder representing the number of new broadcasts dropped because the client's queue was full
+     */
+    private final LongAdder droppedNewest = new LongAdder();
+    /**
+     * LongAdder representing the number of clients disconnected for being too slow
+     */
+    private final LongAdder evictions = new LongAdder();
+    /**
+     * LongAdder representing the number of messages dropped for being over a rate limit
+     */
+    private final LongAdder throttleDrops = new LongAdder();
+    /**
+     * LongAdder representing the number of times the server stopped reading from a client for being over a rate limit
+     */
+    private final LongAdder throttleDelays = new LongAdder();
+    /**
+     * LongAdder representing the number of clients disconnected for being over a rate limit
+     */
+    private final LongAdder throttleDisconnects = new LongAdder();
+    /**
+     * LongAdder representing the number of pings sent to clients which had been silent
+     */
+    private final LongAdder pings = new LongAdder();
+    /**
+     * LongAdder representing the number of clients disconnected for being silent for the idle timeout
+     */
+    private final LongAdder idleDisconnects = new LongAdder();
+    /**
+     * LongAdder representing the number of messages sent to DoDClients in batches
+     */
+    private final LongAdder DoDCommands = new LongAdder();
+    /**
+     * LongAdder representing the number of batches sent to DoDClients
+     */
+    private final LongAdder DoDBatchesSent = new LongAdder();
+    /**
+     * LongAdder representing the number of responses received from DoDClients in batches
+     */
+    private final LongAdder DoDResponses = new LongAdder();
+    /**
+     * LongAdder representing the number of batches received from DoDClients
+     */
+    private final LongAdder DoDBatchesReceived = new LongAdder();
+
+    /**
+     * Records a broadcast dropped under the given policy.
+     *
+     * @param policy SlowConsumerPolicy representing which message was dropped
+     */
+    public void recordDrop(SlowConsumerPolicy policy) {
+        if (policy == SlowConsumerPolicy.dropOldest) {
+            droppedOldest.increment();
+        } else {
+            droppedNewest.increment();
+        }
+    }
+
+    /**
+     * Records a client disconnected for being too slow.
+     */
+    public void recordEviction() {
+        evictions.increment();
+    }
+
+    /**
+     * Records a message sent by a client which was over its rate limit.
+     *
+     * @param policy RateLimitPolicy representing what happened to the message
+     */
+    public void recordThrottle(RateLimitPolicy policy) {
+        switch (policy) {
+            case drop:
+                throttleDrops.increment();
+                break;
+            case delay:
+                throttleDelays.increment();
+                break;
+            case disconnect:
+                throttleDisconnects.increment();
+                break;
+        }
+    }
+
+    /**
+     * Records a ping sent to a client which had been silent.
+     */
+    public void recordPing() {
+        pings.increment();
+    }
+
+    /**
+     * Records a client disconnected for being silent for the idle timeout, or for not sending its type in time.
+     */
+    public void recordIdleDisconnect() {
+        idleDisconnects.increment();
+    }
+
+    /**
+     * Records a batch of messages sent to a DoDClient.
+     *
+     * @param commands int representing the number of messages in the batch
+     */
+    public void recordDoDBatchSent(int commands) {
+        DoDCommands.add(commands);
+        DoDBatchesSent.increment();
+    }
+
+    /**
+     * Records a batch of responses received from a DoDClient.
+     *
+     * @param responses int representing the number of responses in the batch
+     */
+    public void recordDoDBatchReceived(int responses) {
+        DoDResponses.add(responses);
+        DoDBatchesReceived.increment();
+    }
+
+    /**
+     * Prints every counter to the console.
+     */
+    public void print() {
+        Utility.print("Slow consumers: " + droppedOldest.sum() + " oldest broadcasts dropped, "
+                + droppedNewest.sum() + " newest broadcasts dropped, " + evictions.sum() + " clients disconnected");
+        Utility.print("Rate limits: " + throttleDrops.sum() + " messages dropped, " + throttleDelays.sum()
+                + " reads delayed, " + throttleDisconnects.sum() + " clients disconnected");
+        Utility.print("Heartbeats: " + pings.sum() + " pings sent, " + idleDisconnects.sum() + " idle clients disconnected");
+        Utility.print("DoD links: " + DoDCommands.sum() + " moves sent in " + DoDBatchesSent.sum() + " batches, "
+                + DoDResponses.sum() + " responses received in " + DoDBatchesReceived.sum() + " batches");
+    }
+}
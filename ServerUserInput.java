@@ -1,10 +1,11 @@
 import java.io.IOException;
 
 /**
- * This class deals with the server user's request if they wish to close down the server. It extends Thread as it is
- * run concurrently with other parts of the ChatServer (such as the ChatServer and the ServerClientHandler Thread)
+ * This class deals with the server user's request if they wish to close down the server. It implements Runnable as it
+ * is run by the server's executor concurrently with other parts of the ChatServer (such as the ChatServer and the
+ * ServerClientHandlers)
  */
-public class ServerUserInput extends Thread {
+public class ServerUserInput implements Runnable {
     /**
      * ChatServer representing the server that ServerUserInput is instantiated from.
      */
@@ -37,11 +38,10 @@ public class ServerUserInput extends Thread {
 
     /**
      * Keeps reading the user's input until they enter exit, at which point the server is shut down cleanly and the loop is broken from.
-     *
-     * @throws IOException If one of the server's clients cannot close connection.
-     */
-    /**
-     * Keeps reading the user's input until they enter exit, at which point the server is shut down cleanly and the loop is broken from.
+     * Entering clients prints every connected client along with how many messages are queued for them, and entering
+     * stats prints the counters of the decisions the server made about its clients. Entering loops prints the load of
+     * every event loop in nio mode, entering workers prints the games each DoDClient runs, entering log prints the counters of the chat log and
+     * entering search followed by words prints the logged broadcasts containing them.
      *
      * @throws IOException          If one of the server's clients cannot close connection.
      * @throws InterruptedException If a thread did not join
@@ -53,6 +53,25 @@ public class ServerUserInput extends Thread {
                 server.cleanShutDown(); // Shuts down server cleanly
                 break; // Breaks from this loop, allowing this thread to finish.
             }
+            if (serverUserInput != null && serverUserInput.equalsIgnoreCase("clients")) {
+                server.printClients(); // Prints the clients and their queue depths
+            }
+            if (serverUserInput != null && serverUserInput.equalsIgnoreCase("stats")) {
+                server.getStats().print(); // Prints the counters of the decisions the server made about its clients
+                Utility.print(server.getTimingWheel().describe());
+            }
+            if (serverUserInput != null && serverUserInput.equalsIgnoreCase("loops")) {
+                server.printEventLoops(); // Prints how many connections, reads and broadcasts each event loop has dealt with
+            }
+            if (serverUserInput != null && serverUserInput.equalsIgnoreCase("workers")) {
+                server.printDoDWorkers(); // Prints how many games each DoDClient is running
+            }
+            if (serverUserInput != null && serverUserInput.equalsIgnoreCase("log")) {
+                server.printChatLog(); // Prints how many broadcasts have been logged
+            }
+            if (serverUserInput != null && serverUserInput.regionMatches(true, 0, "search ", 0, 7)) {
+                server.searchChatLog(serverUserInput.substring(7)); // Prints the logged broadcasts matching the query
+            }
         }
     }
 
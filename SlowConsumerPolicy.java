@@ -0,0 +1,20 @@
+/**
+ * Represents what the server does with a broadcast when the client it is sent to already has a full queue
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * The oldest queued broadcast is dropped to make room for the new one
+     */
+    dropOldest,
+
+    /**
+     * The new broadcast is dropped
+     */
+    dropNewest,
+
+    /**
+     * Nothing is dropped, but the client is disconnected once its queued messages exceed the backlog limit in bytes, or
+     * once it has been behind for longer than the backlog time limit.
+     */
+    disconnect,
+}
@@ -0,0 +1,354 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class runs tasks after a delay, for the whole server, from a single ticker thread. Time is cut into ticks, and
+ * the wheel is an array of buckets, one per tick, which the ticker visits in turn; a timeout is kept in the bucket of
+ * the tick it expires in, along with the number of full turns of the wheel (rounds) still to go before it does.
+ * Scheduling and cancelling a timeout are both O(1) whatever the number of timeouts, as neither searches or sorts
+ * anything: a timeout is only queued for the ticker, which links it into its bucket (or unlinks it once cancelled)
+ * at its next tick. This means a hundred thousand connections each with a timeout cost no threads of their own.
+ * Timeouts expire up to one tick late, never early. Their tasks run on the ticker thread, so they must be short, and
+ * hand anything longer (or anything which must happen on another thread, such as an event loop) off.
+ */
+public class TimingWheel implements Runnable {
+
+    /**
+     * Most timeouts moved from the queue into the wheel at each tick, so a burst of scheduling cannot hold a tick up
+     */
+    private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+    /**
+     * long representing the length of a tick in nanoseconds
+     */
+    private final long tickNanos;
+    /**
+     * Array of the buckets, one per tick of a turn of the wheel, whose length is a power of two
+     */
+    private final Bucket[] wheel;
+    /**
+     * int representing the mask giving a tick's bucket, the number of buckets minus one
+     */
+    private final int mask;
+    /**
+     * Queue of the timeouts scheduled since the last tick, which the ticker links into the wheel
+     */
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    /**
+     * Queue of the timeouts cancelled since the last tick, which the ticker unlinks from the wheel
+     */
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    /**
+     * AtomicLong representing the number of timeouts which have neither expired nor been cancelled
+     */
+    private final AtomicLong pending = new AtomicLong();
+    /**
+     * AtomicLong representing the number of timeouts which expired
+     */
+    private final AtomicLong expired = new AtomicLong();
+    /**
+     * long representing the System.nanoTime the wheel was created at, which deadlines are counted from
+     */
+    private final long startNanos = System.nanoTime();
+    /**
+     * Thread which ticks the wheel and runs the tasks of the timeouts which expire
+     */
+    private final Thread ticker;
+    /**
+     * long representing the number of ticks done, only used by the ticker
+     */
+    private long tick = 0;
+    /**
+     * Boolean representing whether the wheel has been stopped
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * The constructor creates the buckets and starts the ticker.
+     *
+     * @param name       String representing the name of the ticker thread
+     * @param tickMillis long representing the length of a tick in milliseconds, which is how late a timeout may expire
+     * @param ticks      int representing the number of ticks in a turn of the wheel, rounded up to a power of two
+     */
+    public TimingWheel(String name, long tickMillis, int ticks) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int buckets = Integer.highestOneBit(Math.max(ticks, 2) - 1) << 1; // The next power of two, so a tick's bucket is found with a mask
+        this.wheel = new Bucket[buckets];
+        for (int i = 0; i < buckets; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = buckets - 1;
+        this.ticker = new Thread(this, name);
+        ticker.setDaemon(true); // A wheel which was not stopped does not keep the program running
+        ticker.start();
+    }
+
+    /**
+     * Schedules a task to run once a delay has passed. The task runs on the ticker thread.
+     *
+     * @param task  Runnable representing the task to run
+     * @param delay long representing the delay
+     * @param unit  TimeUnit of the delay
+     * @return Timeout representing the scheduled task, through which it can be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - startNanos + unit.toNanos(Math.max(delay, 0)));
+        pending.incrementAndGet();
+        scheduled.add(timeout);
+        if (stopped) { // Scheduled while the wheel was stopping, so it will never expire
+            timeout.cancel();
+        }
+        return timeout;
+    }
+
+    /**
+     * Implementation of the run method which is how the ticker runs. At every tick, the timeouts scheduled and
+     * cancelled since the last one are moved into and out of the wheel, then every timeout in the tick's bucket whose
+     * rounds are over expires.
+     */
+    @Override
+    public void run() {
+        while (!stopped) {
+            long deadline = (tick + 1) * tickNanos;
+            long sleepNanos = deadline - (System.nanoTime() - startNanos);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) { // This is reached if the wheel is stopped
+                    continue;
+                }
+            }
+            removeCancelled();
+            transferScheduled();
+            wheel[(int) (tick & mask)].expire(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Unlinks the timeouts cancelled since the last tick from their buckets.
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) { // Otherwise it was cancelled before it was linked, and is skipped when it is
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * Links the timeouts scheduled since the last tick into the bucket of the tick they expire in. A timeout whose
+     * tick has already passed (as it was scheduled with a delay shorter than a tick) goes in the current tick's bucket.
+     */
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = scheduled.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state.get() == Timeout.CANCELLED) {
+                continue;
+            }
+            long expiryTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+            wheel[(int) (Math.max(expiryTick, tick) & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Stops the ticker. The timeouts which have not expired yet never will.
+     *
+     * @throws InterruptedException If interrupted while waiting for the ticker to finish
+     */
+    public void stop() throws InterruptedException {
+        stopped = true;
+        ticker.interrupt();
+        ticker.join();
+    }
+
+    /**
+     * Returns the number of timeouts which have neither expired nor been cancelled.
+     *
+     * @return long representing the number of pending timeouts
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    /**
+     * Returns a summary of the wheel for the console.
+     *
+     * @return String representing the number of pending and expired timeouts and the wheel's resolution
+     */
+    public String describe() {
+        return "Timing wheel: " + pending.get() + " timeouts pending, " + expired.get() + " expired ("
+                + wheel.length + " ticks of " + TimeUnit.NANOSECONDS.toMillis(tickNanos) + "ms)";
+    }
+
+    /**
+     * This class represents a task scheduled on the wheel. Its state only ever moves once, from waiting to either
+     * cancelled or expired, with a compare-and-set, so a task cannot both be cancelled and run.
+     */
+    public static final class Timeout {
+
+        /**
+         * State of a timeout which has neither expired nor been cancelled
+         */
+        private static final int WAITING = 0;
+        /**
+         * State of a timeout which was cancelled
+         */
+        private static final int CANCELLED = 1;
+        /**
+         * State of a timeout which expired, whose task was run
+         */
+        private static final int EXPIRED = 2;
+
+        /**
+         * TimingWheel the timeout is scheduled on
+         */
+        private final TimingWheel timingWheel;
+        /**
+         * Runnable representing the task run when the timeout expires
+         */
+        private final Runnable task;
+        /**
+         * long representing when the timeout expires, in nanoseconds since the wheel was created
+         */
+        private final long deadline;
+        /**
+         * AtomicInteger representing whether the timeout is waiting, cancelled or expired
+         */
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        /**
+         * long representing the number of turns of the wheel left before the timeout expires, only used by the ticker
+         */
+        private long remainingRounds;
+        /**
+         * Bucket the timeout is linked into, or null before it is, only used by the ticker
+         */
+        private Bucket bucket;
+        /**
+         * Timeouts before and after this one in its bucket, only used by the ticker
+         */
+        private Timeout previous, next;
+
+        /**
+         * The constructor initialises the wheel, task and deadline.
+         *
+         * @param timingWheel TimingWheel the timeout is scheduled on
+         * @param task        Runnable representing the task run when the timeout expires
+         * @param deadline    long representing when the timeout expires, in nanoseconds since the wheel was created
+         */
+        private Timeout(TimingWheel timingWheel, Runnable task, long deadline) {
+            this.timingWheel = timingWheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout, so its task is not run. The ticker unlinks it from its bucket at its next tick.
+         *
+         * @return Boolean representing whether the timeout was cancelled, false if it had already expired or been cancelled
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+            timingWheel.pending.decrementAndGet();
+            timingWheel.cancelled.add(this);
+            return true;
+        }
+
+        /**
+         * Runs the timeout's task, unless it was cancelled first. Only called by the ticker.
+         */
+        private void expire() {
+            if (!state.compareAndSet(WAITING, EXPIRED)) {
+                return;
+            }
+            timingWheel.pending.decrementAndGet();
+            timingWheel.expired.incrementAndGet();
+            try {
+                task.run();
+            } catch (RuntimeException e) { // A failing task must not stop the ticker, which every other timeout relies on
+                Utility.print("Timed task failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * This class represents the timeouts expiring in the same tick of every turn of the wheel, kept in a doubly linked
+     * list so a timeout is added and removed in O(1). Only used by the ticker.
+     */
+    private static final class Bucket {
+
+        /**
+         * First and last timeouts in the bucket, or null if it is empty
+         */
+        private Timeout head, tail;
+
+        /**
+         * Adds a timeout at the end of the bucket.
+         *
+         * @param timeout Timeout to add
+         */
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        /**
+         * Expires every timeout whose rounds are over, and counts down a round for the others.
+         *
+         * @param deadline long representing the end of the current tick, in nanoseconds since the wheel was created
+         */
+        private void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.state.get() == Timeout.CANCELLED) { // Cancelled during this tick, so not unlinked yet
+                    remove(timeout);
+                } else if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    timeout.expire();
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        /**
+         * Unlinks a timeout from the bucket. Unlinking a timeout which is no longer in it has no effect.
+         *
+         * @param timeout Timeout to remove
+         */
+        private void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            } else {
+                tail = timeout.previous;
+            }
+            timeout.previous = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
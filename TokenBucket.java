@@ -0,0 +1,75 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class limits how fast messages are let through, allowing short bursts. It is a token bucket which refills at
+ * a fixed rate and holds at most a burst of tokens, each message taking one token.
+ * Rather than counting tokens, it stores the time at which the bucket will be full again, so taking a token is a
+ * single compare-and-set on that time with no lock and no background refill. A bucket may be shared by many clients
+ * (such as every ChatBot) and used by many threads at once.
+ */
+public class TokenBucket {
+
+    /**
+     * long representing how many nanoseconds it takes to refill one token
+     */
+    private final long nanosPerToken;
+    /**
+     * long representing how many nanoseconds it takes to refill the whole bucket, which is how far ahead of the
+     * current time fullAt may get before messages are over the limit
+     */
+    private final long burstNanos;
+    /**
+     * AtomicLong representing the System.nanoTime at which the bucket will be full again, which is in the past while
+     * the bucket is full
+     */
+    private final AtomicLong fullAt;
+
+    /**
+     * The constructor initialises a full bucket.
+     *
+     * @param ratePerSecond double representing how many tokens are refilled every second
+     * @param burst         int representing the most tokens the bucket holds, which is the longest burst let through
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.nanosPerToken = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.burstNanos = nanosPerToken * burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if the bucket has one.
+     *
+     * @param now long representing the current System.nanoTime
+     * @return Boolean representing whether a token was taken, so the message is within the limit
+     */
+    public boolean tryTake(long now) {
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + nanosPerToken;
+            if (next - now > burstNanos) { // The bucket is empty
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a token whether or not the bucket has one, letting the bucket go into debt.
+     *
+     * @param now long representing the current System.nanoTime
+     * @return long representing how many nanoseconds it takes until the bucket has a token again, 0 if it still has one
+     */
+    public long take(long now) {
+        long next = fullAt.updateAndGet(current -> Math.max(current, now) + nanosPerToken);
+        return Math.max(0, next + nanosPerToken - now - burstNanos);
+    }
+
+    /**
+     * Gives back a token which was taken for a message that was not let through after all.
+     */
+    public void giveBack() {
+        fullAt.addAndGet(-nanosPerToken);
+    }
+}
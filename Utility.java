@@ -1,6 +1,7 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Utility {
 
@@ -9,23 +10,40 @@ public class Utility {
      */
     public static final BufferedReader userInput = new BufferedReader(new InputStreamReader(System.in)); // Set up the ability to read user input from keyboard
 
+    /**
+     * ReentrantLock guarding userInput. A lock is used rather than synchronized so a virtual thread waiting for the
+     * keyboard does not pin its carrier thread.
+     */
+    private static final ReentrantLock userInputLock = new ReentrantLock();
+
+    /**
+     * ReentrantLock guarding printing to the console, used rather than synchronized for the same reason as userInputLock.
+     */
+    private static final ReentrantLock printLock = new ReentrantLock();
+
     /**
      * Reads in the user's input and returns it.
      *
      * @return String representing user's input
      */
-    public synchronized static String userInput() {
+    public static String userInput() {
+        userInputLock.lock();
         try {
             return userInput.readLine();
         } catch (IOException e) {
             print("Couldn't read in user input");
             return null;
+        } finally {
+            userInputLock.unlock();
         }
     }
 
     public static void print(String stringToPrint) {
-        synchronized (System.out) {
+        printLock.lock();
+        try {
             System.out.println(stringToPrint);
+        } finally {
+            printLock.unlock();
         }
     }
 }
@@ -0,0 +1,16 @@
+/**
+ * Represents the ways in which a client can exchange messages with the server, chosen by the client in the line it
+ * sends when it connects
+ */
+public enum WireProtocol {
+    /**
+     * Every message is a line of text ended by a newline (default)
+     */
+    text,
+
+    /**
+     * Every message is a binary Frame prefixed by its length, so it is read without searching for a newline or
+     * splitting the message to find who it is from or addressed to
+     */
+    binary,
+}